@@ -16,16 +16,19 @@ package codeu.chat;
 
 import java.io.IOException;
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.util.Scanner;
 
 import codeu.chat.client.commandline.Chat;
 import codeu.chat.client.Controller;
 import codeu.chat.client.View;
+import codeu.chat.common.NetworkCode;
 import codeu.chat.util.Encryptor;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.connections.ClientConnectionSource;
 import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.MultiplexedConnectionSource;
 
 final class ClientMain {
 
@@ -45,13 +48,23 @@ final class ClientMain {
 
     final RemoteAddress address = RemoteAddress.parse(args[0]);
 
-    final ConnectionSource source = new ClientConnectionSource(address.host, address.port);
+    // Every call to the server shares one long-lived connection rather than
+    // opening a new connection per call.
+    final ConnectionSource source = new MultiplexedConnectionSource(
+        new ClientConnectionSource(address.host, address.port),
+        NetworkCode.MULTIPLEXED_CONNECTION_REQUEST);
 
     // Public/private key pair for this client.
     final KeyPair keyPair = Encryptor.makeAsymmetricKeyPair();
 
     final View view = new View(source, keyPair);
-    final Controller controller = new Controller(source, keyPair, view.getServerPublicKey());
+    final PublicKey serverKey = view.getServerPublicKey();
+    final Controller controller = new Controller(source, keyPair, serverKey);
+
+    // Without a session every field falls back to having its own wrapped key.
+    if (!view.openSession(serverKey)) {
+      LOG.warning("Failed to open a session with the server.");
+    }
 
     LOG.info("Creating client...");
     final Chat chat = new Chat(controller, view);
@@ -15,10 +15,14 @@
 package codeu.chat;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import codeu.chat.common.Secret;
+import codeu.chat.relay.SegmentLog;
 import codeu.chat.relay.Server;
 import codeu.chat.relay.ServerFrontEnd;
 import codeu.chat.util.Logger;
@@ -46,34 +50,91 @@ final class RelayMain {
 
     final int myPort = Integer.parseInt(args[0]);
 
+    // The relay's history is kept in a log on disk so that it survives a restart.
+    // How much is kept is limited by size and age rather than by a count. These
+    // can be changed with "-Dcodeu.chat.relay.log=DIR",
+    // "-Dcodeu.chat.relay.segmentBytes=N", "-Dcodeu.chat.relay.retentionBytes=N"
+    // and "-Dcodeu.chat.relay.retentionMs=N".
+    final String logPath = System.getProperty("codeu.chat.relay.log", "relay_log");
+    final int segmentBytes = Integer.getInteger("codeu.chat.relay.segmentBytes", 16 * 1024 * 1024);
+    final long retentionBytes = Long.getLong("codeu.chat.relay.retentionBytes", 256L * 1024 * 1024);
+    final long retentionMs = Long.getLong("codeu.chat.relay.retentionMs", 7L * 24 * 60 * 60 * 1000);
+
+    // The number of threads used to handle connections. Reads never wait on each
+    // other and writes from different teams barely do, so this can be at least as
+    // many as there are cores. Reads that wait for new bundles and subscriptions
+    // run on threads of their own (see below), so they never hold these. It can be
+    // changed with "-Dcodeu.chat.relay.workers=N".
+    final int workers = Integer.getInteger("codeu.chat.relay.workers",
+                                           Math.max(8, Runtime.getRuntime().availableProcessors()));
+
+    // The most bundles the relay will send out for one read. Servers that are far
+    // behind ask for larger batches to catch up. This can be changed with
+    // "-Dcodeu.chat.relay.maxRead=N".
+    final int maxRead = Integer.getInteger("codeu.chat.relay.maxRead", 256);
+
+    // The most subscriptions kept open at once. Each one holds a thread of its own,
+    // and servers that are turned away try again later. This can be changed with
+    // "-Dcodeu.chat.relay.maxSubscriptions=N".
+    final int maxSubscriptions = Integer.getInteger("codeu.chat.relay.maxSubscriptions", 64);
+
+    // The most reads that may wait for new bundles at once, each on a thread of its
+    // own. Past this, reads are answered straight away. This can be changed with
+    // "-Dcodeu.chat.relay.maxWaiting=N".
+    final int maxWaiting = Integer.getInteger("codeu.chat.relay.maxWaiting", 64);
+
     try (final ConnectionSource source = ServerConnectionSource.forPort(myPort)) {
 
-      // Limit the number of messages that the server tracks to be 1024 and limit the
-      // max number of messages that the relay will send out to be 16.
-      final Server relay = new Server(1024, 16);
+      final SegmentLog history = SegmentLog.open(new File(logPath),
+                                                 segmentBytes,
+                                                 0,
+                                                 retentionBytes,
+                                                 retentionMs);
+
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          history.close();
+        }
+      });
+
+      final Server relay = new Server(history, maxRead);
 
       LOG.info("Relay object created.");
 
       LOG.info("Starting relay...");
 
-      startRelay(relay, source, args[1]);
+      startRelay(relay, history, source, args[1], workers, maxSubscriptions, maxWaiting);
 
     } catch (IOException ex) {
-      LOG.error(ex, "Failed to establish server accept port");
+      LOG.error(ex, "Failed to establish server accept port or open history");
     }
   }
 
   private static void startRelay(final Server relay,
+                                 final SegmentLog history,
                                  final ConnectionSource source,
-                                 final String teamFile) {
+                                 final String teamFile,
+                                 final int workers,
+                                 final int maxSubscriptions,
+                                 final int maxWaiting) {
 
-    final ServerFrontEnd frontEnd = new ServerFrontEnd(relay);
+    final ServerFrontEnd frontEnd = new ServerFrontEnd(relay, maxSubscriptions, maxWaiting);
     LOG.info("Relay front end object created.");
 
     final Timeline timeline = new Timeline();
     LOG.info("Relay timeline created.");
 
-    timeline.scheduleNow(new Runnable() {
+    final ExecutorService connections = Executors.newFixedThreadPool(Math.max(1, workers));
+    LOG.info("Relay workers created (workers=%d).", Math.max(1, workers));
+
+    // The teams are loaded before any connection is taken. Until then the relay
+    // would turn every team away, and a server would drop what it had sent.
+    LOG.info("Loading team data...");
+    loadTeamInfo(relay, teamFile);
+    LOG.info("Done loading team data.");
+
+    timeline.scheduleIn(60000, new Runnable() {
       @Override
       public void run() {
         LOG.info("Loading team data...");
@@ -86,6 +147,17 @@ final class RelayMain {
       }
     });
 
+    // Write the history through to disk every second. Until then it is only in
+    // memory shared with the OS, which is safe if the relay crashes but not if the
+    // machine does.
+    timeline.scheduleIn(1000, new Runnable() {
+      @Override
+      public void run() {
+        history.flush();
+        timeline.scheduleIn(1000, this);
+      }
+    });
+
     LOG.info("Starting relay main loop...");
 
     while (true) {
@@ -95,7 +167,7 @@ final class RelayMain {
         final Connection connection = source.connect();
         LOG.info("Connection established.");
 
-        timeline.scheduleNow(new Runnable() {
+        connections.execute(new Runnable() {
           @Override
           public void run() {
             try {
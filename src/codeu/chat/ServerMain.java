@@ -26,9 +26,12 @@ import java.lang.SecurityException;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.server.NoOpRelay;
+import codeu.chat.server.RelayCursor;
 import codeu.chat.server.RemoteRelay;
 import codeu.chat.database.Database;
 import codeu.chat.server.Server;
+import codeu.chat.server.storage.Storage;
+import codeu.chat.server.storage.WriteBehind;
 import codeu.chat.util.Encryptor;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
@@ -78,13 +81,63 @@ final class ServerMain {
                                        RemoteAddress.parse(args[4]) :
                                        null;
 
+    // The number of threads used to handle client requests. This can be changed
+    // with "-Dcodeu.chat.server.workers=N". Zero will handle all requests on a
+    // single thread.
+    final int workers = Integer.getInteger("codeu.chat.server.workers",
+                                           Runtime.getRuntime().availableProcessors());
+
+    // The most messages to keep in memory at once. Past this, the messages of the
+    // conversations used least recently are dropped and read back from the
+    // database when asked for. This can be changed with
+    // "-Dcodeu.chat.server.messageBudget=N". Zero keeps every message.
+    final int messageBudget = Integer.getInteger("codeu.chat.server.messageBudget", 0);
+
+    // Registrations and logins run on their own threads, this many, with at most
+    // "authQueue" more waiting before others are turned away. These can be changed
+    // with "-Dcodeu.chat.server.authThreads=N" and "-Dcodeu.chat.server.authQueue=N".
+    final int authThreads = Integer.getInteger("codeu.chat.server.authThreads", 2);
+    final int authQueue = Integer.getInteger("codeu.chat.server.authQueue", 64);
+
+    // Whether to have the relay stream new bundles down one connection, rather than
+    // long-polling it with a request at a time. This can be turned off with
+    // "-Dcodeu.chat.server.relayStream=false".
+    final boolean relayStream =
+        Boolean.parseBoolean(System.getProperty("codeu.chat.server.relayStream", "true"));
+
+    // Messages are sent to the relay in batches of up to "relayBatch", each sent
+    // once full or after waiting "relayBatchMs". These can be changed with
+    // "-Dcodeu.chat.server.relayBatch=N" and "-Dcodeu.chat.server.relayBatchMs=N".
+    // A batch of one sends every message on its own.
+    final int relayBatch = Integer.getInteger("codeu.chat.server.relayBatch", 256);
+    final long relayBatchMs = Long.getLong("codeu.chat.server.relayBatchMs", 50);
+
+    // The most bundles from the relay to apply each second. A server catching up on
+    // a backlog reads as fast as this allows, so it should leave room for clients.
+    // This can be changed with "-Dcodeu.chat.server.relayApplyRate=N". Zero is no
+    // limit.
+    final int relayApplyRate = Integer.getInteger("codeu.chat.server.relayApplyRate", 1000);
+
     try (
         final ConnectionSource serverSource = ServerConnectionSource.forPort(myPort);
         final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
     ) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource, persistentPath + "/server.db");
+      runServer(id,
+                secret,
+                serverSource,
+                relaySource,
+                relayStream,
+                relayBatch,
+                relayBatchMs,
+                relayApplyRate,
+                persistentPath + "/server.db",
+                persistentPath + "/relay_cursor",
+                workers,
+                messageBudget,
+                authThreads,
+                authQueue);
 
     } catch (IOException ex) {
 
@@ -97,18 +150,66 @@ final class ServerMain {
                                 byte[] secret,
                                 ConnectionSource serverSource,
                                 ConnectionSource relaySource,
-                                String dbPath) {
+                                boolean relayStream,
+                                int relayBatch,
+                                long relayBatchMs,
+                                int relayApplyRate,
+                                String dbPath,
+                                String relayCursorPath,
+                                int workers,
+                                int messageBudget,
+                                int authThreads,
+                                int authQueue) {
 
     final Relay relay = relaySource == null ?
                         new NoOpRelay() :
-                        new RemoteRelay(relaySource);
-
-    final Database database = new Database(dbPath);
+                        new RemoteRelay(relaySource, relayStream, relayBatch, relayBatchMs);
+
+    // Queries run on a pool of read connections, of at most this many. This can be
+    // changed with "-Dcodeu.chat.server.database.readers=N".
+    final Database database = new Database(
+        dbPath,
+        Integer.getInteger("codeu.chat.server.database.readers", Database.DEFAULT_READERS));
+
+    // Conversations and messages are written to the database in batches. With
+    // "-Dcodeu.chat.server.storage.durability=async" a write is not waited for,
+    // which is faster but can lose the last moments of writes if the server is
+    // killed. The batch size and, for async writes, how long to wait for a batch
+    // to fill can be changed with "codeu.chat.server.storage.batchRows" and
+    // "codeu.chat.server.storage.batchMs".
+    final WriteBehind.Durability durability =
+        "async".equalsIgnoreCase(System.getProperty("codeu.chat.server.storage.durability")) ?
+        WriteBehind.Durability.ASYNC :
+        WriteBehind.Durability.SYNC;
+    final Storage storage = new Storage(
+        database,
+        durability,
+        Integer.getInteger("codeu.chat.server.storage.batchRows", Storage.DEFAULT_BATCH_ROWS),
+        Long.getLong("codeu.chat.server.storage.batchMs", Storage.DEFAULT_BATCH_MS));
+
+    // Write out anything still queued when the server is stopped.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        storage.close();
+      }
+    });
 
     // Public/private key pair for this server.
     final KeyPair keyPair = Encryptor.makeAsymmetricKeyPair();
 
-    final Server server = new Server(id, secret, relay, database, keyPair);
+    final Server server = new Server(id,
+                                     secret,
+                                     relay,
+                                     database,
+                                     storage,
+                                     keyPair,
+                                     workers,
+                                     messageBudget,
+                                     authThreads,
+                                     authQueue,
+                                     relayApplyRate,
+                                     new RelayCursor(new File(relayCursorPath)));
 
     LOG.info("Created server.");
 
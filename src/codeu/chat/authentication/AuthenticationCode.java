@@ -8,6 +8,7 @@ public final class AuthenticationCode {
     REGISTER_INVALID_INPUT = 2,
     LOGIN_FAILED           = 3,
     DB_ERROR               = 4,
-    UNKNOWN                = 5;
+    UNKNOWN                = 5,
+    SERVER_BUSY            = 6;
 
 }
@@ -18,20 +18,23 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import codeu.chat.common.Conversation;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageBatch;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Method;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.MultiplexedConnectionSource;
 
 public final class ClientMessage {
 
   private final static Logger.Log LOG = Logger.newLog(ClientMessage.class);
 
   private final static int MESSAGE_MAX_COUNT = 100;
-  private final static int MESSAGE_FETCH_COUNT = 5;
 
   private final Controller controller;
   private final View view;
@@ -46,6 +49,32 @@ public final class ClientMessage {
   private final ClientUser userContext;
   private final ClientConversation conversationContext;
 
+  // Collects the messages the server pushes for one conversation. Filled on the
+  // connection's reader thread and drained by updateMessages.
+  private static final class PushedMessages implements View.MessageListener {
+
+    public final Uuid conversation;
+    public final Queue<Message> messages = new ConcurrentLinkedQueue<>();
+    public volatile boolean open = true;
+
+    public PushedMessages(Uuid conversation) {
+      this.conversation = conversation;
+    }
+
+    @Override
+    public void onMessage(Message message) {
+      messages.add(message);
+    }
+
+    @Override
+    public void onClose() {
+      open = false;
+    }
+  }
+
+  private PushedMessages pushed;
+  private MultiplexedConnectionSource.Subscription subscription;
+
   public ClientMessage(Controller controller, View view, ClientUser userContext,
                        ClientConversation conversationContext) {
     this.controller = controller;
@@ -107,6 +136,10 @@ public final class ClientMessage {
     } else {
       LOG.info("New message:, Author= %s UUID= %s", author, message.id);
       current = message;
+      // The server's push for this message may not have arrived yet.
+      if (isSubscribed(conversation)) {
+        pushed.messages.add(message);
+      }
     }
     updateMessages(false);
   }
@@ -149,34 +182,38 @@ public final class ClientMessage {
     Method.notImplemented();
   }
 
-  // Determine the next message ID of the current conversation to start pulling.
-  // This requires a read of the last read message to determine if the chain has been extended.
-  private Uuid getCurrentMessageFetchId(boolean replaceAll) {
-    if (replaceAll || conversationContents.isEmpty()) {
-      // Fetch/refetch all the messages.
-      conversationContents.clear();
-      LOG.info("Refetch all messages: replaceAll=%s firstMessage=%s", replaceAll,
-          conversationHead.firstMessage);
-      return conversationHead.firstMessage;
-    } else {
-      // Locate last known message. Its next, if any, becomes our starting point.
-      return getCurrentTailMessageId();
-    }
-  }
+  // Fetch the messages after the last one already held, in as few batches as the
+  // server needs. If the server no longer knows the last message held, start over.
+  private void fetchNewMessages() {
+    Uuid cursor = conversationContents.isEmpty() ?
+        Uuid.NULL :
+        conversationContents.get(conversationContents.size() - 1).id;
 
-  private Uuid getCurrentTailMessageId() {
-    Uuid nextMessageId = conversationContents.get(conversationContents.size() - 1).id;
-    final List<Message> messageTail = new ArrayList<>(view.getMessages(nextMessageId, 1));
-    if (messageTail.size() > 0) {
-      final Message msg = messageTail.get(0);
-      nextMessageId = msg.next;
-    } else {
-      // fall back.
-      LOG.warning("Failed to get tail of messages, starting from %s", nextMessageId);
-      conversationContents.clear();
-      nextMessageId = conversationHead.firstMessage;
+    boolean more = true;
+    while (more && conversationContents.size() < MESSAGE_MAX_COUNT) {
+
+      final MessageBatch batch = view.getMessagesSince(
+          conversationHead.id, cursor, MESSAGE_MAX_COUNT - conversationContents.size());
+
+      if (batch == null) {
+        if (cursor.equals(Uuid.NULL)) {
+          LOG.warning("Failed to get messages for conversation %s", conversationHead.id);
+          return;
+        }
+        LOG.warning("Failed to get messages after %s, refetching all messages", cursor);
+        conversationContents.clear();
+        messageByUuid.clear();
+        cursor = Uuid.NULL;
+        continue;
+      }
+
+      for (final Message msg : batch.messages) {
+        conversationContents.add(msg);
+        messageByUuid.put(msg.id, msg);
+      }
+      cursor = batch.cursor;
+      more = batch.more;
     }
-    return nextMessageId;
   }
 
   // Update the list of messages for the current conversation.
@@ -186,13 +223,32 @@ public final class ClientMessage {
   }
 
   // Update the list of messages for the given conversation.
-  // Currently rereads the entire message chain.
+  // While subscribed to the conversation, new messages are pushed by the server and
+  // nothing needs to be fetched. Otherwise this subscribes and fetches whatever is
+  // new since the last update (or everything if replaceAll is set).
   public void updateMessages(ConversationSummary conversation, boolean replaceAll) {
     if (conversation == null) {
       LOG.error("conversation argument is null - do nothing.");
       return;
     }
-    conversationHead = conversationContext.getConversation(conversation.id);
+
+    if (!replaceAll && isSubscribed(conversation.id) &&
+        conversationHead != null && conversationHead.id.equals(conversation.id)) {
+      addPushedMessages();
+      current = (conversationContents.size() > 0) ? conversationContents.get(0) : null;
+      return;
+    }
+
+    // Subscribe before fetching so no message can fall between the two. Messages
+    // that show up in both are dropped by addPushedMessages.
+    subscribe(conversation.id);
+
+    if (replaceAll || conversationHead == null || !conversationHead.id.equals(conversation.id)) {
+      conversationHead = conversationContext.getConversation(conversation.id);
+      conversationContents.clear();
+      messageByUuid.clear();
+    }
+
     if (conversationHead == null) {
       LOG.info("ConversationHead is null");
     } else {
@@ -200,24 +256,9 @@ public final class ClientMessage {
           conversationHead.title, conversationHead.id, conversationHead.firstMessage,
           conversationHead.lastMessage);
 
-      Uuid nextMessageId = getCurrentMessageFetchId(replaceAll);
-
-      //  Stay in loop until all messages read (up to safety limit)
-      while (!nextMessageId.equals(Uuid.NULL) && conversationContents.size() < MESSAGE_MAX_COUNT) {
-
-        for (final Message msg : view.getMessages(nextMessageId, MESSAGE_FETCH_COUNT)) {
-
-          conversationContents.add(msg);
+      fetchNewMessages();
+      addPushedMessages();
 
-          // Race: message possibly added since conversation fetched.  If that occurs,
-          // pretend the newer messages do not exist - they'll get picked up next time).
-          if (msg.next.equals(Uuid.NULL) || msg.id.equals(conversationHead.lastMessage)) {
-            msg.next = Uuid.NULL;
-            break;
-          }
-        }
-        nextMessageId = conversationContents.get(conversationContents.size() - 1).next;
-      }
       LOG.info("Retrieved %d messages for conversation %s (%s).\n",
           conversationContents.size(), conversationHead.id, conversationHead.title);
 
@@ -226,6 +267,48 @@ public final class ClientMessage {
     }
   }
 
+  private boolean isSubscribed(Uuid conversation) {
+    return pushed != null && pushed.open && pushed.conversation.equals(conversation);
+  }
+
+  private void subscribe(Uuid conversation) {
+    if (isSubscribed(conversation)) {
+      return;
+    }
+
+    if (subscription != null && pushed.open) {
+      view.unsubscribe(subscription);
+    }
+
+    pushed = new PushedMessages(conversation);
+    subscription = view.subscribe(conversation, pushed);
+
+    if (subscription == null) {
+      // Fall back to fetching on every update.
+      pushed.open = false;
+    }
+  }
+
+  // Move pushed messages to the end of the conversation, skipping any that were
+  // already fetched.
+  private void addPushedMessages() {
+    if (pushed == null || conversationHead == null || !pushed.conversation.equals(conversationHead.id)) {
+      return;
+    }
+
+    while (conversationContents.size() < MESSAGE_MAX_COUNT && !pushed.messages.isEmpty()) {
+      final Message message = pushed.messages.poll();
+      if (!messageByUuid.containsKey(message.id)) {
+        if (conversationContents.size() > 0) {
+          conversationContents.get(conversationContents.size() - 1).next = message.id;
+        }
+        conversationContents.add(message);
+        messageByUuid.put(message.id, message);
+        conversationHead.lastMessage = message.id;
+      }
+    }
+  }
+
   // Print Message.  User context is used to map from author UUID to name.
   public static void printMessage(Message m, ClientUser userContext) {
     if (m == null) {
@@ -91,6 +91,9 @@ public final class ClientUser {
         case AuthenticationCode.REGISTER_INVALID_INPUT:
           System.out.println("Error: invalid input");
           break;
+        case AuthenticationCode.SERVER_BUSY:
+          System.out.println("Error: server is busy, try again shortly");
+          break;
         default:
           System.out.println("Error: server error");
           break;
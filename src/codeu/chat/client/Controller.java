@@ -119,7 +119,10 @@ public class Controller implements BasicController {
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.LOGIN_RESPONSE) {
         user = EncryptedSerializers.nullable(User.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey);
         Uuid token = Serializers.nullable(Uuid.SERIALIZER).read(connection.in());
-        user.token = token;
+        // The user is null if the login failed or the server was too busy to try.
+        if (user != null) {
+          user.token = token;
+        }
         LOG.info("login: Response completed.");
       } else {
         LOG.error("Response from server failed.");
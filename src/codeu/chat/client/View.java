@@ -14,6 +14,8 @@
 
 package codeu.chat.client;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.PrivateKey;
@@ -21,17 +23,20 @@ import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Collection;
+import javax.crypto.SecretKey;
 
 import codeu.chat.common.BasicView;
 import codeu.chat.common.Conversation;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LogicalView;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageBatch;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.User;
 import codeu.chat.util.*;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.MultiplexedConnectionSource;
 
 // VIEW
 //
@@ -42,6 +47,19 @@ public final class View implements BasicView, LogicalView{
 
   private final static Logger.Log LOG = Logger.newLog(View.class);
 
+  // MESSAGE LISTENER
+  //
+  // Receives messages pushed by the server for a subscribed conversation. Called
+  // on the connection's reader thread.
+  public interface MessageListener {
+
+    void onMessage(Message message);
+
+    // The subscription ended because the connection was lost.
+    void onClose();
+
+  }
+
   private final ConnectionSource source;
 
   public final PublicKey publicKey;
@@ -65,7 +83,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.collection(Uuid.SERIALIZER).write(connection.out(), ids);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USERS_BY_ID_RESPONSE) {
-        users.addAll(EncryptedSerializers.collection(User.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        users.addAll(User.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -89,7 +107,7 @@ public final class View implements BasicView, LogicalView{
       Encryptor.SERIALIZER.write(connection.out(), publicKey);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE) {
-        summaries.addAll(EncryptedSerializers.collection(ConversationSummary.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        summaries.addAll(ConversationSummary.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -114,7 +132,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.collection(Uuid.SERIALIZER).write(connection.out(), ids);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE) {
-        conversations.addAll(EncryptedSerializers.collection(Conversation.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        conversations.addAll(Conversation.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -139,7 +157,7 @@ public final class View implements BasicView, LogicalView{
 
       // error here?
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_ID_RESPONSE) {
-        messages.addAll(EncryptedSerializers.collection(Message.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        messages.addAll(Message.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -185,7 +203,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.collection(Uuid.SERIALIZER).write(connection.out(), ids);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USERS_EXCLUDING_RESPONSE) {
-        users.addAll(EncryptedSerializers.collection(User.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        users.addAll(User.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -210,7 +228,7 @@ public final class View implements BasicView, LogicalView{
       Time.SERIALIZER.write(connection.out(), end);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_TIME_RESPONSE) {
-        conversations.addAll(EncryptedSerializers.collection(Conversation.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        conversations.addAll(Conversation.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -234,7 +252,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.STRING.write(connection.out(), filter);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE) {
-        conversations.addAll(EncryptedSerializers.collection(Conversation.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        conversations.addAll(Conversation.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -255,11 +273,12 @@ public final class View implements BasicView, LogicalView{
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_TIME_REQUEST);
       Encryptor.SERIALIZER.write(connection.out(), publicKey);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
       Time.SERIALIZER.write(connection.out(), start);
       Time.SERIALIZER.write(connection.out(), end);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_TIME_RESPONSE) {
-        messages.addAll(EncryptedSerializers.collection(Message.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        messages.addAll(Message.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -285,7 +304,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.INTEGER.write(connection.out(), range);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_RANGE_RESPONSE) {
-        messages.addAll(EncryptedSerializers.collection(Message.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey));
+        messages.addAll(Message.ENCRYPTED_COLLECTION_SERIALIZER.read(connection.in(), privateKey));
       } else {
         LOG.error("Response from server failed.");
       }
@@ -298,6 +317,187 @@ public final class View implements BasicView, LogicalView{
     return messages;
   }
 
+  @Override
+  public MessageBatch getMessagesSince(Uuid conversation, Uuid after, int limit) {
+
+    MessageBatch batch = null;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_SINCE_REQUEST);
+      Encryptor.SERIALIZER.write(connection.out(), publicKey);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Uuid.SERIALIZER.write(connection.out(), after);
+      Serializers.INTEGER.write(connection.out(), limit);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_SINCE_RESPONSE) {
+        batch = EncryptedSerializers.nullable(MessageBatch.ENCRYPTED_SERIALIZER).read(connection.in(), privateKey);
+      } else {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return batch;
+  }
+
+  /**
+   * subscribe
+   * Asks the server to push every new message in a conversation instead of having
+   * to poll for them. Only possible when requests share a multiplexed connection.
+   * @param conversation the conversation to listen to
+   * @param listener gets each new message
+   * @return the subscription, or null if the server could not be subscribed to
+   */
+  public MultiplexedConnectionSource.Subscription subscribe(Uuid conversation,
+                                                            final MessageListener listener) {
+
+    if (!(source instanceof MultiplexedConnectionSource)) {
+      return null;
+    }
+
+    final MultiplexedConnectionSource.Listener frames = new MultiplexedConnectionSource.Listener() {
+      @Override
+      public void onFrame(InputStream in) throws IOException {
+        if (Serializers.INTEGER.read(in) == NetworkCode.NEW_MESSAGE_EVENT) {
+          listener.onMessage(Message.ENCRYPTED_SERIALIZER.read(in, privateKey));
+        } else {
+          LOG.warning("Unexpected frame on subscription.");
+        }
+      }
+
+      @Override
+      public void onClose() {
+        listener.onClose();
+      }
+    };
+
+    try {
+      final MultiplexedConnectionSource.Subscription subscription =
+          ((MultiplexedConnectionSource) source).subscribe(frames);
+
+      Serializers.INTEGER.write(subscription.out(), NetworkCode.SUBSCRIBE_CONVERSATION_REQUEST);
+      Encryptor.SERIALIZER.write(subscription.out(), publicKey);
+      Uuid.SERIALIZER.write(subscription.out(), conversation);
+
+      if (Serializers.INTEGER.read(subscription.in()) == NetworkCode.SUBSCRIBE_CONVERSATION_RESPONSE &&
+          Serializers.BOOLEAN.read(subscription.in())) {
+        return subscription;
+      }
+
+      LOG.error("Response from subscribe failed.");
+      subscription.cancel();
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return null;
+  }
+
+  /**
+   * unsubscribe
+   * Stops the server from pushing messages for a subscription.
+   * @param subscription a subscription returned by subscribe
+   */
+  public void unsubscribe(MultiplexedConnectionSource.Subscription subscription) {
+
+    subscription.cancel();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.UNSUBSCRIBE_CONVERSATION_REQUEST);
+      Serializers.INTEGER.write(connection.out(), subscription.id());
+
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.UNSUBSCRIBE_CONVERSATION_RESPONSE) {
+        LOG.error("Response from unsubscribe failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+  }
+
+  /**
+   * openSession
+   * Asks the server for a session key. Once this succeeds, everything encrypted
+   * between this client and the server uses the session key instead of wrapping a
+   * new key with RSA for every field.
+   * @param serverKey the server's public key
+   * @return whether a session was set up
+   */
+  public boolean openSession(PublicKey serverKey) {
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SESSION_KEY_REQUEST);
+      Encryptor.SERIALIZER.write(connection.out(), publicKey);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SESSION_KEY_RESPONSE) {
+        final long id = Serializers.LONG.read(connection.in());
+        final SecretKey key = Encryptor.unwrap(Serializers.BYTES.read(connection.in()), privateKey);
+        SessionKeys.current().join(serverKey, new SessionKeys.Session(id, key));
+        keepSession(serverKey);
+        return true;
+      } else {
+        LOG.error("Response from session setup failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during session setup. Check log for details.");
+      LOG.error(ex, "Exception during session setup.");
+    }
+
+    return false;
+  }
+
+  // KEEP SESSION
+  //
+  // The server forgets a session when the connection it was opened on is lost.
+  // Requests whose payloads were already encrypted under it may still be waiting
+  // to go out, so every new connection first hands the same session back to the
+  // server. Only if that fails is a new session opened.
+  private void keepSession(final PublicKey serverKey) {
+    if (!(source instanceof MultiplexedConnectionSource)) {
+      return;
+    }
+    ((MultiplexedConnectionSource) source).setOpener(new MultiplexedConnectionSource.Opener() {
+      @Override
+      public void onOpen() {
+        final SessionKeys.Session session = SessionKeys.current().forRecipient(serverKey);
+        if (session == null || !resumeSession(serverKey, session)) {
+          SessionKeys.current().clear();
+          openSession(serverKey);
+        }
+      }
+    });
+  }
+
+  private boolean resumeSession(PublicKey serverKey, SessionKeys.Session session) {
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SESSION_RESUME_REQUEST);
+      Encryptor.SERIALIZER.write(connection.out(), publicKey);
+      Serializers.LONG.write(connection.out(), session.id);
+      Serializers.BYTES.write(connection.out(), Encryptor.wrap(session.key, serverKey));
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SESSION_RESUME_RESPONSE) {
+        return Serializers.BOOLEAN.read(connection.in());
+      } else {
+        LOG.error("Response from session resume failed.");
+      }
+
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while resuming session.");
+    }
+
+    return false;
+  }
+
   /**
    * getServerPublicKey
    * Allows easy access to the Server's public key.
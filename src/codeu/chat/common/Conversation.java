@@ -22,7 +22,8 @@ import java.io.ByteArrayInputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 
 import codeu.chat.util.*;
 
@@ -99,15 +100,36 @@ public final class Conversation {
     }
   };
 
+  private static final Serializer<Conversation> RAW_SERIALIZER = new Serializer<Conversation>() {
+
+    @Override
+    public void write(OutputStream out, Conversation value) throws IOException {
+      toStream(out, value);
+    }
+
+    @Override
+    public Conversation read(InputStream in) throws IOException {
+      return fromStream(in);
+    }
+  };
+
+  public static final EncryptedSerializer<Collection<Conversation>> ENCRYPTED_COLLECTION_SERIALIZER =
+      EncryptedSerializers.envelope(Serializers.collection(RAW_SERIALIZER));
+
   public final ConversationSummary summary;
 
   public final Uuid id;
   public final Uuid owner;
   public final Time creation;
   public final String title;
-  public final Collection<Uuid> users = new HashSet<>();
-  public Uuid firstMessage = Uuid.NULL;
-  public Uuid lastMessage = Uuid.NULL;
+  // The server may serialize a conversation on one thread while another thread
+  // adds a message to it, so these must be safe to read without a lock. The
+  // message links are only moved to a message once it is in the model (see
+  // Message.next).
+  public final Collection<Uuid> users =
+      Collections.newSetFromMap(new ConcurrentHashMap<Uuid, Boolean>());
+  public volatile Uuid firstMessage = Uuid.NULL;
+  public volatile Uuid lastMessage = Uuid.NULL;
 
   public Conversation(Uuid id, Uuid owner, Time creation, String title) {
 
@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Collection;
 
 import codeu.chat.util.*;
 
@@ -98,6 +99,22 @@ public final class ConversationSummary implements ListViewable {
     }
   };
 
+  private static final Serializer<ConversationSummary> RAW_SERIALIZER = new Serializer<ConversationSummary>() {
+
+    @Override
+    public void write(OutputStream out, ConversationSummary value) throws IOException {
+      toStream(out, value);
+    }
+
+    @Override
+    public ConversationSummary read(InputStream in) throws IOException {
+      return fromStream(in);
+    }
+  };
+
+  public static final EncryptedSerializer<Collection<ConversationSummary>> ENCRYPTED_COLLECTION_SERIALIZER =
+      EncryptedSerializers.envelope(Serializers.collection(RAW_SERIALIZER));
+
   public final Uuid id;
   public final Uuid owner;
   public final Time creation;
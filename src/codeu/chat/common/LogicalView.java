@@ -69,4 +69,13 @@ public interface LogicalView {
   //   no messages will be returned.
   Collection<Message> getMessages(Uuid rootMessage, int range);
 
+  // GET MESSAGES SINCE
+  //
+  //   Get up to |limit| messages from a conversation that come after the message
+  //   "after", in order. If "after" is Uuid.NULL the batch starts at the first
+  //   message of the conversation. The batch's cursor is passed as "after" on the
+  //   next call to continue from where it ended. If the conversation is not found,
+  //   or "after" is not a message in it, null is returned.
+  MessageBatch getMessagesSince(Uuid conversation, Uuid after, int limit);
+
 }
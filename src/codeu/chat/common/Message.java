@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Collection;
 
 import codeu.chat.util.*;
 
@@ -108,12 +109,32 @@ public final class Message {
     }
   };
 
+  private static final Serializer<Message> RAW_SERIALIZER = new Serializer<Message>() {
+
+    @Override
+    public void write(OutputStream out, Message value) throws IOException {
+      toStream(out, value);
+    }
+
+    @Override
+    public Message read(InputStream in) throws IOException {
+      return fromStream(in);
+    }
+  };
+
+  // Also carries the messages of a MessageBatch.
+  public static final EncryptedSerializer<Collection<Message>> ENCRYPTED_COLLECTION_SERIALIZER =
+      EncryptedSerializers.envelope(Serializers.collection(RAW_SERIALIZER));
+
   public final Uuid id;
   public final Uuid previous;
   public final Time creation;
   public final Uuid author;
   public final String content;
-  public Uuid next;
+  // Set when the following message is added. The server only points it at a
+  // message that is already in the model, so a reader that sees the new value
+  // can always find the message it names.
+  public volatile Uuid next;
 
   public Message(Uuid id, Uuid next, Uuid previous, Time creation, Uuid author, String content) {
 
@@ -0,0 +1,67 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collection;
+
+import codeu.chat.util.*;
+
+// MESSAGE BATCH
+//
+// Part of a conversation returned by LogicalView.getMessagesSince. "cursor" is
+// what to pass as "after" to get the messages that follow this batch, and "more"
+// says whether there were any when the batch was made.
+public final class MessageBatch {
+
+  public static final EncryptedSerializer<MessageBatch> ENCRYPTED_SERIALIZER = new EncryptedSerializer<MessageBatch>() {
+
+    @Override
+    public void write(OutputStream out, MessageBatch value, PublicKey key) throws IOException {
+
+      Message.ENCRYPTED_COLLECTION_SERIALIZER.write(out, value.messages, key);
+      Uuid.SERIALIZER.write(out, value.cursor);
+      Serializers.BOOLEAN.write(out, value.more);
+
+    }
+
+    @Override
+    public MessageBatch read(InputStream in, PrivateKey key) throws IOException {
+
+      return new MessageBatch(
+          Message.ENCRYPTED_COLLECTION_SERIALIZER.read(in, key),
+          Uuid.SERIALIZER.read(in),
+          Serializers.BOOLEAN.read(in)
+      );
+
+    }
+  };
+
+  public final Collection<Message> messages;
+  public final Uuid cursor;
+  public final boolean more;
+
+  public MessageBatch(Collection<Message> messages, Uuid cursor, boolean more) {
+
+    this.messages = messages;
+    this.cursor = cursor;
+    this.more = more;
+
+  }
+}
@@ -51,5 +51,52 @@ public final class NetworkCode {
       RELAY_WRITE_REQUEST = 31,
       RELAY_WRITE_RESPONSE = 32,
       SERVER_PUBLIC_KEY_REQUEST = 33,
-      SERVER_PUBLIC_KEY_RESPONSE = 34;
+      SERVER_PUBLIC_KEY_RESPONSE = 34,
+      // Sent as the first value on a connection that will carry many requests,
+      // each wrapped in a codeu.chat.util.connections.Frame.
+      MULTIPLEXED_CONNECTION_REQUEST = 35,
+      SESSION_KEY_REQUEST = 36,
+      SESSION_KEY_RESPONSE = 37,
+      // Only valid on a multiplexed connection. After the response, the server
+      // sends a NEW_MESSAGE_EVENT frame with the subscription request's id for
+      // every message added to the conversation.
+      SUBSCRIBE_CONVERSATION_REQUEST = 38,
+      SUBSCRIBE_CONVERSATION_RESPONSE = 39,
+      UNSUBSCRIBE_CONVERSATION_REQUEST = 40,
+      UNSUBSCRIBE_CONVERSATION_RESPONSE = 41,
+      NEW_MESSAGE_EVENT = 42,
+      GET_MESSAGES_SINCE_REQUEST = 43,
+      GET_MESSAGES_SINCE_RESPONSE = 44,
+      // The same as RELAY_READ_REQUEST with a wait in milliseconds at the end. When
+      // there is nothing to read the relay holds on to the request until there is
+      // or the wait is over, then sends a RELAY_READ_RESPONSE.
+      RELAY_READ_WAIT_REQUEST = 45,
+      // Has the same fields as RELAY_READ_REQUEST. The relay then keeps sending
+      // RELAY_BUNDLES_EVENT values, each followed by a collection of bundles, for as
+      // long as the connection is open. An empty collection is sent every so often
+      // when nothing has arrived.
+      RELAY_SUBSCRIBE_REQUEST = 46,
+      RELAY_BUNDLES_EVENT = 47,
+      // Has the team id and secret, then a count, then that many user, conversation,
+      // and message components. The relay writes the bundles in order, stopping at
+      // the first one it cannot write, and answers with how many it wrote. A team
+      // it does not accept is answered with RELAY_UNAUTHORIZED_RESPONSE instead.
+      RELAY_WRITE_BATCH_REQUEST = 48,
+      RELAY_WRITE_BATCH_RESPONSE = 49,
+      // Has the same fields as RELAY_READ_REQUEST with the id of the team to read
+      // from after the secret. Answered with a RELAY_READ_RESPONSE holding only
+      // that team's bundles.
+      RELAY_READ_TEAM_REQUEST = 50,
+      // Sent by the relay in place of its usual answer when it does not accept the
+      // team id and secret, so the other side can tell that from an empty answer.
+      RELAY_UNAUTHORIZED_RESPONSE = 51,
+      // Sent by the relay in place of RELAY_BUNDLES_EVENT when it already has as
+      // many subscriptions as it will keep open. The connection is then closed.
+      RELAY_BUSY_RESPONSE = 52,
+      // Sent by a client on a new multiplexed connection to carry over the session
+      // it had on the one that was lost: its public key, the session id and the
+      // session key wrapped with the server's public key. The response holds one
+      // boolean saying whether the session was taken up.
+      SESSION_RESUME_REQUEST = 53,
+      SESSION_RESUME_RESPONSE = 54;
 }
@@ -133,4 +133,19 @@ public interface Relay {
   // was given Uuids.NULL.
   Collection<Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range);
 
+  // READ
+  //
+  // The same as the other "read" except that when there is nothing after the root,
+  // the relay waits up to "waitMs" for something to arrive before answering. This
+  // lets a server hear about new bundles as soon as they are written without asking
+  // over and over. A relay that cannot wait answers straight away.
+  Collection<Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range, long waitMs);
+
+  // READ TEAM
+  //
+  // The same as the first "read" except that only bundles written by "team" are
+  // returned. "teamId" and "teamSecret" are still the reader's own. The root may
+  // be the id of any bundle, from either kind of read.
+  Collection<Bundle> readTeam(Uuid teamId, byte[] teamSecret, Uuid team, Uuid root, int range);
+
 }
@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Collection;
 
 import codeu.chat.util.*;
 
@@ -70,10 +71,16 @@ public final class User {
     }
   };
 
+  // SERIALIZER already writes the fields as they are, so it is packed directly.
+  public static final EncryptedSerializer<Collection<User>> ENCRYPTED_COLLECTION_SERIALIZER =
+      EncryptedSerializers.envelope(Serializers.collection(SERIALIZER));
+
   public final Uuid id;
   public final String name;
   public final Time creation;
-  public Uuid token;
+  // Set once before the user is added to the model and checked by server threads
+  // that do not hold the model's lock.
+  public volatile Uuid token;
 
   public User(Uuid id, String name, Time creation) {
 
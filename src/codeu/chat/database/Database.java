@@ -3,18 +3,63 @@ package codeu.chat.database;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import codeu.chat.util.Logger;
 
 /**
  * Handles SQL database connections.
+ *
+ * The database is opened in WAL mode, where readers do not block the writer and
+ * the writer does not block readers. There is one connection for writing, which
+ * is shared, and a small pool of read-only connections that are lent out to one
+ * thread at a time, so that queries on different threads can run at once while
+ * writes stay serialized.
  */
 public class Database {
 
   private static final Logger.Log LOG = Logger.newLog(Database.class);
 
+  public static final int DEFAULT_READERS = 4;
+
+  // SQLite's result code for a write that would break a constraint. Extended
+  // codes, such as the one for a UNIQUE index, keep it in their low byte.
+  private static final int SQLITE_CONSTRAINT = 19;
+
+  // Applied to every connection. "synchronous=NORMAL" is safe in WAL mode: a
+  // power cut can lose the last commits, but cannot corrupt the database.
+  private static final String[] PRAGMAS = {
+    "PRAGMA synchronous = NORMAL",
+    "PRAGMA busy_timeout = 5000",
+    "PRAGMA cache_size = -16384",     // 16 MB of page cache
+    "PRAGMA mmap_size = 268435456",   // read through up to 256 MB of memory map
+    "PRAGMA temp_store = MEMORY"
+  };
+
   private final String dbPath;
-  private Connection connection;
+  private final int readers;
+
+  private Connection connection;  // guarded by "this"
+
+  // Read connections not lent out right now, and how many have been opened.
+  private final BlockingQueue<Connection> idleReaders = new LinkedBlockingQueue<Connection>();
+  private int openReaders = 0;  // guarded by idleReaders
+
+  /**
+   * Whether an error is SQLite refusing a write because it would break a
+   * constraint, such as a unique index.
+   *
+   * @param ex The error.
+   *
+   * @return True if the write broke a constraint.
+   */
+  public static boolean isConstraintViolation(SQLException ex) {
+    return (ex.getErrorCode() & 0xff) == SQLITE_CONSTRAINT;
+  }
 
   /**
    * Creates a database connection manager.
@@ -22,43 +67,165 @@ public class Database {
    * @param dbPath The path to the SQLite database.
    */
   public Database(String dbPath) {
-      this.dbPath = dbPath;
+    this(dbPath, DEFAULT_READERS);
   }
 
   /**
-   * Attempts to connect to the the database if needed.
-   * If the connection is closed or does not exist, the function will try
-   * to reconnect.
+   * Creates a database connection manager.
+   *
+   * @param dbPath The path to the SQLite database.
+   * @param readers The most read connections to open at once.
+   */
+  public Database(String dbPath, int readers) {
+    this.dbPath = dbPath;
+    this.readers = Math.max(1, readers);
+  }
+
+  /**
+   * Get the connection used for writing. It is shared by every thread, so
+   * anything that needs more than one statement to run together (such as a
+   * transaction) must hold the connection's lock.
+   * The function will reconnect if the connection has been closed.
+   *
+   * @return The write connection.
    */
-  private void connectIfRequired() {
+  public synchronized Connection getConnection() {
     try {
-      // If the connection is null or is closed, create a new one.
-      if (connection == null || !connection.isValid(0)) {
-        Class.forName("org.sqlite.JDBC");
-        connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", dbPath));
+      if (connection == null || connection.isClosed()) {
+        connection = open(false);
       }
-
-      // Return early.
-      return;
-    } catch (ClassNotFoundException ex) {
-      LOG.error(ex, "Database failed to connect.");
     } catch (SQLException ex) {
       LOG.error(ex, "Database failed to connect.");
+      System.exit(1);
     }
+    return connection;
+  }
 
-    // Failed to connect, so end the program.
-    System.exit(1);
+  /**
+   * Borrow a read-only connection. It belongs to the calling thread until it is
+   * given back with releaseReadConnection, which must always happen. Waits if
+   * every read connection is in use.
+   *
+   * @return A read connection.
+   */
+  public Connection getReadConnection() {
+    Connection reader = idleReaders.poll();
+    if (reader != null) {
+      return reader;
+    }
+
+    boolean openNew;
+    synchronized (idleReaders) {
+      openNew = openReaders < readers;
+      if (openNew) {
+        openReaders += 1;
+      }
+    }
+
+    if (openNew) {
+      // The write connection is what puts the database in WAL mode, so make sure
+      // it is open first.
+      getConnection();
+      return open(true);
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return idleReaders.take();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   /**
-   * Get the current database connection.
-   * The function will attempt to reconnect if necessary.
+   * Give back a connection from getReadConnection.
    *
-   * @return The current database connection.
+   * @param reader The connection.
    */
-  public Connection getConnection() {
-    connectIfRequired();
-    return connection;
+  public void releaseReadConnection(Connection reader) {
+    boolean closed;
+    try {
+      closed = reader.isClosed();
+    } catch (SQLException ex) {
+      closed = true;
+    }
+
+    if (closed) {
+      // Let a new one be opened in its place.
+      synchronized (idleReaders) {
+        openReaders -= 1;
+      }
+    } else {
+      idleReaders.add(reader);
+    }
+  }
+
+  /**
+   * Close every connection that is not lent out.
+   */
+  public synchronized void close() {
+    List<Connection> toClose = new ArrayList<Connection>();
+    idleReaders.drainTo(toClose);
+    synchronized (idleReaders) {
+      openReaders -= toClose.size();
+    }
+    if (connection != null) {
+      toClose.add(connection);
+      connection = null;
+    }
+    for (Connection open : toClose) {
+      try {
+        open.close();
+      } catch (SQLException ex) {
+        LOG.error(ex, "Failed to close database connection.");
+      }
+    }
+  }
+
+  /**
+   * Opens and sets up a connection. Failing to connect ends the program.
+   *
+   * @param readOnly Whether the connection is only for reading.
+   *
+   * @return The connection.
+   */
+  private Connection open(boolean readOnly) {
+    try {
+      Class.forName("org.sqlite.JDBC");
+      Connection opened = DriverManager.getConnection(String.format("jdbc:sqlite:%s", dbPath));
+
+      try (Statement stmt = opened.createStatement()) {
+        // The journal mode is kept in the database file, but setting it again
+        // does no harm and covers a database created before this.
+        if (!readOnly) {
+          stmt.execute("PRAGMA journal_mode = WAL");
+        }
+        for (String pragma : PRAGMAS) {
+          stmt.execute(pragma);
+        }
+        if (readOnly) {
+          stmt.execute("PRAGMA query_only = 1");
+        }
+      }
+
+      return opened;
+    } catch (ClassNotFoundException ex) {
+      LOG.error(ex, "Database failed to connect.");
+    } catch (SQLException ex) {
+      LOG.error(ex, "Database failed to connect.");
+    }
+
+    // Failed to connect, so end the program.
+    System.exit(1);
+    return null;
   }
 
 }
@@ -0,0 +1,25 @@
+package codeu.chat.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a query's results into an object, reading each
+ * column with the getter for its type (getInt, getLong, getString and so on).
+ * Unlike a DBObject, no map of the row's fields is built.
+ */
+public interface RowMapper<T> {
+
+  /**
+   * Read the current row.
+   *
+   * @param row The results, already moved to the row to read. Implementations
+   *            should not move it.
+   *
+   * @return The object for the row.
+   *
+   * @throws SQLException If a SQL error occurs.
+   */
+  T map(ResultSet row) throws SQLException;
+
+}
@@ -4,7 +4,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import codeu.chat.util.Logger;
 
@@ -16,12 +19,16 @@ public abstract class Schema {
   private static final Logger.Log LOG = Logger.newLog(Schema.class);
 
   private final Map<String, String> fields;
+  private final Map<String, String> indexes;
+  private final Set<String> uniqueIndexes;
 
   /**
    * Creates a schema.
    */
   public Schema() {
     this.fields = new HashMap<String, String>();
+    this.indexes = new LinkedHashMap<String, String>();
+    this.uniqueIndexes = new HashSet<String>();
   }
 
   /**
@@ -35,6 +42,60 @@ public abstract class Schema {
     fields.put(name, props);
   }
 
+  /**
+   * Add an index to the schema. The table's name is put in front of the index's
+   * name when it is created, so the same schema can be used for more than one
+   * table.
+   *
+   * @param name The name of the index.
+   * @param columns What to index, in order. These can be expressions, such as
+   *                "LOWER(username)" or "username COLLATE NOCASE"; SQLite only
+   *                uses an expression index for a query that uses the very same
+   *                expression.
+   */
+  protected void addIndex(String name, String... columns) {
+    StringBuilder joined = new StringBuilder();
+    for (String column : columns) {
+      if (joined.length() > 0) {
+        joined.append(", ");
+      }
+      joined.append(column);
+    }
+    indexes.put(name, joined.toString());
+  }
+
+  /**
+   * Add an index that no two rows may share a value in. Inserting a row that
+   * would fails with a constraint violation (see Database.isConstraintViolation).
+   *
+   * @param name The name of the index.
+   * @param columns What to index, as for addIndex.
+   */
+  protected void addUniqueIndex(String name, String... columns) {
+    addIndex(name, columns);
+    uniqueIndexes.add(name);
+  }
+
+  /**
+   * Whether an index in the schema is unique.
+   *
+   * @param name The name of the index.
+   *
+   * @return True if the index was added with addUniqueIndex.
+   */
+  public boolean isUnique(String name) {
+    return uniqueIndexes.contains(name);
+  }
+
+  /**
+   * Get the indexes in the schema.
+   *
+   * @return The indexes, by name, with the columns each one covers.
+   */
+  public Map<String, String> getIndexes() {
+    return indexes;
+  }
+
   /**
    * Get the fields in the schema.
    *
@@ -45,8 +106,8 @@ public abstract class Schema {
   }
 
   /**
-   * Create a table with this schema.
-   * If the table already exists, does nothing.
+   * Create a table with this schema, along with its indexes.
+   * If the table already exists, only adds any indexes it is missing.
    *
    * @param name The name of the table.
    * @param database The database to create the table in.
@@ -66,12 +127,30 @@ public abstract class Schema {
     }
     String query = String.format("CREATE TABLE IF NOT EXISTS %s (%s)", name, fields.toString());
 
-    // Run the update.
-    try (PreparedStatement stmt = connection.prepareStatement(query)) {
-      stmt.executeUpdate();
-    } catch (SQLException ex) {
-      LOG.error(ex, "Failed to create table.");
-	  throw ex;
+    // The write connection is shared, so hold it to keep these out of anyone
+    // else's transaction.
+    synchronized (connection) {
+      // Run the update.
+      try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        stmt.executeUpdate();
+      } catch (SQLException ex) {
+        LOG.error(ex, "Failed to create table.");
+        throw ex;
+      }
+
+      // Create the indexes. Like the table, ones that already exist are left alone.
+      for (Map.Entry<String, String> entry : indexes.entrySet()) {
+        String index = String.format(
+            "CREATE %sINDEX IF NOT EXISTS %s_%s ON %s (%s)",
+            isUnique(entry.getKey()) ? "UNIQUE " : "",
+            name, entry.getKey(), name, entry.getValue());
+        try (PreparedStatement stmt = connection.prepareStatement(index)) {
+          stmt.executeUpdate();
+        } catch (SQLException ex) {
+          LOG.error(ex, "Failed to create index.");
+          throw ex;
+        }
+      }
     }
   }
 
@@ -0,0 +1,99 @@
+package codeu.chat.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import codeu.chat.util.Logger;
+
+/**
+ * Keeps the prepared statements of one table so that each SQL string is only
+ * parsed once per connection.
+ *
+ * A statement belongs to the connection it was prepared on. Statements on a read
+ * connection are only used by the thread that has borrowed it, but statements
+ * on the shared write connection can be reached from any thread, so callers must
+ * hold the write connection's lock while using them.
+ */
+final class StatementCache {
+
+  private static final Logger.Log LOG = Logger.newLog(StatementCache.class);
+
+  // guarded by "this"
+  private final Map<Connection, Map<String, PreparedStatement>> statements =
+      new IdentityHashMap<Connection, Map<String, PreparedStatement>>();
+
+  /**
+   * Get the prepared statement for some SQL, preparing it if needed.
+   *
+   * @param connection The connection to run the statement on.
+   * @param sql The SQL.
+   * @param generatedKeys Whether the statement should return generated keys.
+   *
+   * @return The prepared statement.
+   *
+   * @throws SQLException If a SQL error occurs.
+   */
+  public synchronized PreparedStatement get(Connection connection, String sql, boolean generatedKeys)
+      throws SQLException {
+
+    Map<String, PreparedStatement> prepared = statements.get(connection);
+    if (prepared == null) {
+      // A connection that has been closed will not be asked for again.
+      forgetClosed();
+      prepared = new HashMap<String, PreparedStatement>();
+      statements.put(connection, prepared);
+    }
+
+    // Statements that return generated keys are prepared differently, so they
+    // are kept apart from the same SQL without them.
+    final String key = generatedKeys ? "+" + sql : sql;
+
+    PreparedStatement statement = prepared.get(key);
+    if (statement == null) {
+      statement = generatedKeys ?
+          connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+          connection.prepareStatement(sql);
+      prepared.put(key, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Close and forget every statement.
+   */
+  public synchronized void clear() {
+    for (Map<String, PreparedStatement> prepared : statements.values()) {
+      close(prepared);
+    }
+    statements.clear();
+  }
+
+  private void forgetClosed() {
+    for (Connection connection : statements.keySet().toArray(new Connection[0])) {
+      boolean closed;
+      try {
+        closed = connection.isClosed();
+      } catch (SQLException ex) {
+        closed = true;
+      }
+      if (closed) {
+        close(statements.remove(connection));
+      }
+    }
+  }
+
+  private static void close(Map<String, PreparedStatement> prepared) {
+    for (PreparedStatement statement : prepared.values()) {
+      try {
+        statement.close();
+      } catch (SQLException ex) {
+        LOG.error(ex, "Failed to close statement.");
+      }
+    }
+  }
+}
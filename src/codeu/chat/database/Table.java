@@ -4,10 +4,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +24,11 @@ public abstract class Table<S extends Schema> {
   private final Database database;
   private final String name;
 
+  // Statements are prepared once per SQL string and connection and kept. Queries
+  // built from the same fields produce the same SQL, so repeated lookups reuse
+  // one statement.
+  private final StatementCache statements;
+
   /**
    * Creates a table with a given schema in the given database with a given name.
    *
@@ -37,6 +42,7 @@ public abstract class Table<S extends Schema> {
     this.schema = schema;
     this.database = database;
     this.name = name;
+    this.statements = new StatementCache();
 
     // Create the table.
     schema.createTable(name, database);
@@ -48,6 +54,7 @@ public abstract class Table<S extends Schema> {
    * @throws SQLException If a SQL error occurs.
    */
   public void destroy() throws SQLException {
+    statements.clear();
     schema.dropTable(name, database);
   }
 
@@ -80,13 +87,15 @@ public abstract class Table<S extends Schema> {
    * @throws SQLException If a SQL error occurs.
    */
   public List<DBObject<S>> findQuery(String query, String... values) throws SQLException {
-    Connection connection = database.getConnection();
-
     List<DBObject<S>> objects = new ArrayList<DBObject<S>>();
 
     // Run a query in the database.
-    String sqlQuery = String.format("SELECT * FROM %s WHERE %s", name, query);
-    try (PreparedStatement stmt = connection.prepareStatement(sqlQuery)) {
+    String sqlQuery = "SELECT * FROM " + name + " WHERE " + query;
+    // Queries run on a read connection of their own, so they do not wait for
+    // writes or for each other.
+    Connection connection = database.getReadConnection();
+    try {
+      PreparedStatement stmt = statements.get(connection, sqlQuery, false);
       int i = 1;
       for (String value : values) {
         stmt.setString(i ++, value);
@@ -112,12 +121,58 @@ public abstract class Table<S extends Schema> {
     } catch (SQLException ex) {
       LOG.error("Failed to query database: ", ex.getMessage());
       throw ex;
+    } finally {
+      database.releaseReadConnection(connection);
     }
 
     // Return the found objects.
     return objects;
   }
 
+  /**
+   * Find rows with a given query and turn each into an object.
+   *
+   * @param query The query, which may end with an ORDER BY.
+   * @param mapper Reads each row.
+   * @param values The values for the query. Integers and Longs are bound as
+   *               numbers and anything else as text.
+   *
+   * @return The objects for the rows found, in the order they were returned.
+   *
+   * @throws SQLException If a SQL error occurs.
+   */
+  public <T> List<T> query(String query, RowMapper<T> mapper, Object... values) throws SQLException {
+    List<T> objects = new ArrayList<T>();
+
+    String sqlQuery = "SELECT * FROM " + name + " WHERE " + query;
+    Connection connection = database.getReadConnection();
+    try {
+      PreparedStatement stmt = statements.get(connection, sqlQuery, false);
+      int i = 1;
+      for (Object value : values) {
+        if (value instanceof Integer) {
+          stmt.setInt(i ++, (Integer) value);
+        } else if (value instanceof Long) {
+          stmt.setLong(i ++, (Long) value);
+        } else {
+          stmt.setString(i ++, value == null ? null : value.toString());
+        }
+      }
+      try (ResultSet results = stmt.executeQuery()) {
+        while (results.next()) {
+          objects.add(mapper.map(results));
+        }
+      }
+    } catch (SQLException ex) {
+      LOG.error("Failed to query database: ", ex.getMessage());
+      throw ex;
+    } finally {
+      database.releaseReadConnection(connection);
+    }
+
+    return objects;
+  }
+
   /**
    * Find objects with given fields and values.
    *
@@ -132,7 +187,7 @@ public abstract class Table<S extends Schema> {
     StringBuilder query = new StringBuilder();
     int numFields = parameters.size();
     for (String field : parameters.keySet()) {
-      query.append(String.format("%s = ?", field));
+      query.append(field).append(" = ?");
       numFields --;
       if (numFields > 0) {
         query.append(" AND ");
@@ -157,11 +212,17 @@ public abstract class Table<S extends Schema> {
       throw new IllegalArgumentException("Odd number of arguments given to find().");
     }
 
-    Map<String, String> fields = new HashMap<String, String>();
+    // Build the query straight from the pairs rather than through a map.
+    StringBuilder query = new StringBuilder();
+    String[] values = new String[pairs.length / 2];
     for (int i = 0; i < pairs.length; i += 2) {
-      fields.put(pairs[i], pairs[i + 1]);
+      if (i > 0) {
+        query.append(" AND ");
+      }
+      query.append(pairs[i]).append(" = ?");
+      values[i / 2] = pairs[i + 1];
     }
-    return find(fields);
+    return findQuery(query.toString(), values);
   }
 
   /**
@@ -182,6 +243,27 @@ public abstract class Table<S extends Schema> {
     }
   }
 
+  /**
+   * Get the largest ID in the table.
+   *
+   * @return The largest ID, or 0 if the table is empty.
+   *
+   * @throws SQLException If a SQL error occurs.
+   */
+  public int maxId() throws SQLException {
+    Connection connection = database.getConnection();
+
+    String query = String.format("SELECT MAX(_id) FROM %s", name);
+    try (PreparedStatement stmt = connection.prepareStatement(query);
+         ResultSet results = stmt.executeQuery()) {
+      // MAX of an empty table is NULL, which getInt reads as 0.
+      return results.next() ? results.getInt(1) : 0;
+    } catch (SQLException ex) {
+      LOG.error("Failed to query database: ", ex.getMessage());
+      throw ex;
+    }
+  }
+
   /**
    * Create a new object in the database.
    *
@@ -194,35 +276,70 @@ public abstract class Table<S extends Schema> {
   public int create(Map<String, String> fields) throws SQLException {
     Connection connection = database.getConnection();
 
-    // Get the field names and values.
-    StringBuilder names = new StringBuilder();
-    StringBuilder values = new StringBuilder();
-    int numFields = fields.size();
-    for (String field : fields.keySet()) {
-      names.append(field);
-      values.append("?");
-      if (-- numFields > 0) {
-        names.append(", ");
-        values.append(", ");
+    // Run an update to create the object.
+    String query = insertQuery(fields);
+    // The generated key is read back from the connection, so hold the connection
+    // until it has been read in case another thread is also inserting.
+    synchronized (connection) {
+      try {
+        PreparedStatement stmt = statements.get(connection, query, true);
+        int i = 1;
+        for (String value : fields.values()) {
+          stmt.setString(i ++, value);
+        }
+        stmt.executeUpdate();
+        try (ResultSet results = stmt.getGeneratedKeys()) {
+          return results.getInt(1);
+        }
+      } catch (SQLException ex) {
+        LOG.error("Failed to update database: ", ex.getMessage());
+        throw ex;
       }
     }
+  }
 
-    // Run an update to create the object.
-    String query = String.format(
-      "INSERT INTO %s (%s) VALUES (%s)",
-      name, names.toString(), values.toString());
-    try (PreparedStatement stmt = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-      int i = 1;
-      for (String value : fields.values()) {
-        stmt.setString(i ++, value);
-      }
-      stmt.executeUpdate();
-      try (ResultSet results = stmt.getGeneratedKeys()) {
-        return results.getInt(1);
+  /**
+   * Create many new objects in the database, sending them in batches rather
+   * than one at a time. Objects with the same set of fields are created in the
+   * order given. This does not start a transaction of its own; callers that want
+   * the objects committed together should do so around it.
+   *
+   * @param rows The fields of each object.
+   *
+   * @throws SQLException If a SQL error occurs.
+   */
+  public void createAll(List<Map<String, String>> rows) throws SQLException {
+    Connection connection = database.getConnection();
+
+    synchronized (connection) {
+      // One batch per distinct set of fields, run in the order first seen.
+      Map<String, PreparedStatement> batches = new LinkedHashMap<String, PreparedStatement>();
+      try {
+        for (Map<String, String> fields : rows) {
+          String query = insertQuery(fields);
+          PreparedStatement stmt = batches.get(query);
+          if (stmt == null) {
+            stmt = statements.get(connection, query, false);
+            batches.put(query, stmt);
+          }
+          int i = 1;
+          for (String value : fields.values()) {
+            stmt.setString(i ++, value);
+          }
+          stmt.addBatch();
+        }
+        for (PreparedStatement stmt : batches.values()) {
+          stmt.executeBatch();
+        }
+      } catch (SQLException | RuntimeException ex) {
+        // The statements are cached, so rows added before the failure must not
+        // be left in their batches for the next caller.
+        LOG.error("Failed to update database: ", ex.getMessage());
+        for (PreparedStatement stmt : batches.values()) {
+          stmt.clearBatch();
+        }
+        throw ex;
       }
-    } catch (SQLException ex) {
-      LOG.error("Failed to update database: ", ex.getMessage());
-      throw ex;
     }
   }
 
@@ -235,30 +352,33 @@ public abstract class Table<S extends Schema> {
    * @throws SQLException If a SQL error occurs.
    */
   public void update(int id, Map<String, String> fields) throws SQLException {
-    Connection connection = database.getConnection();
-
     // Build the query.
-    StringBuilder updates = new StringBuilder();
+    StringBuilder query = new StringBuilder("UPDATE ").append(name).append(" SET ");
     int numFields = fields.size();
     for (String field : fields.keySet()) {
-      updates.append(String.format("%s = ?", field));
+      query.append(field).append(" = ?");
       if (-- numFields > 0) {
-        updates.append(", ");
+        query.append(", ");
       }
     }
+    query.append(" WHERE _id = ?");
 
-    // Run the query to update the object.
-    String query = String.format("UPDATE %s SET %s WHERE _id = ?", name, updates.toString());
-    try (PreparedStatement stmt = connection.prepareStatement(query)) {
-      int i = 1;
-      for (String value : fields.values()) {
-        stmt.setString(i ++, value);
+    // Run the query to update the object. Writes all go through the one write
+    // connection, one at a time.
+    Connection connection = database.getConnection();
+    synchronized (connection) {
+      try {
+        PreparedStatement stmt = statements.get(connection, query.toString(), false);
+        int i = 1;
+        for (String value : fields.values()) {
+          stmt.setString(i ++, value);
+        }
+        stmt.setInt(i, id);
+        stmt.executeUpdate();
+      } catch (SQLException ex) {
+        LOG.error("Failed to update database: ", ex.getMessage());
+        throw ex;
       }
-      stmt.setInt(i, id);
-      stmt.executeUpdate();
-    } catch (SQLException ex) {
-      LOG.error("Failed to update database: ", ex.getMessage());
-      throw ex;
     }
   }
 
@@ -270,17 +390,34 @@ public abstract class Table<S extends Schema> {
    * @throws SQLException If a SQL error occurs.
    */
   public void remove(int id) throws SQLException {
-    Connection connection = database.getConnection();
-
     // Run the query to remove the object.
-    String query = String.format("DELETE FROM %s WHERE _id = ?", name);
-    try (PreparedStatement stmt = connection.prepareStatement(query)) {
-      stmt.setInt(1, id);
-      stmt.executeUpdate();
-    } catch (SQLException ex) {
-      LOG.error("Failed to update database: ", ex.getMessage());
-      throw ex;
+    Connection connection = database.getConnection();
+    synchronized (connection) {
+      try {
+        PreparedStatement stmt = statements.get(connection, "DELETE FROM " + name + " WHERE _id = ?", false);
+        stmt.setInt(1, id);
+        stmt.executeUpdate();
+      } catch (SQLException ex) {
+        LOG.error("Failed to update database: ", ex.getMessage());
+        throw ex;
+      }
     }
   }
 
+  // The INSERT for a set of fields. The same fields in a map of the same kind
+  // always give the same string, which is what the statement cache is keyed by.
+  private String insertQuery(Map<String, String> fields) {
+    StringBuilder names = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    int numFields = fields.size();
+    for (String field : fields.keySet()) {
+      names.append(field);
+      values.append("?");
+      if (-- numFields > 0) {
+        names.append(", ");
+        values.append(", ");
+      }
+    }
+    return "INSERT INTO " + name + " (" + names + ") VALUES (" + values + ")";
+  }
 }
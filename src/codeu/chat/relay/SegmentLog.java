@@ -0,0 +1,427 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import codeu.chat.util.Logger;
+
+// SEGMENT LOG
+//
+// An append-only log of entries, each given the next id in a sequence that starts
+// at 1. Entries are written into segments - fixed size buffers that are filled one
+// after another. On disk each segment is a file that is memory-mapped, named after
+// the id of its first entry, so the log is still there after a restart and ids carry
+// on from where they stopped.
+//
+// Every segment keeps the offset of each of its entries. As ids are handed out in
+// order, finding an entry is a binary search for its segment and then a lookup in
+// that segment's offsets, so reading "k" entries after an id costs O(log n + k)
+// no matter how long the log is.
+//
+// Old entries are dropped by retention:
+//   - "maxEntries" keeps at most that many of the newest entries.
+//   - "maxBytes" drops the oldest segments once all segments together are larger.
+//   - "maxAgeMs" drops the oldest segments once everything in them is older.
+// A limit of zero (or less) is no limit. Size and age drop whole segments, and the
+// segment being written to is never dropped.
+//
+// One thread may append at a time. Reads and flushes do not lock and may run
+// alongside appends.
+public final class SegmentLog {
+
+  private final static Logger.Log LOG = Logger.newLog(SegmentLog.class);
+
+  // Each entry starts with its payload length, id, and time. The length is written
+  // last so an entry that was only part way written when the process died reads as
+  // the end of the log.
+  private static final int HEADER_BYTES = 4 + 4 + 8;
+
+  private static final String SUFFIX = ".log";
+
+  // ENTRY
+  //
+  // One entry read back from the log.
+  public static final class Entry {
+
+    public final int id;
+    public final long time;
+    public final byte[] payload;
+
+    private Entry(int id, long time, byte[] payload) {
+      this.id = id;
+      this.time = time;
+      this.payload = payload;
+    }
+  }
+
+  private static final class Segment {
+
+    final File file;  // null when the log is kept in memory
+    final ByteBuffer buffer;
+    final int firstId;
+
+    // Only the appending thread changes these. "offsets" and "times" are replaced
+    // before "count" is raised so a reader that sees the new count also sees an
+    // array that holds the new entry.
+    volatile int[] offsets = new int[64];
+    volatile long[] times = new long[64];
+    volatile int count;
+    int position;
+
+    Segment(File file, ByteBuffer buffer, int firstId) {
+      this.file = file;
+      this.buffer = buffer;
+      this.firstId = firstId;
+    }
+
+    int lastId() { return firstId + count - 1; }
+
+    long lastTime() { return count == 0 ? Long.MAX_VALUE : times[count - 1]; }
+
+    void index(int offset, long time) {
+      final int at = count;
+      if (at == offsets.length) {
+        times = Arrays.copyOf(times, at * 2);
+        offsets = Arrays.copyOf(offsets, at * 2);
+      }
+      times[at] = time;
+      offsets[at] = offset;
+      count = at + 1;
+    }
+  }
+
+  private final File directory;  // null when the log is kept in memory
+  private final int segmentBytes;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long maxAgeMs;
+
+  // Oldest first. Replaced, never changed, so readers can use whatever copy they see.
+  private volatile Segment[] segments = new Segment[0];
+
+  // The oldest id that can still be read. Segments before it are dropped.
+  private volatile int firstId = 1;
+  private int nextId = 1;
+
+  private SegmentLog(File directory, int segmentBytes, int maxEntries, long maxBytes, long maxAgeMs) {
+    this.directory = directory;
+    this.segmentBytes = Math.max(HEADER_BYTES, segmentBytes);
+    this.maxEntries = Math.max(0, maxEntries);
+    this.maxBytes = Math.max(0, maxBytes);
+    this.maxAgeMs = Math.max(0, maxAgeMs);
+  }
+
+  // OPEN
+  //
+  // Open the log kept in "directory", creating it if needed, and index everything
+  // already in it.
+  public static SegmentLog open(File directory,
+                                int segmentBytes,
+                                int maxEntries,
+                                long maxBytes,
+                                long maxAgeMs) throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create log directory " + directory);
+    }
+
+    final SegmentLog log = new SegmentLog(directory, segmentBytes, maxEntries, maxBytes, maxAgeMs);
+    log.recover();
+    return log;
+  }
+
+  // IN MEMORY
+  //
+  // A log that is not backed by files and is gone when the process exits.
+  public static SegmentLog inMemory(int segmentBytes, int maxEntries) {
+    return new SegmentLog(null, segmentBytes, maxEntries, 0, 0);
+  }
+
+  // The id of the oldest entry still in the log.
+  public int first() { return firstId; }
+
+  // The id of the newest entry in the log, or first() - 1 when it is empty.
+  public int last() {
+    final Segment[] current = segments;
+    return current.length == 0 ? firstId - 1 : current[current.length - 1].lastId();
+  }
+
+  // APPEND
+  //
+  // Add an entry to the end of the log and return its id.
+  public synchronized int append(long time, byte[] payload) throws IOException {
+
+    final int size = HEADER_BYTES + payload.length;
+
+    Segment segment = segments.length == 0 ? null : segments[segments.length - 1];
+    if (segment == null || segment.position + size > segment.buffer.capacity()) {
+      segment = roll(Math.max(segmentBytes, size));
+    }
+
+    final int id = nextId;
+    final int offset = segment.position;
+
+    final ByteBuffer out = segment.buffer.duplicate();
+    out.position(offset + 4);
+    out.putInt(id);
+    out.putLong(time);
+    out.put(payload);
+    out.putInt(offset, payload.length);
+
+    segment.position = offset + size;
+    segment.index(offset, time);
+    nextId = id + 1;
+
+    retain(time);
+
+    return id;
+  }
+
+  // READ
+  //
+  // Read up to "limit" entries that come after "after". If "after" is not in the
+  // log (it was dropped, or is from before a reset) reading starts from the oldest
+  // entry.
+  public List<Entry> read(int after, int limit) {
+
+    final List<Entry> found = new ArrayList<>();
+    final Segment[] current = segments;
+    final int first = firstId;
+
+    if (current.length == 0 || limit <= 0) {
+      return found;
+    }
+
+    final int last = current[current.length - 1].lastId();
+    int id = after >= first && after <= last ? after + 1 : first;
+
+    for (int s = find(current, id); s >= 0 && s < current.length && found.size() < limit; s++) {
+
+      final Segment segment = current[s];
+      final int count = segment.count;
+      final int[] offsets = segment.offsets;
+      final long[] times = segment.times;
+      final ByteBuffer in = segment.buffer.duplicate();
+
+      for (int i = Math.max(0, id - segment.firstId); i < count && found.size() < limit; i++) {
+        found.add(entry(in, segment.firstId + i, offsets[i], times[i]));
+      }
+
+      id = segment.firstId + count;
+    }
+
+    return found;
+  }
+
+  // GET
+  //
+  // The entry with the given id, or null if it is not in the log.
+  public Entry get(int id) {
+
+    final Segment[] current = segments;
+
+    if (current.length == 0 || id < firstId) {
+      return null;
+    }
+
+    final Segment segment = current[find(current, id)];
+    final int count = segment.count;
+    final int[] offsets = segment.offsets;
+    final long[] times = segment.times;
+    final int i = id - segment.firstId;
+
+    return i >= 0 && i < count ?
+        entry(segment.buffer.duplicate(), id, offsets[i], times[i]) :
+        null;
+  }
+
+  // FLUSH
+  //
+  // Write everything appended so far through to disk. This does not hold up appends.
+  public void flush() {
+    for (final Segment segment : segments) {
+      if (segment.buffer instanceof MappedByteBuffer) {
+        ((MappedByteBuffer) segment.buffer).force();
+      }
+    }
+  }
+
+  public synchronized void close() {
+    flush();
+    LOG.info("Closed relay log (first=%d last=%d segments=%d).", first(), last(), segments.length);
+  }
+
+  private static Entry entry(ByteBuffer in, int id, int offset, long time) {
+    final byte[] payload = new byte[in.getInt(offset)];
+    in.position(offset + HEADER_BYTES);
+    in.get(payload);
+    return new Entry(id, time, payload);
+  }
+
+  // The index of the last segment whose first id is at or before "id".
+  private static int find(Segment[] segments, int id) {
+    int low = 0;
+    int high = segments.length - 1;
+    while (low < high) {
+      final int middle = (low + high + 1) >>> 1;
+      if (segments[middle].firstId <= id) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  private Segment roll(int capacity) throws IOException {
+
+    final Segment segment = directory == null ?
+        new Segment(null, ByteBuffer.allocate(capacity), nextId) :
+        map(new File(directory, String.format("%010d%s", nextId, SUFFIX)), capacity, nextId);
+
+    final Segment[] next = Arrays.copyOf(segments, segments.length + 1);
+    next[next.length - 1] = segment;
+    segments = next;
+
+    return segment;
+  }
+
+  // Drop whatever retention no longer allows, oldest first.
+  private void retain(long now) {
+
+    if (maxEntries > 0) {
+      firstId = Math.max(firstId, nextId - maxEntries);
+    }
+
+    long bytes = 0;
+    for (final Segment segment : segments) {
+      bytes += segment.buffer.capacity();
+    }
+
+    while (segments.length > 1) {
+
+      final Segment oldest = segments[0];
+
+      final boolean drop = oldest.lastId() < firstId ||
+                           (maxBytes > 0 && bytes > maxBytes) ||
+                           (maxAgeMs > 0 && oldest.lastTime() < now - maxAgeMs);
+
+      if (!drop) {
+        break;
+      }
+
+      bytes -= oldest.buffer.capacity();
+      segments = Arrays.copyOfRange(segments, 1, segments.length);
+      firstId = Math.max(firstId, segments[0].firstId);
+
+      if (oldest.file != null && !oldest.file.delete()) {
+        LOG.warning("Failed to delete relay log segment %s", oldest.file);
+      }
+    }
+  }
+
+  // Map and index every segment file in the directory. Reading a segment stops at
+  // the first entry that is incomplete or out of sequence.
+  private void recover() throws IOException {
+
+    final File[] files = directory.listFiles();
+    final List<File> found = new ArrayList<>();
+    if (files != null) {
+      for (final File file : files) {
+        if (file.isFile() && file.getName().endsWith(SUFFIX)) {
+          found.add(file);
+        }
+      }
+    }
+
+    final File[] sorted = found.toArray(new File[found.size()]);
+    Arrays.sort(sorted);  // names are zero-padded first ids
+
+    final List<Segment> recovered = new ArrayList<>();
+
+    for (final File file : sorted) {
+
+      final int segmentFirst;
+      try {
+        final String name = file.getName();
+        segmentFirst = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+      } catch (NumberFormatException ex) {
+        LOG.warning("Skipping unexpected file in relay log %s", file);
+        continue;
+      }
+
+      if (!recovered.isEmpty() && segmentFirst != nextId) {
+        LOG.warning("Relay log has a gap before %s, dropping older segments.", file);
+        for (final Segment segment : recovered) {
+          segment.file.delete();
+        }
+        recovered.clear();
+      }
+
+      final Segment segment = map(file, (int) Math.min(Integer.MAX_VALUE, file.length()), segmentFirst);
+      final ByteBuffer in = segment.buffer;
+
+      int position = 0;
+      while (position + HEADER_BYTES <= in.capacity()) {
+        final int length = in.getInt(position);
+        if (length <= 0 ||
+            position + HEADER_BYTES + length > in.capacity() ||
+            in.getInt(position + 4) != segmentFirst + segment.count) {
+          break;
+        }
+        segment.index(position, in.getLong(position + 8));
+        position += HEADER_BYTES + length;
+      }
+      segment.position = position;
+
+      recovered.add(segment);
+      firstId = recovered.get(0).firstId;
+      nextId = segment.firstId + segment.count;
+    }
+
+    segments = recovered.toArray(new Segment[recovered.size()]);
+
+    if (maxEntries > 0 && segments.length > 0) {
+      firstId = Math.max(firstId, nextId - maxEntries);
+    }
+
+    LOG.info("Opened relay log %s (first=%d last=%d segments=%d).",
+             directory,
+             first(),
+             last(),
+             segments.length);
+
+    retain(System.currentTimeMillis());
+  }
+
+  private static Segment map(File file, int capacity, int firstId) throws IOException {
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() < capacity) {
+        raf.setLength(capacity);
+      }
+      final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      return new Segment(file, buffer, firstId);
+    }
+  }
+}
@@ -14,19 +14,21 @@
 
 package codeu.chat.relay;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Relay;
 import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
-import codeu.chat.util.Logger;
 import codeu.chat.util.Uuid;
 
 public final class Server implements Relay {
@@ -101,30 +103,91 @@ public final class Server implements Relay {
 
   }
 
-  private final Queue<Relay.Bundle> history = new LinkedList<>();
-  private final Map<Uuid, byte[]> teamSecrets = new HashMap<>();
+  // PARTITION
+  //
+  // The ids of one team's bundles in the history, oldest first. Bundles are added
+  // one at a time while holding the partition (see write) and readers take the
+  // current slice without locking. A slice's array is only ever added to past its
+  // count, or replaced, so a reader always sees the ids it was given.
+  private static final class Partition {
 
-  private final int maxHistory;
-  private final int maxRead;
+    private static final class Slice {
 
-  // Okay, some reasoning behind why I'm using a statically initialized linear
-  // generator for the ids for the relay server.
-  //
-  //   Point A : The ids only need to be uniqiue for a single run time of the
-  //             relay. Ids from the relay are only used as a position into its
-  //             history. If it repeats an id its not a problem.
-  //
-  //   Point B : The chance that the history would be so long that an id could
-  //             be reused and appear along side's twin is way too small. The
-  //             range for the ids is 1 to MAX INT (32 bit signed). This means
-  //             that there would need to be 2147483646 messages in memory. If
-  //             each message was 160 bytes long the relay server would need
-  //             over 319 GB of ram.
-  //
-  // As a side note, the ids start at 1 and not 0 to avoid the first id from
-  // matching the NULL id which is defined as (null, 0);
+      final int[] ids;
+      final int count;
+
+      Slice(int[] ids, int count) {
+        this.ids = ids;
+        this.count = count;
+      }
+    }
+
+    private volatile Slice slice = new Slice(new int[16], 0);
+
+    // Add "id" to the end. "first" is the oldest id the history still has; when the
+    // array is full anything older is left behind rather than copied.
+    void add(int id, int first) {
+
+      final Slice current = slice;
+      int[] ids = current.ids;
+      int count = current.count;
+
+      if (count == ids.length) {
+        final int start = after(current, first - 1);
+        final int live = count - start;
+        ids = Arrays.copyOfRange(ids, start, start + Math.max(16, live * 2));
+        count = live;
+      }
+
+      ids[count] = id;
+      slice = new Slice(ids, count + 1);
+    }
+
+    // The index of the first id in "slice" that is greater than "id".
+    static int after(Slice slice, int id) {
+      int low = 0;
+      int high = slice.count;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (slice.ids[middle] <= id) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+
+  // In-memory logs are split into segments of this size.
+  private static final int MEMORY_SEGMENT_BYTES = 64 * 1024;
+
+  // The longest a read will wait for new bundles, whatever it asks for.
+  private static final long MAX_WAIT_MS = 30000;  // 30 seconds
+
+  // How many bundles to read at a time when indexing the history on start-up.
+  private static final int INDEX_BATCH = 1024;
+
+  // Every bundle from every team, in the order they arrived. This is the global
+  // view that "read" serves.
+  private final SegmentLog history;
+
+  // Each team's bundles within "history", so that one team's bundles can be read
+  // without going through everyone else's.
+  private final ConcurrentMap<Uuid, Partition> partitions = new ConcurrentHashMap<>();
 
- private final Uuid.Generator idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  private final ConcurrentMap<Uuid, byte[]> teamSecrets = new ConcurrentHashMap<>();
+
+  // Reads that are waiting for new bundles wait on this. Writes notify it.
+  private final Object arrivals = new Object();
+
+  private final int maxRead;
+
+  // A bundle's id is its position in the history log. The log hands out ids in
+  // order starting at 1 - so the first id never matches the NULL id, which is
+  // (null, 0) - and when the log is kept on disk the ids carry on across restarts.
+  // That way a server's cursor into the history stays good when the relay comes
+  // back up.
 
   // SERVER
   //
@@ -132,9 +195,38 @@ public final class Server implements Relay {
   //   - Keep "maxHistory" small enough to avoid using too much memory.
   //   - Keep "maxRead" small enough to avoid any one client from connecting to
   //     the server for too long.
+  //
+  // This keeps the history in memory. Use the other constructor to keep it in a log
+  // on disk.
   public Server(int maxHistory, int maxRead) {
-    this.maxHistory = Math.max(0, maxHistory);
+    this(SegmentLog.inMemory(MEMORY_SEGMENT_BYTES, Math.max(1, maxHistory)), maxRead);
+  }
+
+  // SERVER
+  //
+  // Keep the history in "history". How much of it is kept is up to the log's
+  // retention limits. Whatever the log already holds is split into the teams'
+  // partitions here.
+  public Server(SegmentLog history, int maxRead) {
+    this.history = history;
     this.maxRead = Math.max(0, maxRead);
+
+    int indexed = 0;
+    for (List<SegmentLog.Entry> entries = history.read(0, INDEX_BATCH);
+         !entries.isEmpty();
+         entries = history.read(entries.get(entries.size() - 1).id, INDEX_BATCH)) {
+      for (final SegmentLog.Entry entry : entries) {
+        try {
+          final Uuid team = Uuid.SERIALIZER.read(new ByteArrayInputStream(entry.payload));
+          partition(team).add(entry.id, history.first());
+          indexed++;
+        } catch (IOException ex) {
+          LOG.error(ex, "Skipping unreadable bundle %d in history.", entry.id);
+        }
+      }
+    }
+
+    LOG.info("Relay history indexed (bundles=%d teams=%d).", indexed, partitions.size());
   }
 
   // ADD TEAM
@@ -146,11 +238,7 @@ public final class Server implements Relay {
 
     LOG.info("Adding team to relay %s", id);
 
-    final boolean open = teamSecrets.get(id) == null;
-
-    if (open) {
-      teamSecrets.put(id, secret);
-    }
+    final boolean open = teamSecrets.putIfAbsent(id, secret) == null;
 
     LOG.info(open ?
              "Adding team was successful" :
@@ -180,17 +268,30 @@ public final class Server implements Relay {
           conversation.id(),
           message.id());
 
-      if (history.size() >= maxHistory) {
-         history.remove();
+      final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+      try {
+        Uuid.SERIALIZER.write(payload, teamId);
+        writeComponent(payload, user);
+        writeComponent(payload, conversation);
+        writeComponent(payload, message);
+
+        // Holding the team's partition keeps its ids in the same order as the
+        // history. Writes from different teams only meet in the history's append.
+        final Partition partition = partition(teamId);
+        synchronized (partition) {
+          partition.add(history.append(Time.now().inMs(), payload.toByteArray()), history.first());
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to add bundle to history.");
+        return false;
+      }
+
+      synchronized (arrivals) {
+        arrivals.notifyAll();
       }
 
-      return history.offer(new Bundle(
-          idGenerator.make(),
-          Time.now(),
-          teamId,
-          user,
-          conversation,
-          message));
+      return true;
     } else {
 
       LOG.warning(
@@ -216,18 +317,8 @@ public final class Server implements Relay {
           range,
           maxRead);
 
-      for (final Relay.Bundle message : history) {
-
-        // Only add a message if there is room. We cannot stop
-        // searching in case we see the root later on.
-        if (found.size() < Math.min(range, maxRead)) {
-          found.add(message);
-        }
-
-        // If the start is found, drop all previous messages.
-        if (message.id().equals(root)) {
-          found.clear();
-        }
+      for (final SegmentLog.Entry entry : history.read(position(root), Math.min(range, maxRead))) {
+        addBundle(found, entry);
       }
 
       LOG.info(
@@ -245,7 +336,145 @@ public final class Server implements Relay {
     return found;
   }
 
-  private boolean authenticate(Uuid id, byte[] secret) {
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       byte[] teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs) {
+
+    // Note the newest bundle before reading so that one written in between the
+    // read and the wait is not missed.
+    final int seen = history.last();
+
+    final Collection<Relay.Bundle> found = read(teamId, teamSecret, root, range);
+
+    if (!found.isEmpty() || waitMs <= 0 || !authenticate(teamId, teamSecret)) {
+      return found;
+    }
+
+    final long deadline = System.currentTimeMillis() + Math.min(waitMs, MAX_WAIT_MS);
+
+    synchronized (arrivals) {
+      long remaining = deadline - System.currentTimeMillis();
+      while (history.last() == seen && remaining > 0) {
+        try {
+          arrivals.wait(remaining);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return found;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+    }
+
+    return history.last() == seen ? found : read(teamId, teamSecret, root, range);
+  }
+
+  // READ TEAM
+  //
+  // Served from the team's partition, so other teams' bundles are never looked
+  // at. If the history no longer has "root", reading starts from the team's
+  // oldest bundle.
+  @Override
+  public Collection<Relay.Bundle> readTeam(Uuid teamId,
+                                           byte[] teamSecret,
+                                           Uuid team,
+                                           Uuid root,
+                                           int range) {
+
+    final Collection<Relay.Bundle> found = new ArrayList<>();
+
+    if (!authenticate(teamId, teamSecret)) {
+      LOG.info(
+          "Unauthroized attempt to read from server team=%s",
+          teamId);
+      return found;
+    }
+
+    final Partition partition = partitions.get(team);
+
+    if (partition != null) {
+
+      final Partition.Slice slice = partition.slice;
+      final int limit = Math.min(range, maxRead);
+      final int first = history.first();
+      final int after = position(root);
+
+      // Ids are shared by every partition, so any id still in the history is a
+      // place to read on from.
+      int i = Partition.after(slice, after >= first && after <= history.last() ? after : first - 1);
+
+      for (; i < slice.count && found.size() < limit; i++) {
+        final SegmentLog.Entry entry = history.get(slice.ids[i]);
+        if (entry != null) {
+          addBundle(found, entry);
+        }
+      }
+    }
+
+    LOG.info(
+        "Team read request complete team=%s requested=%d fullfilled=%d",
+        team,
+        range,
+        found.size());
+
+    return found;
+  }
+
+  private Partition partition(Uuid team) {
+    final Partition partition = partitions.get(team);
+    if (partition != null) {
+      return partition;
+    }
+    final Partition created = new Partition();
+    final Partition existing = partitions.putIfAbsent(team, created);
+    return existing == null ? created : existing;
+  }
+
+  // Only the relay's own ids are positions in the history. Anything else reads
+  // from the oldest bundle.
+  private static int position(Uuid root) {
+    return root == null || root.root() != null ? 0 : root.id();
+  }
+
+  private static void addBundle(Collection<Relay.Bundle> found, SegmentLog.Entry entry) {
+    try {
+      found.add(readBundle(entry));
+    } catch (IOException ex) {
+      LOG.error(ex, "Skipping unreadable bundle %d in history.", entry.id);
+    }
+  }
+
+  private static void writeComponent(ByteArrayOutputStream out,
+                                     Relay.Bundle.Component component) throws IOException {
+    Uuid.SERIALIZER.write(out, component.id());
+    Serializers.STRING.write(out, component.text());
+    Time.SERIALIZER.write(out, component.time());
+  }
+
+  private static Component readComponent(InputStream in) throws IOException {
+    return new Component(Uuid.SERIALIZER.read(in),
+                         Serializers.STRING.read(in),
+                         Time.SERIALIZER.read(in));
+  }
+
+  private static Bundle readBundle(SegmentLog.Entry entry) throws IOException {
+    final InputStream in = new ByteArrayInputStream(entry.payload);
+    final Uuid team = Uuid.SERIALIZER.read(in);
+    return new Bundle(new Uuid(entry.id),
+                      Time.fromMs(entry.time),
+                      team,
+                      readComponent(in),
+                      readComponent(in),
+                      readComponent(in));
+  }
+
+  // AUTHENTICATE
+  //
+  // Whether the relay accepts the team's secret. The front end checks this before
+  // it gives a request anything that outlives it, like a subscription.
+  boolean authenticate(Uuid id, byte[] secret) {
     return id != null && Arrays.equals(secret, teamSecrets.get(id));
   }
 }
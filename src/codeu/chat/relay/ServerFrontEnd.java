@@ -18,6 +18,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
@@ -102,10 +107,53 @@ public final class ServerFrontEnd {
     }
   };
 
-  private final Relay backEnd;
+  // How long a subscription waits for new bundles before sending an empty event.
+  // Sending something now and then is how a subscription finds out that the
+  // other side has gone away.
+  private static final long SUBSCRIBE_WAIT_MS = 15000;  // 15 seconds
 
-  public ServerFrontEnd(Relay backEnd) {
+  // How many subscriptions are kept open, and how many reads may wait, at once
+  // unless told otherwise. Each of them holds a thread for as long as it lasts.
+  private static final int DEFAULT_MAX_SUBSCRIPTIONS = 64;
+  private static final int DEFAULT_MAX_WAITING = 64;
+
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private final Server backEnd;
+
+  // Runs the subscriptions. It has no queue - once every thread is taken, new
+  // subscriptions are turned away rather than left waiting for one.
+  private final ThreadPoolExecutor subscriptions;
+
+  // Runs the reads that wait, so that they never hold one of the threads handling
+  // connections - writes have to get through for the waits to end. It has no
+  // queue either; once every thread is taken, reads are answered without waiting.
+  private final ThreadPoolExecutor waiting;
+
+  public ServerFrontEnd(Server backEnd) {
+    this(backEnd, DEFAULT_MAX_SUBSCRIPTIONS, DEFAULT_MAX_WAITING);
+  }
+
+  public ServerFrontEnd(Server backEnd, int maxSubscriptions, int maxWaiting) {
     this.backEnd = backEnd;
+    this.subscriptions = newPool(maxSubscriptions);
+    this.waiting = newPool(maxWaiting);
+  }
+
+  private static ThreadPoolExecutor newPool(int threads) {
+    return new ThreadPoolExecutor(0,
+                                  Math.max(1, threads),
+                                  60,
+                                  TimeUnit.SECONDS,
+                                  new SynchronousQueue<Runnable>(),
+                                  DAEMON_THREADS);
   }
 
   public void handleConnection(Connection connection) throws IOException {
@@ -115,6 +163,10 @@ public final class ServerFrontEnd {
     switch (Serializers.INTEGER.read(connection.in())) {
       case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection); break;
       case NetworkCode.RELAY_WRITE_REQUEST: handleWriteMessage(connection); break;
+      case NetworkCode.RELAY_READ_WAIT_REQUEST: handleReadWaitMessage(connection); break;
+      case NetworkCode.RELAY_SUBSCRIBE_REQUEST: handleSubscribeMessage(connection); break;
+      case NetworkCode.RELAY_WRITE_BATCH_REQUEST: handleWriteBatchMessage(connection); break;
+      case NetworkCode.RELAY_READ_TEAM_REQUEST: handleReadTeamMessage(connection); break;
     }
 
     LOG.info("Handling Connection - end");
@@ -145,6 +197,162 @@ public final class ServerFrontEnd {
     LOG.info("Handling Read Message - end");
   }
 
+  private void handleReadTeamMessage(Connection connection) throws IOException {
+
+    LOG.info("Handling Read Team Message - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final byte[] teamSecret = Serializers.BYTES.read(connection.in());
+    final Uuid team = Uuid.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final int range = Serializers.INTEGER.read(connection.in());
+
+    LOG.info(
+        "Reading team=%s from=%s root=%s range=%d",
+        teamId,
+        team,
+        root,
+        range);
+
+    final Collection<Relay.Bundle> result = backEnd.readTeam(teamId, teamSecret, team, root, range);
+
+    LOG.info("Reading result.size=%d", result.size());
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_RESPONSE);
+    Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+
+    LOG.info("Handling Read Team Message - end");
+  }
+
+  // The wait happens on a thread of its own (see "waiting"). When there are none
+  // left the read is answered at once, as if nothing arrived in time, and the
+  // other side reads again.
+  private void handleReadWaitMessage(final Connection connection) throws IOException {
+
+    LOG.info("Handling Read Wait Message - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final byte[] teamSecret = Serializers.BYTES.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final int range = Serializers.INTEGER.read(connection.in());
+    final long waitMs = Serializers.LONG.read(connection.in());
+
+    LOG.info(
+        "Reading team=%s root=%s range=%d wait=%d",
+        teamId,
+        root,
+        range,
+        waitMs);
+
+    try {
+      waiting.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            answerRead(connection, backEnd.read(teamId, teamSecret, root, range, waitMs));
+          } catch (IOException ex) {
+            LOG.error(ex, "Exception while answering read wait.");
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOG.warning("Too many reads waiting, answering team=%s without waiting", teamId);
+      answerRead(connection, backEnd.read(teamId, teamSecret, root, range));
+    }
+
+    LOG.info("Handling Read Wait Message - end");
+  }
+
+  private static void answerRead(Connection connection, Collection<Relay.Bundle> result)
+      throws IOException {
+
+    LOG.info("Reading result.size=%d", result.size());
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_RESPONSE);
+    Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+    connection.out().flush();
+  }
+
+  // A subscription lasts as long as the connection does, so it gets a thread of
+  // its own rather than holding on to one of the relay's. The team is checked
+  // before that so that a bad secret does not cost a thread, and there are only
+  // so many threads to go around.
+  private void handleSubscribeMessage(final Connection connection) throws IOException {
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final byte[] teamSecret = Serializers.BYTES.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final int range = Serializers.INTEGER.read(connection.in());
+
+    LOG.info(
+        "Subscribing team=%s root=%s range=%d",
+        teamId,
+        root,
+        range);
+
+    if (!backEnd.authenticate(teamId, teamSecret)) {
+      LOG.warning("Unauthorized attempt to subscribe team=%s", teamId);
+      refuse(connection, NetworkCode.RELAY_UNAUTHORIZED_RESPONSE);
+      return;
+    }
+
+    final Runnable stream = new Runnable() {
+      @Override
+      public void run() {
+        Uuid position = root;
+        try {
+          while (true) {
+            final long start = System.currentTimeMillis();
+            final Collection<Relay.Bundle> result =
+                backEnd.read(teamId, teamSecret, position, range, SUBSCRIBE_WAIT_MS);
+
+            // The read may come back empty before the wait is over (say the range
+            // is zero and someone wrote), so make up the rest of the wait here
+            // rather than asking again straight away.
+            if (result.isEmpty()) {
+              final long remaining = start + SUBSCRIBE_WAIT_MS - System.currentTimeMillis();
+              if (remaining > 0) {
+                Thread.sleep(remaining);
+              }
+            }
+
+            Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_BUNDLES_EVENT);
+            Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+            connection.out().flush();
+
+            for (final Relay.Bundle bundle : result) {
+              position = bundle.id();
+            }
+          }
+        } catch (IOException | InterruptedException ex) {
+          LOG.info("Subscription ended team=%s", teamId);
+        }
+
+        try {
+          connection.close();
+        } catch (IOException ex) {
+          LOG.error(ex, "Exception while closing subscription.");
+        }
+      }
+    };
+
+    try {
+      subscriptions.execute(stream);
+    } catch (RejectedExecutionException ex) {
+      LOG.warning("Too many subscriptions, turning away team=%s", teamId);
+      refuse(connection, NetworkCode.RELAY_BUSY_RESPONSE);
+    }
+  }
+
+  private static void refuse(Connection connection, int reason) throws IOException {
+    try {
+      Serializers.INTEGER.write(connection.out(), reason);
+      connection.out().flush();
+    } finally {
+      connection.close();
+    }
+  }
+
   private void handleWriteMessage(Connection connection) throws IOException {
 
     LOG.info("Handling Write Message - start");
@@ -175,4 +383,51 @@ public final class ServerFrontEnd {
 
     LOG.info("Handling Write Message - end");
   }
+
+  // The whole batch is read before answering so that the connection is left in a
+  // state the other side expects. Bundles are written in order and the first one
+  // that fails stops the rest, so the answer is always how many from the front of
+  // the batch were written and the other side can send the remainder again.
+  private void handleWriteBatchMessage(Connection connection) throws IOException {
+
+    LOG.info("Handling Write Batch Message - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final byte[] teamSecret = Serializers.BYTES.read(connection.in());
+    final int count = Serializers.INTEGER.read(connection.in());
+
+    LOG.info("Writing team=%s count=%d", teamId, count);
+
+    final boolean authorized = backEnd.authenticate(teamId, teamSecret);
+
+    int written = 0;
+    boolean failed = !authorized;
+
+    for (int i = 0; i < count; i++) {
+
+      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(connection.in());
+      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(connection.in());
+      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(connection.in());
+
+      if (!failed && backEnd.write(teamId, teamSecret, user, conversation, message)) {
+        written++;
+      } else {
+        failed = true;
+      }
+    }
+
+    if (!authorized) {
+      LOG.warning("Unauthorized attempt to write batch team=%s", teamId);
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_UNAUTHORIZED_RESPONSE);
+      LOG.info("Handling Write Batch Message - end");
+      return;
+    }
+
+    LOG.info("Writing result written=%d", written);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_RESPONSE);
+    Serializers.INTEGER.write(connection.out(), written);
+
+    LOG.info("Handling Write Batch Message - end");
+  }
 }
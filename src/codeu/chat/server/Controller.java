@@ -15,8 +15,14 @@
 package codeu.chat.server;
 
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.Conversation;
@@ -34,6 +40,13 @@ import codeu.chat.server.storage.MessageData;
 
 public final class Controller implements RawController, BasicController {
 
+  // Told about every message added to the model, whether it came from a client or
+  // from the relay. Listeners are called after the model's lock is released, on
+  // the thread that added the message.
+  public interface MessageListener {
+    void onMessage(Uuid conversation, Message message);
+  }
+
   private final static Logger.Log LOG = Logger.newLog(Controller.class);
 
   private final Model model;
@@ -42,9 +55,21 @@ public final class Controller implements RawController, BasicController {
   private final Authentication authentication;
   private final Storage storage;
   //Maps the UUID of a conversation to its unique ID
-  private HashMap<Uuid, Integer> conversationIds = new HashMap<Uuid, Integer>();
+  private final Map<Uuid, Integer> conversationIds = new ConcurrentHashMap<Uuid, Integer>();
+  //Maps the unique ID of a stored conversation to the UUID it was loaded as,
+  //so that each stored conversation is only loaded once
+  private final Map<Integer, Uuid> conversationUuids = new ConcurrentHashMap<Integer, Uuid>();
   //Maps the UUID of a user to its unique username
-  private HashMap<Uuid, String> userIds = new HashMap<Uuid, String>();
+  private final Map<Uuid, String> userIds = new ConcurrentHashMap<Uuid, String>();
+  //Maps a username to the user it first logged in as. Both this and loadedUsers
+  //are keyed by Authentication.normalize(username), as "Alice" and "alice" log
+  //into the same account
+  private final ConcurrentMap<String, User> usersByName = new ConcurrentHashMap<String, User>();
+  //Usernames whose stored conversations have been loaded into the model
+  private final Set<String> loadedUsers =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final Collection<MessageListener> messageListeners = new CopyOnWriteArrayList<>();
 
   public Controller(Uuid serverId, Model model, Authentication authentication, Storage storage) {
     this.model = model;
@@ -57,8 +82,14 @@ public final class Controller implements RawController, BasicController {
   public Message newMessage(Uuid author, Uuid token, Uuid conversation, String body) {
     if (!checkToken(author, token)) return null;
     Time creationTime = Time.now();
-    storage.addMessage(conversationIds.get(conversation), creationTime.inMs(), body);
-    return newMessage(createId(), author, conversation, body, creationTime);
+    // Conversations that came from the relay are not in storage.
+    final Integer conversationId = conversationIds.get(conversation);
+    final int row = conversationId == null ? -1 : storage.addMessage(conversationId, creationTime.inMs(), body);
+    if (conversationId != null && row < 0) {
+      LOG.error("Failed to store message, not adding it.");
+      return null;
+    }
+    return newMessage(createId(), author, conversation, body, creationTime, row);
   }
 
   @Override
@@ -68,9 +99,19 @@ public final class Controller implements RawController, BasicController {
 
   @Override
   public User login(String username, String password) {
-    Uuid id = createId();
-    userIds.put(id, username);
-    return login(id, username, password, Time.now());
+    // A user who has logged in before gets the same user back, rather than a new
+    // user and another copy of their history.
+    final User existing = usersByName.get(Authentication.normalize(username));
+    if (existing != null) {
+      final int result = authentication.login(username, password);
+      LOG.info(
+          "login again (user.id=%s user.name=%s result=%d)",
+          existing.id,
+          username,
+          result);
+      return result == AuthenticationCode.SUCCESS ? existing : null;
+    }
+    return login(createId(), username, password, Time.now());
   }
 
   @Override
@@ -79,12 +120,80 @@ public final class Controller implements RawController, BasicController {
     Uuid id = createId();
     Time creationTime = Time.now();
     int convoID = storage.addConversation(userIds.get(owner), creationTime.inMs(), title);
+    if (convoID < 0) {
+      LOG.error("Failed to store conversation, not adding it.");
+      return null;
+    }
     conversationIds.put(id, convoID);
+    conversationUuids.put(convoID, id);
     return newConversation(id, title, owner, creationTime);
   }
 
+  public void addMessageListener(MessageListener listener) {
+    messageListeners.add(listener);
+  }
+
+  // Caps how many messages the model holds at once (see Model.setMessageBudget).
+  // Only conversations that are in storage are evicted, as those are the ones
+  // that can be read back; conversations from the relay always stay in memory.
+  public void setMessageBudget(int budget) {
+    model.setMessageBudget(budget, new Model.MessageLoader() {
+
+      @Override
+      public boolean canLoad(Uuid conversation) {
+        return conversationIds.containsKey(conversation);
+      }
+
+      @Override
+      public List<MessageData> load(Uuid conversation) {
+        final Integer conversationId = conversationIds.get(conversation);
+        if (conversationId == null) {
+          return null;
+        }
+        LOG.info("Loading evicted conversation %s", conversation);
+        return storage.loadMessages(conversationId);
+      }
+    });
+  }
+
+  // Messages added this way (e.g. from the relay) are not in storage. The server
+  // reads them from the relay again after a restart (see RelayCursor).
   @Override
   public Message newMessage(Uuid id, Uuid author, Uuid conversation, String body, Time creationTime) {
+    return newMessage(id, author, conversation, body, creationTime, -1);
+  }
+
+  // "row" is the message's row in storage, or less than zero if it was not written
+  // to storage, which decides whether its conversation may be evicted (see
+  // Model.add).
+  private Message newMessage(Uuid id, Uuid author, Uuid conversation, String body, Time creationTime,
+                             int row) {
+
+    final Message message;
+
+    // Bring the conversation back now if it was evicted so that its messages are
+    // not read from storage while holding the lock.
+    model.messagesInConversation(conversation);
+
+    model.writeLock().lock();
+    try {
+      message = addMessage(id, author, conversation, body, creationTime, row);
+    } finally {
+      model.writeLock().unlock();
+    }
+
+    if (message != null) {
+      for (final MessageListener listener : messageListeners) {
+        listener.onMessage(conversation, message);
+      }
+    }
+
+    return message;
+  }
+
+  // Must be called while holding the model's write lock.
+  private Message addMessage(Uuid id, Uuid author, Uuid conversation, String body, Time creationTime,
+                             int row) {
 
     final User foundUser = model.userById().first(author);
     final Conversation foundConversation = model.conversationById().first(conversation);
@@ -94,7 +203,14 @@ public final class Controller implements RawController, BasicController {
     if (foundUser != null && foundConversation != null && isIdFree(id)) {
 
       message = new Message(id, Uuid.NULL, Uuid.NULL, creationTime, author, body);
-      model.add(message);
+
+      // The message must be in the model before anything links to it. Views read
+      // the links without the lock, and the volatile writes below are what make
+      // the stored message visible to a reader that follows them.
+      if (!model.add(conversation, message, row)) {
+        LOG.error("Failed to load conversation %s, not adding message.", conversation);
+        return null;
+      }
       LOG.info("Message added: %s", message.id);
 
       // Find and update the previous "last" message so that it's "next" value
@@ -108,7 +224,11 @@ public final class Controller implements RawController, BasicController {
 
       } else {
         final Message lastMessage = model.messageById().first(foundConversation.lastMessage);
-        lastMessage.next = message.id;
+        if (lastMessage == null) {
+          LOG.error("Last message %s of conversation %s is missing.", foundConversation.lastMessage, conversation);
+        } else {
+          lastMessage.next = message.id;
+        }
       }
 
       // If the first message points to NULL it means that the conversation was empty and that
@@ -152,7 +272,8 @@ public final class Controller implements RawController, BasicController {
   public User login(Uuid id, String username, String password, Time creationTime) {
     User user = null;
 
-    // Attempt to login.
+    // Attempt to login. This is done without holding the model's lock as checking
+    // the password is slow and does not touch the model.
     int result = authentication.login(username, password);
     if (result == AuthenticationCode.SUCCESS) {
       LOG.info(
@@ -161,10 +282,33 @@ public final class Controller implements RawController, BasicController {
           username,
           creationTime);
 
-      // Create the new user.
-      user = new User(id, username, creationTime);
-      user.token = createId();
-      model.add(user);
+      final String key = Authentication.normalize(username);
+
+      // Create the new user. Two first logins with the same name can get here at
+      // once, so only the one that claims the name is added, and both get it back.
+      // This is done under the model's lock so the other login does not return
+      // the user before it is in the model.
+      model.writeLock().lock();
+      try {
+        final User created = new User(id, username, creationTime);
+        created.token = createId();
+        user = usersByName.putIfAbsent(key, created);
+        if (user == null) {
+          user = created;
+          model.add(user);
+          userIds.put(id, username);
+        }
+      } finally {
+        model.writeLock().unlock();
+      }
+
+      // The user's stored conversations only need loading the first time they log
+      // in. They stay in the model after that (their messages may be evicted, but
+      // are read back on their own). Whichever login gets here first loads them
+      // for the user that claimed the name.
+      if (loadedUsers.add(key)) {
+        loadConversations(user.id, username);
+      }
     } else {
       LOG.info(
           "login fail (user.id=%s user.name=%s user.time=%s result=%d)",
@@ -174,17 +318,26 @@ public final class Controller implements RawController, BasicController {
           result);
     }
 
-    //Loads in all of the user's conversations
+    return user;
+  }
+
+  // Loads a user's stored conversations and their messages into the model, skipping
+  // any conversation that has already been loaded.
+  private void loadConversations(Uuid owner, String username) {
     ArrayList<ConversationData> conversations = storage.loadConversations(username);
     for (ConversationData c: conversations){
+      if (conversationUuids.containsKey(c.getId())) {
+        continue;
+      }
       Uuid convoId = createId();
-      Conversation currentConvo = newConversation(convoId, c.getTitle(), id, c.getCreation());
+      Conversation currentConvo = newConversation(convoId, c.getTitle(), owner, c.getCreation());
       if (currentConvo != null){
-        //Maps the UUID of the created conversation to its database ID
+        //Maps the UUID of the created conversation to its database ID and back
         conversationIds.put(convoId, c.getId());
+        conversationUuids.put(c.getId(), convoId);
         //Loads in all of the conversation's messages
         for (MessageData m: c.getMessages()){
-          Message currentMessage = newMessage(createId(), id, convoId, m.getContent(), m.getCreation());
+          Message currentMessage = newMessage(createId(), owner, convoId, m.getContent(), m.getCreation(), m.getId());
           if (currentMessage == null)
             LOG.info("Failed to load in a message");
         }
@@ -193,22 +346,25 @@ public final class Controller implements RawController, BasicController {
       else
         LOG.info("Failed to load in a conversation");
     }
-
-    return user;
   }
 
   @Override
   public Conversation newConversation(Uuid id, String title, Uuid owner, Time creationTime) {
 
-    final User foundOwner = model.userById().first(owner);
-
     Conversation conversation = null;
 
-    if (foundOwner != null && isIdFree(id)) {
-      conversation = new Conversation(id, owner, creationTime, title);
-      model.add(conversation);
+    model.writeLock().lock();
+    try {
+      final User foundOwner = model.userById().first(owner);
+
+      if (foundOwner != null && isIdFree(id)) {
+        conversation = new Conversation(id, owner, creationTime, title);
+        model.add(conversation);
 
-      LOG.info("Conversation added: " + conversation.id);
+        LOG.info("Conversation added: " + conversation.id);
+      }
+    } finally {
+      model.writeLock().unlock();
     }
 
     return conversation;
@@ -0,0 +1,176 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// MESSAGE INDEX
+//
+// The messages of one conversation ordered by creation time, held in an array so
+// that a time can be found with a binary search instead of walking the message
+// chain from the start. Messages with equal times stay in the order they were
+// added.
+//
+// There is one writer at a time (the model's write lock) and any number of
+// readers, who never lock. Readers work from a snapshot: the array and how much
+// of it is in use. Appending writes past the end of every existing snapshot, so
+// the array is shared. Anything else (growing, or a message older than the
+// newest one, as can come from the relay) copies the array first.
+public final class MessageIndex {
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private static final class Snapshot {
+
+    public final Message[] messages;
+    public final int size;
+
+    public Snapshot(Message[] messages, int size) {
+      this.messages = messages;
+      this.size = size;
+    }
+  }
+
+  private volatile Snapshot snapshot = new Snapshot(new Message[INITIAL_CAPACITY], 0);
+
+  // When the index was last used (System.nanoTime), so that the model can tell
+  // which conversations have gone cold. Set by the model, not by the index.
+  private volatile long lastUsed = System.nanoTime();
+
+  public void touch() {
+    lastUsed = System.nanoTime();
+  }
+
+  public long lastUsed() {
+    return lastUsed;
+  }
+
+  public void add(Message message) {
+
+    final Snapshot current = snapshot;
+    final int size = current.size;
+
+    if (size == 0 || current.messages[size - 1].creation.compareTo(message.creation) <= 0) {
+
+      final Message[] messages = size < current.messages.length ?
+          current.messages :
+          Arrays.copyOf(current.messages, size * 2);
+
+      messages[size] = message;
+      snapshot = new Snapshot(messages, size + 1);
+
+    } else {
+
+      final int at = upperBound(current, message.creation);
+      final Message[] messages = new Message[Math.max(current.messages.length, size + 1)];
+
+      System.arraycopy(current.messages, 0, messages, 0, at);
+      messages[at] = message;
+      System.arraycopy(current.messages, at, messages, at + 1, size - at);
+
+      snapshot = new Snapshot(messages, size + 1);
+    }
+  }
+
+  public int size() {
+    return snapshot.size;
+  }
+
+  // RANGE
+  //
+  // All messages created between start and end (both included), in order.
+  public List<Message> range(Time start, Time end) {
+    final Snapshot current = snapshot;
+    return copy(current, lowerBound(current, start), upperBound(current, end));
+  }
+
+  // FIRST
+  //
+  // The oldest "count" messages, in order.
+  public List<Message> first(int count) {
+    final Snapshot current = snapshot;
+    return copy(current, 0, Math.min(current.size, Math.max(0, count)));
+  }
+
+  // LAST
+  //
+  // The newest "count" messages, in order.
+  public List<Message> last(int count) {
+    final Snapshot current = snapshot;
+    return copy(current, Math.max(0, current.size - Math.max(0, count)), current.size);
+  }
+
+  // AFTER
+  //
+  // Up to "count" messages that come after the given message, in order. Returns
+  // null if the message is not in this index.
+  public List<Message> after(Message message, int count) {
+    final Snapshot current = snapshot;
+
+    // Only messages with the same time need to be checked one by one.
+    final int end = upperBound(current, message.creation);
+    for (int i = lowerBound(current, message.creation); i < end; i++) {
+      if (Uuid.equals(current.messages[i].id, message.id)) {
+        return copy(current, i + 1, (int) Math.min(current.size, (long) i + 1 + Math.max(0, count)));
+      }
+    }
+
+    return null;
+  }
+
+  // The first position whose message was created at or after "time".
+  private static int lowerBound(Snapshot snapshot, Time time) {
+    int low = 0;
+    int high = snapshot.size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (snapshot.messages[middle].creation.compareTo(time) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  // The first position whose message was created after "time".
+  private static int upperBound(Snapshot snapshot, Time time) {
+    int low = 0;
+    int high = snapshot.size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (snapshot.messages[middle].creation.compareTo(time) <= 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static List<Message> copy(Snapshot snapshot, int from, int to) {
+    if (from >= to) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(Arrays.asList(snapshot.messages).subList(from, to));
+  }
+}
@@ -14,20 +14,98 @@
 
 package codeu.chat.server;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import codeu.chat.common.Conversation;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Message;
 import codeu.chat.common.User;
+import codeu.chat.server.storage.MessageData;
+import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
-import codeu.chat.util.store.Store;
+import codeu.chat.util.store.ConcurrentStore;
 import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.UuidStore;
 
 public final class Model {
 
+  private final static Logger.Log LOG = Logger.newLog(Model.class);
+
+  // MESSAGE LOADER
+  //
+  // Where the messages of an evicted conversation are read back from.
+  public interface MessageLoader {
+
+    // Whether the conversation's messages are kept somewhere they can be read
+    // back from. Only these conversations are ever evicted.
+    boolean canLoad(Uuid conversation);
+
+    // The conversation's messages with their row ids, or null if they could not
+    // be read.
+    List<MessageData> load(Uuid conversation);
+  }
+
+  // EVICTED
+  //
+  // What is kept of an evicted conversation's messages: every id, in order, with
+  // its author, time and storage row. Only the content is read back, matched up
+  // by row. As every id is kept, the conversation's first and last message and
+  // the "next" links come back exactly as they were.
+  private static final class Evicted {
+
+    public final Uuid[] ids;
+    public final Uuid[] authors;
+    public final long[] times;
+    public final int[] rows;
+
+    public Evicted(List<Message> messages, Map<Uuid, Integer> rowsById) {
+      this.ids = new Uuid[messages.size()];
+      this.authors = new Uuid[messages.size()];
+      this.times = new long[messages.size()];
+      this.rows = new int[messages.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = messages.get(i).id;
+        authors[i] = messages.get(i).author;
+        times[i] = messages.get(i).creation.inMs();
+        rows[i] = rowsById.get(ids[i]);
+      }
+    }
+  }
+
+  // A conversation that could be evicted, with when it was last used taken once
+  // so that readers touching it cannot change the order while it is sorted.
+  private static final class Candidate implements Comparable<Candidate> {
+
+    public final Uuid conversation;
+    public final MessageIndex messages;
+    public final long lastUsed;
+
+    public Candidate(Uuid conversation, MessageIndex messages) {
+      this.conversation = conversation;
+      this.messages = messages;
+      this.lastUsed = messages.lastUsed();
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      // nanoTime values are compared by difference as they may wrap.
+      final long difference = lastUsed - other.lastUsed;
+      return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+    }
+  }
+
   private static final Comparator<Uuid> UUID_COMPARE = new Comparator<Uuid>() {
 
     @Override
@@ -53,21 +131,107 @@ public final class Model {
 
   private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
 
-  private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
-  private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, User> userByText = new Store<>(STRING_COMPARE);
-  private final Store<Uuid, User> userByToken = new Store<>(UUID_COMPARE);
+  private final UuidStore<User> userById = new UuidStore<>(UUID_COMPARE);
+  private final ConcurrentStore<Time, User> userByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, User> userByText = new ConcurrentStore<>(STRING_COMPARE);
+  private final UuidStore<User> userByToken = new UuidStore<>(UUID_COMPARE);
+
+  private final UuidStore<Conversation> conversationById = new UuidStore<>(UUID_COMPARE);
+  private final ConcurrentStore<Time, Conversation> conversationByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, Conversation> conversationByText = new ConcurrentStore<>(STRING_COMPARE);
+
+  private final UuidStore<Message> messageById = new UuidStore<>(UUID_COMPARE);
+  private final ConcurrentStore<Time, Message> messageByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, Message> messageByText = new ConcurrentStore<>(STRING_COMPARE);
+
+  // Each conversation's messages in time order. The message chain (first, last
+  // and next) is still kept up to date, but queries should use these.
+  private final ConcurrentMap<Uuid, MessageIndex> messagesByConversation = new ConcurrentHashMap<>();
+
+  // Conversations whose messages have been evicted, and the conversation of each
+  // evicted message so that looking one up by id can bring it back.
+  private final ConcurrentMap<Uuid, Evicted> evicted = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Uuid, Uuid> evictedMessages = new ConcurrentHashMap<>();
+
+  // Conversations holding a message that was not written to storage. Those
+  // messages could not be read back, so these conversations are never evicted.
+  private final Set<Uuid> unstored = Collections.newSetFromMap(new ConcurrentHashMap<Uuid, Boolean>());
+
+  // The storage row of each held message that was written to storage. Rows are
+  // what evicted messages are matched back to, as two messages may share a time.
+  private final Map<Uuid, Integer> rows = new HashMap<>();  // guarded by writeLock
 
-  private final Store<Uuid, Conversation> conversationById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Conversation> conversationByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Conversation> conversationByText = new Store<>(STRING_COMPARE);
+  private volatile MessageLoader loader = null;
+  private volatile int messageBudget = 0;
+  private int messageCount = 0;  // guarded by writeLock
 
-  private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
+  // Looks up messages by id, loading the message's conversation again if it was
+  // evicted. Only "first" loads; iterating covers the messages held right now.
+  private final StoreAccessor<Uuid, Message> messageByIdLoading = new StoreAccessor<Uuid, Message>() {
+
+    @Override
+    public Message first(Uuid id) {
+      final Message message = messageById.first(id);
+      if (message != null || id == null) {
+        return message;
+      }
+      final Uuid conversation = evictedMessages.get(id);
+      if (conversation == null) {
+        return null;
+      }
+      load(conversation);
+      return messageById.first(id);
+    }
+
+    @Override
+    public Iterable<Message> all() { return messageById.all(); }
+
+    @Override
+    public Iterable<Message> at(Uuid id) { return messageById.at(id); }
+
+    @Override
+    public Iterable<Message> after(Uuid start) { return messageById.after(start); }
+
+    @Override
+    public Iterable<Message> before(Uuid end) { return messageById.before(end); }
+
+    @Override
+    public Iterable<Message> range(Uuid start, Uuid end) { return messageById.range(start, end); }
+  };
 
   private final Uuid.Generator userGenerations = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
-  private Uuid currentUserGeneration = userGenerations.make();
+  private volatile Uuid currentUserGeneration = userGenerations.make();
+
+  // The stores can be read while they are being written to, and the links held
+  // inside the stored objects (message "next" values and a conversation's first
+  // and last message) are volatile, so readers do not lock. Writers change more
+  // than one store and link at a time, so they must hold the write lock to keep
+  // from interleaving with each other.
+  private final Lock writeLock = new ReentrantLock();
+
+  public Lock writeLock() {
+    return writeLock;
+  }
+
+  // MESSAGE BUDGET
+  //
+  // Caps how many messages are held at once. When adding or loading a message
+  // takes the count over "budget", the messages of the least recently used
+  // conversations that "loader" can read back are evicted until the count is
+  // down to three quarters of the budget, so that one new message does not
+  // cause an eviction every time. Evicted messages are loaded again the first
+  // time their conversation, or one of them by id, is asked for. Zero (or less)
+  // means no cap, which is the default.
+  public void setMessageBudget(int budget, MessageLoader loader) {
+    writeLock.lock();
+    try {
+      this.loader = loader;
+      this.messageBudget = budget;
+      trim(null);
+    } finally {
+      writeLock.unlock();
+    }
+  }
 
   public void add(User user) {
     currentUserGeneration = userGenerations.make();
@@ -116,14 +280,43 @@ public final class Model {
     return conversationByText;
   }
 
-  public void add(Message message) {
-    messageById.insert(message.id, message);
-    messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+  // Must be called while holding the write lock. "row" is the message's row in
+  // storage, or less than zero if it was not written to storage; a conversation
+  // with a message that was not is never evicted. Returns false, without adding the message, if the conversation was
+  // evicted and could not be read back. Callers that can should bring the
+  // conversation back first (see messagesInConversation) so that the read does
+  // not happen while they hold the lock.
+  public boolean add(Uuid conversation, Message message, int row) {
+    if (row < 0) {
+      unstored.add(conversation);
+    }
+    if (evicted.containsKey(conversation)) {
+      // The index must hold all of the conversation's messages before it takes a
+      // new one, so bring the old ones back first.
+      load(conversation);
+      if (evicted.containsKey(conversation)) {
+        return false;
+      }
+    }
+    index(conversation, message, row);
+    trim(conversation);
+    return true;
+  }
+
+  // Returns null if the conversation has no messages.
+  public MessageIndex messagesInConversation(Uuid conversation) {
+    MessageIndex messages = messagesByConversation.get(conversation);
+    if (messages == null && evicted.containsKey(conversation)) {
+      messages = load(conversation);
+    }
+    if (messages != null) {
+      messages.touch();
+    }
+    return messages;
   }
 
   public StoreAccessor<Uuid, Message> messageById() {
-    return messageById;
+    return messageByIdLoading;
   }
 
   public StoreAccessor<Time, Message> messageByTime() {
@@ -133,4 +326,156 @@ public final class Model {
   public StoreAccessor<String, Message> messageByText() {
     return messageByText;
   }
+
+  // Must be called while holding the write lock.
+  private void index(Uuid conversation, Message message, int row) {
+    messageById.insert(message.id, message);
+    if (row >= 0) {
+      rows.put(message.id, row);
+    }
+    messageByTime.insert(message.creation, message);
+    messageByText.insert(message.content, message);
+
+    MessageIndex messages = messagesByConversation.get(conversation);
+    if (messages == null) {
+      messages = new MessageIndex();
+      messagesByConversation.put(conversation, messages);
+    }
+    messages.add(message);
+    messages.touch();
+
+    messageCount += 1;
+  }
+
+  // Must be called while holding the write lock. Never evicts "keep", the
+  // conversation that was just added to.
+  private void trim(Uuid keep) {
+
+    final int budget = messageBudget;
+    if (budget <= 0 || messageCount <= budget) {
+      return;
+    }
+
+    final List<Candidate> candidates = new ArrayList<>();
+    for (final Map.Entry<Uuid, MessageIndex> entry : messagesByConversation.entrySet()) {
+      if (!Uuid.equals(entry.getKey(), keep) &&
+          !unstored.contains(entry.getKey()) &&
+          loader.canLoad(entry.getKey())) {
+        candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+      }
+    }
+    Collections.sort(candidates);
+
+    final int target = budget - budget / 4;
+    for (final Candidate candidate : candidates) {
+      if (messageCount <= target) {
+        break;
+      }
+      evict(candidate.conversation, candidate.messages);
+    }
+  }
+
+  // Must be called while holding the write lock. The conversation is marked as
+  // evicted before its messages are removed so that a reader never finds it in
+  // neither state.
+  private void evict(Uuid conversation, MessageIndex messages) {
+
+    final List<Message> all = messages.first(messages.size());
+
+    evicted.put(conversation, new Evicted(all, rows));
+    for (final Message message : all) {
+      evictedMessages.put(message.id, conversation);
+    }
+
+    messagesByConversation.remove(conversation);
+    for (final Message message : all) {
+      messageById.remove(message.id, message);
+      rows.remove(message.id);
+      messageByTime.remove(message.creation, message);
+      messageByText.remove(message.content, message);
+    }
+
+    messageCount -= all.size();
+  }
+
+  // LOAD
+  //
+  // Reads an evicted conversation's messages back in, with the ids and authors
+  // they had before. Stored rows are matched to what was kept by row id. Every id
+  // that was kept comes back, even if its row is missing, so that nothing that
+  // links to it is left dangling. Readers call this too, so the rows are read
+  // without the write lock, which is only taken to put the messages back. Returns
+  // the conversation's messages, or null if it has none or they could not be
+  // read (in which case it stays evicted).
+  private MessageIndex load(Uuid conversation) {
+
+    final Evicted old = evicted.get(conversation);
+    if (old == null) {
+      return messagesByConversation.get(conversation);
+    }
+
+    final MessageLoader source = loader;
+    final List<MessageData> stored = source == null ? null : source.load(conversation);
+    if (stored == null) {
+      return null;
+    }
+
+    writeLock.lock();
+    try {
+
+      if (evicted.get(conversation) != old) {
+        // Someone else loaded it while this was reading.
+        return messagesByConversation.get(conversation);
+      }
+
+      final Map<Integer, MessageData> byRow = new HashMap<>();
+      for (final MessageData data : stored) {
+        byRow.put(data.getId(), data);
+      }
+
+      final List<Message> messages = new ArrayList<>();
+      int missing = 0;
+      for (int i = 0; i < old.ids.length; i++) {
+        final MessageData data = byRow.get(old.rows[i]);
+        String content = "";
+        if (data != null) {
+          content = data.getContent();
+        } else {
+          missing += 1;
+        }
+        messages.add(new Message(old.ids[i],
+                                 Uuid.NULL,
+                                 Uuid.NULL,
+                                 Time.fromMs(old.times[i]),
+                                 old.authors[i],
+                                 content));
+      }
+
+      if (missing > 0) {
+        LOG.error("%d messages of conversation %s were not in storage, loading them empty.",
+                  missing,
+                  conversation);
+      }
+
+      for (int i = 0; i + 1 < messages.size(); i++) {
+        messages.get(i).next = messages.get(i + 1).id;
+      }
+
+      for (int i = 0; i < messages.size(); i++) {
+        index(conversation, messages.get(i), old.rows[i]);
+      }
+
+      evicted.remove(conversation);
+      for (final Uuid id : old.ids) {
+        evictedMessages.remove(id);
+      }
+
+      trim(conversation);
+
+      return messagesByConversation.get(conversation);
+
+    } finally {
+      writeLock.unlock();
+    }
+  }
 }
@@ -63,4 +63,24 @@ public final class NoOpRelay implements Relay {
 
     return new ArrayList<Relay.Bundle>();
   }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       byte[] teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs) {
+
+    return new ArrayList<Relay.Bundle>();
+  }
+
+  @Override
+  public Collection<Relay.Bundle> readTeam(Uuid teamId,
+                                           byte[] teamSecret,
+                                           Uuid team,
+                                           Uuid root,
+                                           int range) {
+
+    return new ArrayList<Relay.Bundle>();
+  }
 }
@@ -0,0 +1,122 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import codeu.chat.util.Logger;
+import codeu.chat.util.Uuid;
+
+// RELAY CURSOR
+//
+// The id of the last bundle from the relay that a restarted server does not need
+// to read again, kept in a file so that it carries on from there instead of
+// reading the relay's whole history. The file is replaced in one rename so that a
+// crash while saving leaves the old cursor rather than half of a new one.
+//
+// Conversations and messages that come from the relay are only kept in memory. A
+// bundle that added one has to be read again after a restart to get it back, so
+// the saved cursor never moves past it.
+public final class RelayCursor {
+
+  private final static Logger.Log LOG = Logger.newLog(RelayCursor.class);
+
+  private final File file;
+  private final File temp;
+
+  // Where a restart can safely carry on from, and what was last written.
+  private Uuid safe = Uuid.NULL;
+  private Uuid saved = Uuid.NULL;
+
+  // Set once a bundle has added something that is only in memory. Nothing after
+  // it is safe to skip on a restart either.
+  private boolean pinned;
+
+  public RelayCursor(File file) {
+    this.file = file;
+    this.temp = new File(file.getPath() + ".tmp");
+  }
+
+  // The saved cursor, or NULL if there is none (or it could not be read), which
+  // reads the relay from the start.
+  public Uuid load() {
+    safe = saved = read();
+    pinned = false;
+    return safe;
+  }
+
+  // ADVANCE
+  //
+  // Call for each bundle in the order they are read. "kept" is whether everything
+  // the bundle added to the server would still be there after a restart - either
+  // it added nothing or what it added is in storage.
+  public void advance(Uuid bundle, boolean kept) {
+    pinned |= !kept;
+    if (!pinned) {
+      safe = bundle;
+    }
+  }
+
+  // SAVE
+  //
+  // Writes the cursor if it has moved since it was last written.
+  public void save() {
+    if (!Uuid.equals(safe, saved)) {
+      write(safe);
+      saved = safe;
+    }
+  }
+
+  private Uuid read() {
+
+    if (!file.exists()) {
+      return Uuid.NULL;
+    }
+
+    try {
+      // A Uuid is written as its length and then that many ids. The serializer
+      // does not notice a short read, so check the size first.
+      final byte[] bytes = Files.readAllBytes(file.toPath());
+      if (bytes.length == 0 || bytes.length != 1 + 4 * (bytes[0] & 0xFF)) {
+        throw new IOException("Relay cursor is " + bytes.length + " bytes long");
+      }
+      final Uuid cursor = Uuid.SERIALIZER.read(new ByteArrayInputStream(bytes));
+      return cursor == null ? Uuid.NULL : cursor;
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read relay cursor from %s, reading the relay from the start.", file);
+      return Uuid.NULL;
+    }
+  }
+
+  private void write(Uuid cursor) {
+
+    try (final FileOutputStream out = new FileOutputStream(temp)) {
+      Uuid.SERIALIZER.write(out, cursor);
+      out.getFD().sync();
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to write relay cursor to %s.", temp);
+      return;
+    }
+
+    // On some systems a rename does not replace a file that is already there.
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      LOG.error("Failed to replace relay cursor %s.", file);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+// RELAY PACER
+//
+// Decides how the server reads from the relay: how many bundles to ask for at
+// once, how fast to apply them, and how long to hold off after a read that came
+// back empty.
+//
+// Whether the server is behind is judged only by what the relay hands back. A
+// read that fills the batch means there is more waiting after it. The bundles'
+// times are not used, as they come from the relay's clock and not the server's.
+public final class RelayPacer {
+
+  // How long each read from the relay waits for new bundles.
+  static final long WAIT_MS = 20000;  // 20 seconds
+
+  // How long to put off reading from the relay when it cannot wait for bundles.
+  static final long REFRESH_MS = 5000;  // 5 seconds
+
+  // The fewest and most bundles to ask the relay for at once.
+  static final int MIN_BATCH = 32;
+  static final int MAX_BATCH = 1024;
+
+  // When applying bundles faster than the allowed rate, don't bother sleeping for
+  // less than this.
+  private static final long MIN_SLEEP_NS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  // The time to leave between bundles, or zero to apply them as fast as they come.
+  private final long interval;
+
+  private final int minBatch;
+  private final int maxBatch;
+
+  private int batch;
+
+  // The most the relay has been seen to hand out at once. A relay caps its reads,
+  // and asking for more than that would make every read look short.
+  private int limit;
+
+  private boolean behind;
+
+  // Whether the last read was short while catching up, and the batch was cut to
+  // what it got to find out if that is all the relay will give at once.
+  private boolean probing;
+
+  // When the next bundle is due to be applied.
+  private long due;
+
+  // RELAY PACER
+  //
+  // "applyRate" is the most bundles to apply each second, or zero for no limit.
+  public RelayPacer(int applyRate) {
+    this(applyRate, MIN_BATCH, MAX_BATCH);
+  }
+
+  public RelayPacer(int applyRate, int minBatch, int maxBatch) {
+    this.interval = applyRate > 0 ? TimeUnit.SECONDS.toNanos(1) / applyRate : 0;
+    this.minBatch = Math.max(1, minBatch);
+    this.maxBatch = Math.max(this.minBatch, maxBatch);
+    this.batch = this.minBatch;
+    this.limit = this.maxBatch;
+  }
+
+  // How many bundles to ask for in the next read.
+  public int batch() {
+    return batch;
+  }
+
+  // Whether the server is catching up with a backlog on the relay.
+  public boolean behind() {
+    return behind;
+  }
+
+  // START APPLYING
+  //
+  // Call when a read has come back, before applying its bundles. Time spent
+  // waiting on the relay does not count towards the rate.
+  public void startApplying(long nowNs) {
+    due = nowNs;
+  }
+
+  // PAUSE
+  //
+  // Call after applying each bundle. Returns how many milliseconds to sleep
+  // before applying the next one.
+  public long pause(long nowNs) {
+
+    if (interval <= 0) {
+      return 0;
+    }
+
+    due += interval;
+    final long ahead = due - nowNs;
+    return ahead >= MIN_SLEEP_NS ? TimeUnit.NANOSECONDS.toMillis(ahead) : 0;
+  }
+
+  // FINISH READ
+  //
+  // Call once the bundles from a read are applied, with how many there were. This
+  // sets the size of the next read and whether the server is behind.
+  public void finishRead(int read) {
+
+    if (read >= batch) {
+
+      // A full read, so there is probably more. If the batch was cut to find the
+      // relay's cap, that is the cap.
+      if (probing) {
+        limit = batch;
+        probing = false;
+      }
+      behind = true;
+      batch = Math.min(limit, batch * 2);
+
+    } else if (behind && !probing && read > 0) {
+
+      // A short read while catching up is either the end of the backlog or all
+      // the relay gives out at once. Ask for just that much next time - a full
+      // read then means there is still more.
+      probing = true;
+      batch = Math.max(minBatch, read);
+
+    } else {
+
+      behind = false;
+      probing = false;
+      limit = maxBatch;
+      if (read < batch / 2) {
+        batch = Math.max(minBatch, batch / 2);
+      }
+    }
+  }
+
+  // BACK OFF
+  //
+  // Returns how many milliseconds to wait before the next read. A read that comes
+  // back empty well before its wait was up means the relay could not wait (or
+  // could not be reached), so the next read is put off instead of sent at once.
+  public long backOff(int read, long elapsedMs) {
+    return read == 0 && elapsedMs < WAIT_MS / 2 ? REFRESH_MS : 0;
+  }
+}
@@ -17,8 +17,15 @@ package codeu.chat.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
@@ -117,10 +124,162 @@ public final class RemoteRelay implements Relay {
     }
   };
 
+  // The most bundles a subscription will hold before it stops reading from the
+  // relay. Once it stops, the relay's writes back up and it waits for us.
+  private static final int STREAM_BUFFER = 1024;
+
+  // SUBSCRIPTION
+  //
+  // A connection that the relay streams bundles down, starting after "root". A
+  // thread reads them into "bundles" for "read" to hand out.
+  private final class Subscription {
+
+    private final Connection connection;
+    private final BlockingQueue<Relay.Bundle> bundles = new ArrayBlockingQueue<>(STREAM_BUFFER);
+    private final Thread reader;
+
+    // Whether the stream is still open. Bundles may be left in "bundles" after it
+    // has closed.
+    private volatile boolean open = true;
+
+    // The id of the last bundle handed out, or the root if there has not been one.
+    private Uuid position;
+
+    public Subscription(final Uuid teamId, byte[] teamSecret, Uuid root, int range) throws IOException {
+
+      this.connection = source.connect();
+      this.position = root;
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Serializers.BYTES.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), root);
+      Serializers.INTEGER.write(connection.out(), range);
+      connection.out().flush();
+
+      this.reader = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int type;
+            while ((type = Serializers.INTEGER.read(connection.in())) == NetworkCode.RELAY_BUNDLES_EVENT) {
+              for (final Relay.Bundle bundle : Serializers.collection(BUNDLE_SERIALIZER).read(connection.in())) {
+                bundles.put(bundle);
+              }
+            }
+            // Either way the next read waits out its time on the empty buffer
+            // before subscribing again.
+            if (type == NetworkCode.RELAY_UNAUTHORIZED_RESPONSE) {
+              LOG.error("Relay does not accept team %s", teamId);
+            } else if (type == NetworkCode.RELAY_BUSY_RESPONSE) {
+              LOG.warning("Relay has no room for another subscription");
+            } else {
+              LOG.error("Relay did not handle RELAY_SUBSCRIBE_REQUEST");
+            }
+          } catch (InterruptedException ex) {
+            // Closed while waiting for room in the buffer.
+          } catch (Exception ex) {
+            if (open) {
+              LOG.error(ex, "Relay subscription failed");
+            }
+          }
+          close();
+        }
+      };
+
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    public void close() {
+      open = false;
+      reader.interrupt();
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Exception while closing relay subscription.");
+      }
+    }
+  }
+
+  // The most bundles that may wait to be written. Past this, writes fail rather
+  // than let the buffer grow without end while the relay is down.
+  static final int MAX_PENDING = 16 * 1024;
+
+  // How long to wait before sending a batch again after it failed.
+  private static final long RETRY_MS = 1000;
+
+  // PENDING
+  //
+  // A bundle that has been written but not sent to the relay yet.
+  private static final class Pending {
+
+    final Uuid teamId;
+    final byte[] teamSecret;
+    final Relay.Bundle.Component user;
+    final Relay.Bundle.Component conversation;
+    final Relay.Bundle.Component message;
+    final long queued = System.currentTimeMillis();
+
+    Pending(Uuid teamId,
+            byte[] teamSecret,
+            Relay.Bundle.Component user,
+            Relay.Bundle.Component conversation,
+            Relay.Bundle.Component message) {
+      this.teamId = teamId;
+      this.teamSecret = teamSecret;
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    boolean sameTeam(Pending other) {
+      return Uuid.equals(teamId, other.teamId) && Arrays.equals(teamSecret, other.teamSecret);
+    }
+  }
+
   private final ConnectionSource source;
+  private final boolean stream;
+
+  // Writes are sent in batches of up to "batchSize", each sent once it is full or
+  // its oldest bundle has waited "batchMs". Batches go out one at a time in the
+  // order they were written, which keeps every conversation's messages in order.
+  private final int batchSize;
+  private final long batchMs;
+  private final Deque<Pending> pending = new ArrayDeque<>();
+
+  // Only used by the reads that wait. One server only ever has one of those
+  // going at a time.
+  private Subscription subscription;
 
   public RemoteRelay(ConnectionSource source) {
+    this(source, true, 0, 0);
+  }
+
+  // REMOTE RELAY
+  //
+  // When "stream" is true the reads that wait are served from a subscription that
+  // the relay streams bundles down. Otherwise each of them is one long-poll request.
+  //
+  // When "batchSize" is more than one, "write" only adds the bundle to a buffer and
+  // a thread sends the buffer to the relay in batches, waiting at most "batchMs"
+  // to fill one. Otherwise every write is its own request.
+  public RemoteRelay(ConnectionSource source, boolean stream, int batchSize, long batchMs) {
     this.source = source;
+    this.stream = stream;
+    this.batchSize = batchSize;
+    this.batchMs = Math.max(0, batchMs);
+
+    if (batchSize > 1) {
+      final Thread sender = new Thread() {
+        @Override
+        public void run() {
+          sendBatches();
+        }
+      };
+      sender.setDaemon(true);
+      sender.start();
+    }
   }
 
   @Override
@@ -135,6 +294,32 @@ public final class RemoteRelay implements Relay {
                        Relay.Bundle.Component conversation,
                        Relay.Bundle.Component message) {
 
+    if (batchSize <= 1) {
+      return writeNow(teamId, teamSecret, user, conversation, message);
+    }
+
+    // A buffered write only fails if the buffer is full. Whether the relay accepts
+    // the bundle is only known once its batch has been sent.
+    synchronized (pending) {
+      if (pending.size() >= MAX_PENDING) {
+        LOG.error("Too many bundles waiting for the relay, dropping message %s", message.id());
+        return false;
+      }
+      pending.addLast(new Pending(teamId, teamSecret, user, conversation, message));
+      if (pending.size() == 1 || pending.size() >= batchSize) {
+        pending.notifyAll();
+      }
+    }
+
+    return true;
+  }
+
+  private boolean writeNow(Uuid teamId,
+                           byte[] teamSecret,
+                           Relay.Bundle.Component user,
+                           Relay.Bundle.Component conversation,
+                           Relay.Bundle.Component message) {
+
     boolean result = false;
 
     try (final Connection connection = source.connect()) {
@@ -158,6 +343,103 @@ public final class RemoteRelay implements Relay {
     return result;
   }
 
+  // SEND BATCHES
+  //
+  // Runs on the sender thread for as long as the server runs. Bundles are only
+  // taken off the buffer once the relay has written them, so any it did not write
+  // are sent again, ahead of everything written after them. That includes a batch
+  // the relay turned away because it did not accept the team yet, which happens
+  // while a relay that has just started is loading its teams. If the relay wrote
+  // a batch but the answer was lost, sending it again is harmless - servers skip
+  // messages they already have.
+  private void sendBatches() {
+
+    while (true) {
+
+      final List<Pending> batch = new ArrayList<>();
+
+      try {
+        synchronized (pending) {
+
+          while (pending.isEmpty()) {
+            pending.wait();
+          }
+
+          long wait = pending.peekFirst().queued + batchMs - System.currentTimeMillis();
+          while (pending.size() < batchSize && wait > 0) {
+            pending.wait(wait);
+            wait = pending.peekFirst().queued + batchMs - System.currentTimeMillis();
+          }
+
+          // A batch is for one team. That is always the case for a server, but the
+          // interface allows otherwise.
+          final Pending first = pending.peekFirst();
+          for (final Pending next : pending) {
+            if (batch.size() == batchSize || !next.sameTeam(first)) {
+              break;
+            }
+            batch.add(next);
+          }
+        }
+      } catch (InterruptedException ex) {
+        return;
+      }
+
+      final int written = sendBatch(batch);
+
+      synchronized (pending) {
+        for (int i = 0; i < written; i++) {
+          pending.removeFirst();
+        }
+      }
+
+      if (written < batch.size()) {
+        try {
+          Thread.sleep(RETRY_MS);
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
+  }
+
+  // Returns how many bundles from the front of the batch the relay wrote.
+  private int sendBatch(List<Pending> batch) {
+
+    final Pending first = batch.get(0);
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), first.teamId);
+      Serializers.BYTES.write(connection.out(), first.teamSecret);
+      Serializers.INTEGER.write(connection.out(), batch.size());
+      for (final Pending bundle : batch) {
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.user);
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.conversation);
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.message);
+      }
+
+      final int type = Serializers.INTEGER.read(connection.in());
+
+      if (type == NetworkCode.RELAY_WRITE_BATCH_RESPONSE) {
+        final int written = Serializers.INTEGER.read(connection.in());
+        if (written < batch.size()) {
+          LOG.error("Relay wrote %d of %d bundles, sending the rest again", written, batch.size());
+        }
+        return Math.max(0, Math.min(written, batch.size()));
+      } else if (type == NetworkCode.RELAY_UNAUTHORIZED_RESPONSE) {
+        LOG.error("Relay does not accept team %s yet, sending the batch again", first.teamId);
+      } else {
+        LOG.error("Server did not handle RELAY_WRITE_BATCH_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_WRITE_BATCH_REQUEST");
+    }
+
+    return 0;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range) {
 
@@ -182,4 +464,120 @@ public final class RemoteRelay implements Relay {
 
     return result;
   }
+
+  @Override
+  public Collection<Relay.Bundle> readTeam(Uuid teamId,
+                                           byte[] teamSecret,
+                                           Uuid team,
+                                           Uuid root,
+                                           int range) {
+
+    final Collection<Relay.Bundle> result = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_TEAM_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Serializers.BYTES.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), team);
+      Uuid.SERIALIZER.write(connection.out(), root);
+      Serializers.INTEGER.write(connection.out(), range);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_RESPONSE) {
+        result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Server did not handle RELAY_READ_TEAM_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_READ_TEAM_REQUEST");
+    }
+
+    return result;
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       byte[] teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs) {
+
+    return stream ?
+        readStream(teamId, teamSecret, root, range, waitMs) :
+        readWait(teamId, teamSecret, root, range, waitMs);
+  }
+
+  private Collection<Relay.Bundle> readWait(Uuid teamId,
+                                            byte[] teamSecret,
+                                            Uuid root,
+                                            int range,
+                                            long waitMs) {
+
+    final Collection<Relay.Bundle> result = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_WAIT_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Serializers.BYTES.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), root);
+      Serializers.INTEGER.write(connection.out(), range);
+      Serializers.LONG.write(connection.out(), waitMs);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_RESPONSE) {
+        result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Server did not handle RELAY_READ_WAIT_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_READ_WAIT_REQUEST");
+    }
+
+    return result;
+  }
+
+  // Hand out what the subscription has buffered. A new subscription is started
+  // when there is none, when the last one closed and has nothing left, or when
+  // the caller asks for somewhere other than where the subscription is up to.
+  private synchronized Collection<Relay.Bundle> readStream(Uuid teamId,
+                                                           byte[] teamSecret,
+                                                           Uuid root,
+                                                           int range,
+                                                           long waitMs) {
+
+    final List<Relay.Bundle> result = new ArrayList<>();
+
+    if (range <= 0) {
+      return result;
+    }
+
+    if (subscription != null &&
+        (!Uuid.equals(subscription.position, root) ||
+         (!subscription.open && subscription.bundles.isEmpty()))) {
+      subscription.close();
+      subscription = null;
+    }
+
+    if (subscription == null) {
+      try {
+        subscription = new Subscription(teamId, teamSecret, root, range);
+      } catch (Exception ex) {
+        LOG.error(ex, "Unexpected error when sending RELAY_SUBSCRIBE_REQUEST");
+        return result;
+      }
+    }
+
+    try {
+      final Relay.Bundle first = subscription.bundles.poll(waitMs, TimeUnit.MILLISECONDS);
+      if (first != null) {
+        result.add(first);
+        subscription.bundles.drainTo(result, range - 1);
+        subscription.position = result.get(result.size() - 1).id();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    return result;
+  }
 }
@@ -15,6 +15,11 @@
 
 package codeu.chat.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,22 +28,40 @@ import java.net.Socket;
 import java.security.*;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.sql.SQLException;
+import javax.crypto.SecretKey;
 
 import codeu.chat.common.Conversation;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageBatch;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
 import codeu.chat.common.User;
 import codeu.chat.database.Database;
 import codeu.chat.util.*;
 import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
 
+import codeu.chat.authentication.AuthenticationCode;
 import codeu.chat.server.authentication.Authentication;
 import codeu.chat.server.storage.Storage;
 
@@ -46,10 +69,25 @@ public final class Server {
 
   private static final Logger.Log LOG = Logger.newLog(Server.class);
 
-  private static final int RELAY_REFRESH_MS = 5000;  // 5 seconds
+  private static final int AUTH_REPORT_MS = 60000;  // 1 minute
 
   private final Timeline timeline = new Timeline();
 
+  // Client requests are handled on this executor. It is either a pool of worker
+  // threads or, when no workers are requested, the timeline's single thread.
+  private final Executor requestExecutor;
+
+  // Registering and logging in hash the password with BCrypt, which is slow on
+  // purpose. Those requests run on this small pool instead so that a burst of
+  // logins cannot hold up everyone else's requests. Its queue is bounded, and
+  // when it is full a login is turned away at once rather than left waiting.
+  private final ThreadPoolExecutor authExecutor;
+
+  // How long logins and registrations take from arriving to being answered,
+  // including time spent queued, and how many were turned away.
+  private final LatencyStats authLatency = new LatencyStats();
+  private final AtomicLong authRejected = new AtomicLong();
+
   private final Uuid id;
   private final byte[] secret;
 
@@ -58,7 +96,9 @@ public final class Server {
   private final Controller controller;
 
   private final Relay relay;
-  private Uuid lastSeen = Uuid.NULL;
+  private final RelayCursor relayCursor;
+  private Uuid lastSeen;
+  private final int relayApplyRate;
 
   private final Database database;
 
@@ -70,7 +110,153 @@ public final class Server {
 
   private final Storage storage;
 
-  public Server(final Uuid id, final byte[] secret, final Relay relay, final Database database, final KeyPair keyPair) {
+  // Clients on multiplexed connections that want new messages pushed to them, by
+  // conversation.
+  private final ConcurrentMap<Uuid, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+  // The most pushes a subscriber can have waiting before it is considered too far
+  // behind to catch up.
+  private static final int PUSH_QUEUE = 256;
+
+  // Pushes are written on these threads. Each subscriber has at most one write
+  // running at a time, so a client that reads slowly only holds up its own pushes
+  // and at most one thread.
+  private final ExecutorService pushExecutor = Executors.newCachedThreadPool();
+
+  // MULTIPLEXED
+  //
+  // What the requests and subscriptions of one multiplexed connection share.
+  private static final class Multiplexed {
+
+    public final Connection connection;
+    public final OutputStream out;
+
+    // Subscriptions made on this connection, by request id.
+    public final Map<Integer, Subscriber> subscriptions = new ConcurrentHashMap<>();
+
+    // Session keys handed out on this connection. They can only be used by
+    // requests on this connection and are forgotten when it closes.
+    public final SessionKeys sessions = new SessionKeys();
+
+    // Set once the connection's reader has stopped. Subscriptions registered after
+    // this must be dropped by whoever registered them.
+    public volatile boolean closed = false;
+
+    public Multiplexed(Connection connection, OutputStream out) {
+      this.connection = connection;
+      this.out = out;
+    }
+  }
+
+  // SUBSCRIBER
+  //
+  // A subscription made on a multiplexed connection. Pushed messages wait in a
+  // bounded queue and are written to the connection as frames with the
+  // subscription request's id, one at a time, on the push executor. A subscriber
+  // that falls a whole queue behind (or whose connection fails) is dropped and its
+  // connection closed, which tells the client that the subscription has ended.
+  private final class Subscriber implements Runnable {
+
+    public final int id;
+    public final Uuid conversation;
+    public final PublicKey clientKey;
+    public final Multiplexed channel;
+
+    private final BlockingQueue<Message> pending = new ArrayBlockingQueue<>(PUSH_QUEUE);
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private volatile boolean dropped = false;
+
+    public Subscriber(int id, Uuid conversation, PublicKey clientKey, Multiplexed channel) {
+      this.id = id;
+      this.conversation = conversation;
+      this.clientKey = clientKey;
+      this.channel = channel;
+    }
+
+    // Never blocks.
+    public void push(Message message) {
+      if (dropped) {
+        return;
+      }
+      if (!pending.offer(message)) {
+        LOG.warning("Subscriber %d fell %d pushes behind, closing its connection.", id, PUSH_QUEUE);
+        drop();
+        return;
+      }
+      if (writing.compareAndSet(false, true)) {
+        pushExecutor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      final SessionKeys unbound = SessionKeys.bind(channel.sessions);
+      try {
+        Message message;
+        while (!dropped && (message = pending.poll()) != null) {
+          final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+          Serializers.INTEGER.write(payload, NetworkCode.NEW_MESSAGE_EVENT);
+          Message.ENCRYPTED_SERIALIZER.write(payload, message, clientKey);
+
+          synchronized (channel.out) {
+            Frame.SERIALIZER.write(channel.out, new Frame(id, payload.toByteArray()));
+            channel.out.flush();
+          }
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to push to subscriber %d.", id);
+        drop();
+      } finally {
+        SessionKeys.bind(unbound);
+        writing.set(false);
+      }
+
+      // A push may have been queued after the last poll but before "writing" was
+      // cleared, in which case no one else will write it.
+      if (!dropped && !pending.isEmpty() && writing.compareAndSet(false, true)) {
+        pushExecutor.execute(this);
+      }
+    }
+
+    private void drop() {
+      dropped = true;
+      pending.clear();
+      unsubscribe(this);
+      // The connection's reader sees it close and drops the rest of its subscribers.
+      close(channel.connection);
+    }
+  }
+
+  // SERVER
+  //
+  // "messageBudget" caps how many messages are kept in memory (see
+  // Controller.setMessageBudget); zero keeps them all.
+  //
+  // "authThreads" and "authQueue" size the pool that registrations and logins run
+  // on, and how many may wait for it before more are turned away.
+  //
+  // "relayApplyRate" is the most bundles from the relay to apply each second, so
+  // that catching up on a backlog leaves room for clients; zero is no limit.
+  //
+  // "relayCursor" is where reading the relay carries on from after a restart. It
+  // stops short of anything from the relay that is only in memory, so that a
+  // restart reads it again.
+  //
+  // "workers" is the number of threads used to handle client requests. If it is
+  // zero (or less), every request is handled on the timeline's thread one after
+  // another, which is how the server used to work.
+  public Server(final Uuid id,
+                final byte[] secret,
+                final Relay relay,
+                final Database database,
+                final Storage storage,
+                final KeyPair keyPair,
+                final int workers,
+                final int messageBudget,
+                final int authThreads,
+                final int authQueue,
+                final int relayApplyRate,
+                final RelayCursor relayCursor) {
 
     this.id = id;
     this.secret = Arrays.copyOf(secret, secret.length);
@@ -78,72 +264,512 @@ public final class Server {
     // Set up the authentication manager.
     this.database = database;
     this.authentication = new Authentication(database);
-    //Set up storage manager
-    this.storage = new Storage(database);
+    this.storage = storage;
 
     this.controller = new Controller(id, model, authentication, storage);
+    this.controller.setMessageBudget(messageBudget);
+    this.controller.addMessageListener(new Controller.MessageListener() {
+      @Override
+      public void onMessage(Uuid conversation, Message message) {
+        final Set<Subscriber> listening = subscribers.get(conversation);
+        if (listening != null && !listening.isEmpty()) {
+          // Pushes are queued from the timeline so that they are queued in the
+          // order the messages were added. Nothing on the timeline waits on a
+          // client; each subscriber writes its own pushes.
+          timeline.scheduleNow(createPushEvent(listening, message));
+        }
+      }
+    });
     this.relay = relay;
+    this.relayApplyRate = Math.max(0, relayApplyRate);
+    this.relayCursor = relayCursor;
+    this.lastSeen = relayCursor.load();
 
     this.privateKey = keyPair.getPrivate();
     this.publicKey = keyPair.getPublic();
 
+    if (workers > 0) {
+      this.requestExecutor = Executors.newFixedThreadPool(workers);
+    } else {
+      this.requestExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          timeline.scheduleNow(command);
+        }
+      };
+    }
+
+    this.authExecutor = new ThreadPoolExecutor(
+        Math.max(1, authThreads),
+        Math.max(1, authThreads),
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, authQueue)));
+
     // Server initialization finished.
-    LOG.info("Server initialized.");
+    LOG.info("Server initialized (workers=%d messageBudget=%d authThreads=%d authQueue=%d).",
+             Math.max(0, workers),
+             Math.max(0, messageBudget),
+             Math.max(1, authThreads),
+             Math.max(1, authQueue));
 
-    timeline.scheduleNow(new Runnable() {
+    timeline.scheduleIn(AUTH_REPORT_MS, new Runnable() {
       @Override
       public void run() {
-        try {
+        final String latency = authLatency.drain();
+        final long rejected = authRejected.getAndSet(0);
+        if (latency != null || rejected > 0) {
+          LOG.info("Authentication (%s rejected=%d queued=%d)",
+                   latency == null ? "count=0" : latency,
+                   rejected,
+                   authExecutor.getQueue().size());
+        }
+        timeline.scheduleIn(AUTH_REPORT_MS, this);
+      }
+    });
 
-          LOG.verbose("Reading update from relay...");
+    final Thread relayReader = new Thread() {
+      @Override
+      public void run() {
+        readRelay();
+      }
+    };
 
-          for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
-            onBundle(bundle);
-            lastSeen = bundle.id();
-          }
+    relayReader.setDaemon(true);
+    relayReader.start();
+  }
 
-        } catch (Exception ex) {
+  // READ RELAY
+  //
+  // Read bundles from the relay for as long as the server runs. Each read waits on
+  // the relay until there is something new, so bundles arrive as soon as they are
+  // written. If a read comes back empty before its wait was up, the relay could not
+  // wait (or could not be reached) and the next read is put off instead.
+  //
+  // A server that was down comes back to a backlog. While reads come back full it
+  // is catching up: the batch size grows and the next read goes out straight away.
+  // Once it has caught up the batch size shrinks again. Either way bundles are
+  // applied no faster than "relayApplyRate" so that clients still get their turn.
+  // See RelayPacer for how those are decided.
+  private void readRelay() {
+
+    final RelayPacer pacer = new RelayPacer(relayApplyRate);
+
+    long caughtUpStart = 0;
+    long caughtUpCount = 0;
+
+    while (true) {
+
+      final long start = System.currentTimeMillis();
+      final boolean wasBehind = pacer.behind();
+      int read = 0;
+
+      try {
+
+        LOG.verbose("Reading update from relay (batch=%d)...", pacer.batch());
+
+        final Collection<Relay.Bundle> bundles =
+            relay.read(id, secret, lastSeen, pacer.batch(), RelayPacer.WAIT_MS);
+
+        pacer.startApplying(System.nanoTime());
 
-          LOG.error(ex, "Failed to read update from relay.");
+        for (final Relay.Bundle bundle : bundles) {
+          // What the relay adds is not stored, so the saved cursor stops short of it.
+          relayCursor.advance(bundle.id(), !onBundle(bundle));
+          lastSeen = bundle.id();
+          read++;
 
+          final long pause = pacer.pause(System.nanoTime());
+          if (pause > 0) {
+            Thread.sleep(pause);
+          }
         }
 
-        timeline.scheduleIn(RELAY_REFRESH_MS, this);
+      } catch (InterruptedException ex) {
+
+        return;
+
+      } catch (Exception ex) {
+
+        LOG.error(ex, "Failed to read update from relay.");
+
       }
-    });
+
+      // Saved once per read rather than per bundle. A crash in between applies the
+      // rest of the read again, which is harmless as bundles already applied are
+      // skipped.
+      if (read > 0) {
+        relayCursor.save();
+      }
+
+      pacer.finishRead(read);
+
+      if (pacer.behind() && !wasBehind) {
+        LOG.info("Catching up with the relay.");
+        caughtUpStart = start;
+        caughtUpCount = 0;
+      } else if (!pacer.behind() && wasBehind) {
+        LOG.info("Caught up with the relay (bundles=%d time=%dms).",
+                 caughtUpCount + read,
+                 System.currentTimeMillis() - caughtUpStart);
+      }
+
+      caughtUpCount += read;
+
+      final long backOff = pacer.backOff(read, System.currentTimeMillis() - start);
+      if (backOff > 0) {
+        try {
+          Thread.sleep(backOff);
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
   }
 
   public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(new Runnable() {
+    requestExecutor.execute(new Runnable() {
       @Override
       public void run() {
         try {
 
           LOG.verbose("Handling connection...");
 
-          final boolean success = onMessage(
-              connection.in(),
-              connection.out());
+          final int type = Serializers.INTEGER.read(connection.in());
+
+          if (type == NetworkCode.MULTIPLEXED_CONNECTION_REQUEST) {
+            // The connection will stay open for many requests, so it gets its
+            // own thread rather than holding onto a request thread.
+            startMultiplexedConnection(connection);
+            return;
+          }
+
+          if (isAuthRequest(type)) {
+            runAuth(new Runnable() {
+              @Override
+              public void run() {
+                handleRequest(type, connection);
+              }
+            }, new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  writeBusy(type, connection.out());
+                } catch (Exception ex) {
+                  LOG.error(ex, "Exception while turning away connection.");
+                }
+                close(connection);
+              }
+            });
+            return;
+          }
+
+          handleRequest(type, connection);
 
-          LOG.verbose("Connection handled: %s", success ? "ACCEPTED" : "REJECTED");
         } catch (Exception ex) {
 
           LOG.error(ex, "Exception while handling connection.");
+          close(connection);
 
         }
+      }
+    });
+  }
+
+  // Handles the request on a connection of its own and closes the connection.
+  private void handleRequest(int type, Connection connection) {
+    try {
+
+      final boolean success = onMessage(
+          type,
+          connection.in(),
+          connection.out());
+
+      LOG.verbose("Connection handled: %s", success ? "ACCEPTED" : "REJECTED");
+    } catch (Exception ex) {
+
+      LOG.error(ex, "Exception while handling connection.");
+
+    }
+
+    close(connection);
+  }
+
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
+
+  private static boolean isAuthRequest(int type) {
+    return type == NetworkCode.NEW_USER_REQUEST || type == NetworkCode.LOGIN_REQUEST;
+  }
+
+  // RUN AUTH
+  //
+  // Runs "work" on the authentication pool, or "reject" on this thread straight
+  // away if the pool already has as much queued as it is allowed.
+  private void runAuth(final Runnable work, Runnable reject) {
+    final long queued = System.nanoTime();
+    try {
+      authExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            work.run();
+          } finally {
+            authLatency.record(System.nanoTime() - queued);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      authRejected.incrementAndGet();
+      LOG.warning("Authentication queue is full, turning a request away.");
+      reject.run();
+    }
+  }
+
+  // The answer to a registration or login that was not attempted because the
+  // server is too busy. A registration gets SERVER_BUSY; a login's response has
+  // no room for a reason, so it looks like a failed login.
+  private static void writeBusy(int type, OutputStream out) throws IOException {
+    if (type == NetworkCode.NEW_USER_REQUEST) {
+      Serializers.INTEGER.write(out, NetworkCode.NEW_USER_RESPONSE);
+      Serializers.INTEGER.write(out, AuthenticationCode.SERVER_BUSY);
+    } else {
+      Serializers.INTEGER.write(out, NetworkCode.LOGIN_RESPONSE);
+      EncryptedSerializers.nullable(User.ENCRYPTED_SERIALIZER).write(out, null, null);
+      Serializers.nullable(Uuid.SERIALIZER).write(out, null);
+    }
+  }
+
+  // START MULTIPLEXED CONNECTION
+  //
+  // Read frames from a long-lived connection until the client hangs up. Each frame
+  // is a complete request and is handled on the request executor like a request
+  // that came in on its own connection. Responses are written back as soon as they
+  // are ready, tagged with the id of their request, so they may leave in a
+  // different order than the requests arrived.
+  private void startMultiplexedConnection(final Connection connection) throws IOException {
+
+    final InputStream in = new BufferedInputStream(connection.in());
+    final OutputStream out = new BufferedOutputStream(connection.out());
+    final Multiplexed channel = new Multiplexed(connection, out);
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+
+        LOG.info("Multiplexed connection opened.");
 
         try {
-          connection.close();
+          while (true) {
+            final Frame request = Frame.SERIALIZER.read(in);
+            final Runnable handle = new Runnable() {
+              @Override
+              public void run() {
+                onFrame(request, channel);
+              }
+            };
+            final int type = frameType(request);
+            if (isAuthRequest(type)) {
+              runAuth(handle, new Runnable() {
+                @Override
+                public void run() {
+                  final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                  try {
+                    writeBusy(type, response);
+                    synchronized (out) {
+                      Frame.SERIALIZER.write(out, new Frame(request.id, response.toByteArray()));
+                      out.flush();
+                    }
+                  } catch (IOException ex) {
+                    LOG.error(ex, "Failed to turn away request %d.", request.id);
+                  }
+                }
+              });
+            } else {
+              requestExecutor.execute(handle);
+            }
+          }
+        } catch (EOFException ex) {
+          // The client closed the connection.
         } catch (Exception ex) {
-          LOG.error(ex, "Exception while closing connection.");
+          LOG.error(ex, "Exception while reading from multiplexed connection.");
+        }
+
+        // Closing first fails any push that is stuck writing to the connection.
+        close(connection);
+
+        channel.closed = true;
+        for (final Subscriber subscriber : channel.subscriptions.values()) {
+          unsubscribe(subscriber);
         }
+        channel.sessions.clear();
+
+        LOG.info("Multiplexed connection closed.");
       }
-    });
+    };
+
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  // The request type at the start of a frame's payload, or NO_MESSAGE if the
+  // payload is too short to have one.
+  private static int frameType(Frame frame) {
+    try {
+      return Serializers.INTEGER.read(new ByteArrayInputStream(frame.payload));
+    } catch (IOException ex) {
+      return NetworkCode.NO_MESSAGE;
+    }
+  }
+
+  private void onFrame(Frame request, Multiplexed channel) {
+
+    final OutputStream out = channel.out;
+
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    Subscriber subscriber = null;
+
+    final SessionKeys unbound = SessionKeys.bind(channel.sessions);
+    try {
+
+      final InputStream in = new ByteArrayInputStream(request.payload);
+      final int type = Serializers.INTEGER.read(in);
+
+      if (type == NetworkCode.SUBSCRIBE_CONVERSATION_REQUEST) {
+
+        final PublicKey clientKey = Encryptor.SERIALIZER.read(in);
+        final Uuid conversation = Uuid.SERIALIZER.read(in);
+
+        final boolean found = view.findConversation(conversation) != null;
+        if (found) {
+          subscriber = new Subscriber(request.id, conversation, clientKey, channel);
+        }
+
+        Serializers.INTEGER.write(response, NetworkCode.SUBSCRIBE_CONVERSATION_RESPONSE);
+        Serializers.BOOLEAN.write(response, found);
+
+      } else if (type == NetworkCode.UNSUBSCRIBE_CONVERSATION_REQUEST) {
+
+        final int subscription = Serializers.INTEGER.read(in);
+        unsubscribe(channel.subscriptions.remove(subscription));
+
+        Serializers.INTEGER.write(response, NetworkCode.UNSUBSCRIBE_CONVERSATION_RESPONSE);
+
+      } else if (type == NetworkCode.SESSION_KEY_REQUEST) {
+
+        // Hand out the symmetric key for this client's session. It is wrapped with
+        // the client's public key so only the holder of the private key can use it.
+        // After this, payloads in both directions on this connection use the
+        // session key instead of wrapping a new key for every field. Sessions are
+        // only handed out on multiplexed connections as a connection of its own
+        // closes right after the response.
+        final PublicKey clientKey = Encryptor.SERIALIZER.read(in);
+        final SessionKeys.Session session = channel.sessions.open(clientKey);
+
+        Serializers.INTEGER.write(response, NetworkCode.SESSION_KEY_RESPONSE);
+        Serializers.LONG.write(response, session.id);
+        Serializers.BYTES.write(response, Encryptor.wrap(session.key, clientKey));
+
+      } else if (type == NetworkCode.SESSION_RESUME_REQUEST) {
+
+        // Take up the session a client had on a connection that was lost, so that
+        // payloads it encrypted under the session before reconnecting can still be
+        // read. Only the server can unwrap the key, and a client that already has
+        // a session on this connection keeps it. A key wrapped for another server
+        // (e.g. before this one restarted with new keys) is refused, and the
+        // client opens a new session instead.
+        final PublicKey clientKey = Encryptor.SERIALIZER.read(in);
+        final long id = Serializers.LONG.read(in);
+        final SecretKey key = Encryptor.unwrapFromPeer(Serializers.BYTES.read(in), getServerPrivateKey());
+
+        Serializers.INTEGER.write(response, NetworkCode.SESSION_RESUME_RESPONSE);
+        Serializers.BOOLEAN.write(response,
+            key != null && channel.sessions.resume(clientKey, new SessionKeys.Session(id, key)));
+
+      } else {
+
+        onMessage(type, in, response);
+
+      }
+
+    } catch (Exception ex) {
+
+      LOG.error(ex, "Exception while handling request %d.", request.id);
+
+      // The client is waiting on a response with this id, so always send one.
+      response.reset();
+      try {
+        Serializers.INTEGER.write(response, NetworkCode.NO_MESSAGE);
+      } catch (IOException never) {
+        // Writing to a ByteArrayOutputStream does not throw.
+      }
+    } finally {
+      SessionKeys.bind(unbound);
+    }
+
+    try {
+      synchronized (out) {
+        // Pushes take the same lock, so registering the subscriber here means the
+        // client always gets its response before anything is pushed to it.
+        if (subscriber != null) {
+          channel.subscriptions.put(subscriber.id, subscriber);
+          subscribe(subscriber);
+          // The reader marks the connection closed before dropping its
+          // subscribers, so if it has not been marked yet the reader will see
+          // this one. Otherwise it is left to us.
+          if (channel.closed) {
+            channel.subscriptions.remove(subscriber.id);
+            unsubscribe(subscriber);
+          }
+        }
+        Frame.SERIALIZER.write(out, new Frame(request.id, response.toByteArray()));
+        out.flush();
+      }
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to send response %d.", request.id);
+    }
+  }
+
+  private void subscribe(Subscriber subscriber) {
+    Set<Subscriber> listening = subscribers.get(subscriber.conversation);
+    if (listening == null) {
+      final Set<Subscriber> created = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+      listening = subscribers.putIfAbsent(subscriber.conversation, created);
+      if (listening == null) {
+        listening = created;
+      }
+    }
+    listening.add(subscriber);
   }
 
-  private boolean onMessage(InputStream in, OutputStream out) throws IOException {
+  private void unsubscribe(Subscriber subscriber) {
+    if (subscriber != null) {
+      final Set<Subscriber> listening = subscribers.get(subscriber.conversation);
+      if (listening != null) {
+        listening.remove(subscriber);
+      }
+    }
+  }
 
-    final int type = Serializers.INTEGER.read(in);
+  // Only queues the message for each subscriber; the writes happen on the push
+  // executor (see Subscriber).
+  private Runnable createPushEvent(final Set<Subscriber> listening, final Message message) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (final Subscriber subscriber : listening) {
+          subscriber.push(message);
+        }
+      }
+    };
+  }
+
+  private boolean onMessage(int type, InputStream in, OutputStream out) throws IOException {
 
     if (type == NetworkCode.NEW_MESSAGE_REQUEST) {
 
@@ -158,10 +784,12 @@ public final class Server {
       Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
       EncryptedSerializers.nullable(Message.ENCRYPTED_SERIALIZER).write(out, message, clientKey);
 
-      timeline.scheduleNow(createSendToRelayEvent(
-          author,
-          conversation,
-          message.id));
+      if (message != null) {
+        timeline.scheduleNow(createSendToRelayEvent(
+            author,
+            conversation,
+            message.id));
+      }
 
     } else if (type == NetworkCode.NEW_USER_REQUEST) {
 
@@ -209,7 +837,7 @@ public final class Server {
       final Collection<User> users = view.getUsers(ids);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_USERS_BY_ID_RESPONSE);
-      EncryptedSerializers.collection(User.ENCRYPTED_SERIALIZER).write(out, users, clientKey);
+      User.ENCRYPTED_COLLECTION_SERIALIZER.write(out, users, clientKey);
 
     } else if (type == NetworkCode.GET_ALL_CONVERSATIONS_REQUEST) {
 
@@ -217,7 +845,7 @@ public final class Server {
       final Collection<ConversationSummary> conversations = view.getAllConversations();
 
       Serializers.INTEGER.write(out, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
-      EncryptedSerializers.collection(ConversationSummary.ENCRYPTED_SERIALIZER).write(out, conversations, clientKey);
+      ConversationSummary.ENCRYPTED_COLLECTION_SERIALIZER.write(out, conversations, clientKey);
 
     } else if (type == NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST) {
 
@@ -227,7 +855,7 @@ public final class Server {
       final Collection<Conversation> conversations = view.getConversations(ids);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
-      EncryptedSerializers.collection(Conversation.ENCRYPTED_SERIALIZER).write(out, conversations, clientKey);
+      Conversation.ENCRYPTED_COLLECTION_SERIALIZER.write(out, conversations, clientKey);
 
     } else if (type == NetworkCode.GET_MESSAGES_BY_ID_REQUEST) {
 
@@ -237,7 +865,7 @@ public final class Server {
       final Collection<Message> messages = view.getMessages(ids);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
-      EncryptedSerializers.collection(Message.ENCRYPTED_SERIALIZER).write(out, messages, clientKey);
+      Message.ENCRYPTED_COLLECTION_SERIALIZER.write(out, messages, clientKey);
 
     } else if (type == NetworkCode.GET_USER_GENERATION_REQUEST) {
 
@@ -252,7 +880,7 @@ public final class Server {
       final Collection<User> users = view.getUsersExcluding(ids);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_USERS_EXCLUDING_RESPONSE);
-      EncryptedSerializers.collection(User.ENCRYPTED_SERIALIZER).write(out, users, clientKey);
+      User.ENCRYPTED_COLLECTION_SERIALIZER.write(out, users, clientKey);
 
     } else if (type == NetworkCode.GET_CONVERSATIONS_BY_TIME_REQUEST) {
 
@@ -263,7 +891,7 @@ public final class Server {
       final Collection<Conversation> conversations = view.getConversations(startTime, endTime);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_TIME_RESPONSE);
-      EncryptedSerializers.collection(Conversation.ENCRYPTED_SERIALIZER).write(out, conversations, clientKey);
+      Conversation.ENCRYPTED_COLLECTION_SERIALIZER.write(out, conversations, clientKey);
 
     } else if (type == NetworkCode.GET_CONVERSATIONS_BY_TITLE_REQUEST) {
 
@@ -273,7 +901,7 @@ public final class Server {
       final Collection<Conversation> conversations = view.getConversations(filter);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE);
-      EncryptedSerializers.collection(Conversation.ENCRYPTED_SERIALIZER).write(out, conversations, clientKey);
+      Conversation.ENCRYPTED_COLLECTION_SERIALIZER.write(out, conversations, clientKey);
 
     } else if (type == NetworkCode.GET_MESSAGES_BY_TIME_REQUEST) {
 
@@ -285,7 +913,7 @@ public final class Server {
       final Collection<Message> messages = view.getMessages(conversation, startTime, endTime);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_TIME_RESPONSE);
-      EncryptedSerializers.collection(Message.ENCRYPTED_SERIALIZER).write(out, messages, clientKey);
+      Message.ENCRYPTED_COLLECTION_SERIALIZER.write(out, messages, clientKey);
 
     } else if (type == NetworkCode.GET_MESSAGES_BY_RANGE_REQUEST) {
 
@@ -296,7 +924,19 @@ public final class Server {
       final Collection<Message> messages = view.getMessages(rootMessage, range);
 
       Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_RANGE_RESPONSE);
-      EncryptedSerializers.collection(Message.ENCRYPTED_SERIALIZER).write(out, messages, clientKey);
+      Message.ENCRYPTED_COLLECTION_SERIALIZER.write(out, messages, clientKey);
+
+    } else if (type == NetworkCode.GET_MESSAGES_SINCE_REQUEST) {
+
+      final PublicKey clientKey = Encryptor.SERIALIZER.read(in);
+      final Uuid conversation = Uuid.SERIALIZER.read(in);
+      final Uuid after = Uuid.SERIALIZER.read(in);
+      final int limit = Serializers.INTEGER.read(in);
+
+      final MessageBatch batch = view.getMessagesSince(conversation, after, limit);
+
+      Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_SINCE_RESPONSE);
+      EncryptedSerializers.nullable(MessageBatch.ENCRYPTED_SERIALIZER).write(out, batch, clientKey);
 
     } else if (type == NetworkCode.SERVER_PUBLIC_KEY_REQUEST) {
       
@@ -315,21 +955,25 @@ public final class Server {
     return true;
   }
 
-  private void onBundle(Relay.Bundle bundle) {
+  // Returns whether the bundle added anything to the model. What it adds is only
+  // kept in memory.
+  private boolean onBundle(Relay.Bundle bundle) {
 
     final Relay.Bundle.Component relayUser = bundle.user();
     final Relay.Bundle.Component relayConversation = bundle.conversation();
     final Relay.Bundle.Component relayMessage = bundle.user();
 
-    User user = model.userById().first(relayUser.id());
+    User user = view.findUser(relayUser.id());
 
     if (user == null) {
       // Invalid user.
       LOG.error("Invalid user received from relay.");
-      return;
+      return false;
     }
 
-    Conversation conversation = model.conversationById().first(relayConversation.id());
+    boolean added = false;
+
+    Conversation conversation = view.findConversation(relayConversation.id());
 
     if (conversation == null) {
 
@@ -340,9 +984,14 @@ public final class Server {
                                                 relayConversation.text(),
                                                 user.id,
                                                 relayConversation.time());
+      if (conversation == null) {
+        LOG.error("Failed to add conversation %s from relay.", relayConversation.id());
+        return false;
+      }
+      added = true;
     }
 
-    Message message = model.messageById().first(relayMessage.id());
+    Message message = view.findMessage(relayMessage.id());
 
     if (message == null) {
       message = controller.newMessage(relayMessage.id(),
@@ -350,7 +999,10 @@ public final class Server {
                                       conversation.id,
                                       relayMessage.text(),
                                       relayMessage.time());
+      added |= message != null;
     }
+
+    return added;
   }
 
   private Runnable createSendToRelayEvent(final Uuid userId,
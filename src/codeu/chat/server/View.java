@@ -32,6 +32,7 @@ import codeu.chat.common.Conversation;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LogicalView;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageBatch;
 import codeu.chat.common.SinglesView;
 import codeu.chat.common.User;
 import codeu.chat.util.Logger;
@@ -43,6 +44,9 @@ public final class View implements BasicView, LogicalView, SinglesView {
 
   private final static Logger.Log LOG = Logger.newLog(View.class);
 
+  // The most messages getMessagesSince returns at once, whatever limit is asked for.
+  private static final int MESSAGES_SINCE_MAX = 256;
+
   private final Model model;
 
   public View(Model model) {
@@ -86,9 +90,10 @@ public final class View implements BasicView, LogicalView, SinglesView {
   @Override
   public Collection<User> getUsersExcluding(Collection<Uuid> ids) {
 
-    final Set<User> blacklist = new HashSet<>(intersect(model.userById(), ids));
     final Set<User> users = new HashSet<>();
 
+    final Set<User> blacklist = new HashSet<>(intersect(model.userById(), ids));
+
     for (final User user : model.userById().all()) {
       if (!blacklist.contains(user)) {
         users.add(user);
@@ -128,24 +133,11 @@ public final class View implements BasicView, LogicalView, SinglesView {
   @Override
   public Collection<Message> getMessages(Uuid conversation, Time start, Time end) {
 
-    final Conversation foundConversation = model.conversationById().first(conversation);
+    final MessageIndex messages = model.messagesInConversation(conversation);
 
-    final List<Message> foundMessages = new ArrayList<>();
-
-    Message current = (foundConversation == null) ?
-        null :
-        model.messageById().first(foundConversation.firstMessage);
-
-    while (current != null && current.creation.compareTo(start) < 0) {
-      current = model.messageById().first(current.next);
-    }
-
-    while (current != null && current.creation.compareTo(end) <= 0) {
-      foundMessages.add(current);
-      current = model.messageById().first(current.next);
-    }
-
-    return foundMessages;
+    return messages == null ?
+        new ArrayList<Message>() :
+        messages.range(start, end);
   }
 
   @Override
@@ -183,13 +175,47 @@ public final class View implements BasicView, LogicalView, SinglesView {
   }
 
   @Override
-  public User findUser(Uuid id) { return model.userById().first(id); }
+  public MessageBatch getMessagesSince(Uuid conversation, Uuid after, int limit) {
+
+    final int count = Math.max(0, Math.min(limit, MESSAGES_SINCE_MAX));
+
+    if (model.conversationById().first(conversation) == null) {
+      return null;
+    }
+
+    final MessageIndex messages = model.messagesInConversation(conversation);
+
+    // Ask for one more than needed to find out if there are more.
+    final List<Message> found;
+    if (Uuid.equals(after, Uuid.NULL)) {
+      found = messages == null ? new ArrayList<Message>() : messages.first(count + 1);
+    } else {
+      final Message last = model.messageById().first(after);
+      found = (last == null || messages == null) ? null : messages.after(last, count + 1);
+      if (found == null) {
+        return null;
+      }
+    }
+
+    final boolean more = found.size() > count;
+    final List<Message> batch = more ? found.subList(0, count) : found;
+    final Uuid cursor = batch.isEmpty() ? after : batch.get(batch.size() - 1).id;
+
+    return new MessageBatch(new ArrayList<>(batch), cursor, more);
+  }
+
+  @Override
+  public User findUser(Uuid id) { return find(model.userById(), id); }
 
   @Override
-  public Conversation findConversation(Uuid id) { return model.conversationById().first(id); }
+  public Conversation findConversation(Uuid id) { return find(model.conversationById(), id); }
 
   @Override
-  public Message findMessage(Uuid id) { return model.messageById().first(id); }
+  public Message findMessage(Uuid id) { return find(model.messageById(), id); }
+
+  private <T> T find(StoreAccessor<Uuid, T> store, Uuid id) {
+    return store.first(id);
+  }
 
   private static <T> Collection<T> intersect(StoreAccessor<Uuid, T> store, Collection<Uuid> ids) {
 
@@ -44,6 +44,25 @@ public final class Authentication {
     }
   }
 
+  /**
+   * The form of a username that lookups compare: trimmed, with ASCII letters in
+   * lower case the way SQLite's LOWER() does it. Names with the same normalized
+   * form are the same account.
+   *
+   * @param username The username as it was typed.
+   *
+   * @return The normalized username.
+   */
+  public static String normalize(String username) {
+    final char[] chars = username.trim().toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      if (chars[i] >= 'A' && chars[i] <= 'Z') {
+        chars[i] = (char) (chars[i] + ('a' - 'A'));
+      }
+    }
+    return new String(chars);
+  }
+
   /**
    * Register a user.
    *
@@ -83,6 +102,11 @@ public final class Authentication {
       // Registration successful.
       return AuthenticationCode.SUCCESS;
     } catch (SQLException ex) {
+      if (Database.isConstraintViolation(ex)) {
+        // Someone else registered the same name between the check above and the
+        // insert; the unique index on the name turned this one away.
+        return AuthenticationCode.REGISTER_USER_EXISTS;
+      }
       LOG.error(ex, "Failed to register user.");
       return AuthenticationCode.DB_ERROR;
     }
@@ -14,10 +14,14 @@ public class ConversationSchema extends Schema{
 	public static final String TEXT = "title";
 	//Declare field properties
 	private static final String PROP_TEXT = "TEXT(255)";
+	private static final String PROP_INTEGER = "INTEGER";
 
 	public ConversationSchema(){
 		addField(UNIQUE_ID, PROP_TEXT);
-		addField(TIMESTAMP, PROP_TEXT);
+		//Milliseconds, stored as a number so that it sorts and compares as one
+		addField(TIMESTAMP, PROP_INTEGER);
 		addField(TEXT, PROP_TEXT);
+		//Conversations are loaded by owner, oldest first
+		addIndex("owner_time", UNIQUE_ID, TIMESTAMP);
 	}
 }
\ No newline at end of file
@@ -15,10 +15,14 @@ public class MessageSchema extends Schema{
 	//Declare field properties
 	private static final String PROP_TEXT = "TEXT(255)";
 	private static final String PROP_INT = "INT";
+	private static final String PROP_INTEGER = "INTEGER";
 
 	public MessageSchema(){
 		addField(UNIQUE_ID, PROP_INT);
-		addField(TIMESTAMP, PROP_TEXT);
+		//Milliseconds, stored as a number so that it sorts and compares as one
+		addField(TIMESTAMP, PROP_INTEGER);
 		addField(TEXT, PROP_TEXT);
+		//Messages are loaded by conversation, oldest first
+		addIndex("conversation_time", UNIQUE_ID, TIMESTAMP);
 	}
 }
\ No newline at end of file
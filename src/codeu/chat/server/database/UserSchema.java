@@ -12,6 +12,11 @@ public class UserSchema extends Schema {
     addField("username", "TEXT(255)");
     addField("password", "TEXT");
     addField("salt", "VARCHAR(255)");
+
+    // Users are looked up with "LOWER(username) = LOWER(?)", which can only use
+    // an index on the same expression. It is unique so that two registrations of
+    // the same name racing each other cannot both be stored.
+    addUniqueIndex("username_unique", "LOWER(username)");
   }
 
 }
@@ -8,14 +8,30 @@ import codeu.chat.util.Time;
 * expose fields and allow comparisons for sorting
 */
 public final class MessageData implements Comparable<MessageData>{
+	private int id;
 	private String content;
 	private Time creation;
 
 	public MessageData(String content, Time creation){
+		this(0, content, creation);
+	}
+
+	/**
+	* @param id The message's row id in storage
+	*/
+	public MessageData(int id, String content, Time creation){
+		this.id = id;
 		this.content = content;
 		this.creation = creation;
 	}
 
+	/**
+	* @return The message's row id in storage, or 0 if it was not read from storage
+	*/
+	public int getId(){
+		return id;
+	}
+
 	/**
 	* @return The message's body
 	*/
@@ -1,11 +1,12 @@
 package codeu.chat.server.storage;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import codeu.chat.common.Conversation;
 import codeu.chat.common.Message;
@@ -14,7 +15,7 @@ import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 
 import codeu.chat.database.Database;
-import codeu.chat.database.DBObject;
+import codeu.chat.database.RowMapper;
 import codeu.chat.server.database.ConversationTable;
 import codeu.chat.server.database.ConversationSchema;
 import codeu.chat.server.database.MessageTable;
@@ -30,26 +31,71 @@ public final class Storage{
 
 	private static final Logger.Log LOG = Logger.newLog(Storage.class);
 
+	//Reads a message's content and time from a row of the message table
+	private static final RowMapper<MessageData> MESSAGE_MAPPER = new RowMapper<MessageData>(){
+		@Override
+		public MessageData map(ResultSet row) throws SQLException{
+			return new MessageData(
+					row.getInt("_id"),
+					row.getString(MessageSchema.TEXT),
+					Time.fromMs(row.getLong(MessageSchema.TIMESTAMP)));
+		}
+	};
+
+	public static final int DEFAULT_BATCH_ROWS = 256;
+	public static final long DEFAULT_BATCH_MS = 20;
+
 	private final Database database;
+	private final WriteBehind writer;
+
+	//Conversation ids are handed out here rather than by the database so that
+	//adding a conversation does not have to wait for its row to be written
+	private final AtomicInteger lastConversationId = new AtomicInteger();
+	//Message ids are handed out the same way. They are what an evicted message is
+	//matched back to its row by, as two messages can share a timestamp
+	private final AtomicInteger lastMessageId = new AtomicInteger();
 
 	public ConversationTable conversationTable;
 	public MessageTable messageTable;
 
 	/**
-	* @brief Creates the storage manager
+	* @brief Creates the storage manager. Every add waits for its row to be committed
 	* @param database The server database
 	*/
 	public Storage(Database database){
+		this(database, WriteBehind.Durability.SYNC, DEFAULT_BATCH_ROWS, DEFAULT_BATCH_MS);
+	}
+
+	/**
+	* @brief Creates the storage manager
+	* @param database The server database
+	* @param durability Whether adds wait for their rows to be committed (see WriteBehind)
+	* @param batchRows The most rows to write in one transaction
+	* @param batchMs In ASYNC mode, how long to wait for a batch to fill
+	*/
+	public Storage(Database database, WriteBehind.Durability durability, int batchRows, long batchMs){
 		this.database = database;
 
 		try {
 			conversationTable = new ConversationTable(database);
 			messageTable = new MessageTable(database);
+			lastConversationId.set(conversationTable.maxId());
+			lastMessageId.set(messageTable.maxId());
 		}
 		catch(SQLException e){
 			LOG.error(e, "Failed to initialize conversation and message tables");
 			System.exit(1);
 		}
+
+		this.writer = new WriteBehind(database, durability, batchRows, batchMs);
+	}
+
+	/**
+	* @brief Writes everything that is still queued and stops the writer. Adds made
+	* after this are written one at a time
+	*/
+	public void close(){
+		writer.close();
 	}
 
 	/**
@@ -57,22 +103,24 @@ public final class Storage{
 	* @param username The username of the owner of the conversation
 	* @param time The time of creation in ms
 	* @param title The title of the conversation
-	* @return The id of the added conversation
+	* @return The id of the added conversation, or -1 if it could not be written
 	*/
 	public int addConversation(String username, long time, String title){
+		int id = lastConversationId.incrementAndGet();
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("_id", Integer.toString(id));
+		fields.put(ConversationSchema.UNIQUE_ID, username);
+		fields.put(ConversationSchema.TIMESTAMP, Long.toString(time));
+		fields.put(ConversationSchema.TEXT, title);
 		try{
-			Map<String, String> fields = new HashMap<String, String>();
-			fields.put(ConversationSchema.UNIQUE_ID, username);
-			fields.put(ConversationSchema.TIMESTAMP, Long.toString(time));
-			fields.put(ConversationSchema.TEXT, title);
-			//return the id field of the added conversation
-			LOG.info("Conversation added");
-			return conversationTable.create(fields);
+			writer.insert(conversationTable, fields);
 		}
 		catch(SQLException e){
 			LOG.error(e, "Failed to add conversation");
 			return -1;
 		}
+		LOG.info("Conversation added");
+		return id;
 	}
 
 	/**
@@ -80,19 +128,25 @@ public final class Storage{
 	* @param cid The conversation the message belongs in
 	* @param time The time of creation in ms
 	* @param content The contents of the message
+	* @return The id of the added message, or -1 if it could not be written (when
+	* writes are not waited for, the id of the queued row)
 	*/
-	public void addMessage(int cid, long time, String content){
+	public int addMessage(int cid, long time, String content){
+		int id = lastMessageId.incrementAndGet();
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("_id", Integer.toString(id));
+		fields.put(MessageSchema.UNIQUE_ID, Integer.toString(cid));
+		fields.put(MessageSchema.TIMESTAMP, Long.toString(time));
+		fields.put(MessageSchema.TEXT, content);
 		try{
-			Map<String, String> fields = new HashMap<String, String>();
-			fields.put(MessageSchema.UNIQUE_ID, Integer.toString(cid));
-			fields.put(MessageSchema.TIMESTAMP, Long.toString(time));
-			fields.put(MessageSchema.TEXT, content);
-			messageTable.create(fields);
-			LOG.info("Messsage added");
+			writer.insert(messageTable, fields);
 		}
 		catch(SQLException e){
 			LOG.error(e, "Failed to add message");
+			return -1;
 		}
+		LOG.info("Messsage added");
+		return id;
 	}
 
 	/**
@@ -102,29 +156,58 @@ public final class Storage{
 	* message data. Both are sorted in ascending order by time of creation
 	*/
 	public ArrayList<ConversationData> loadConversations(String username){
-		ArrayList<ConversationData> conversationData = new ArrayList<ConversationData>();
+		final ArrayList<ConversationData> conversationData = new ArrayList<ConversationData>();
+
+		//Queued rows are not in the tables yet
+		writer.flush();
 
 		try{
-			//Queries all conversations that match the given username
-			List<DBObject<ConversationSchema>> conversationList =
-			conversationTable.find(ConversationSchema.UNIQUE_ID, username);
-
-			//Iterates through conversation DBObjects and extracts data
-			for (DBObject<ConversationSchema> c: conversationList){
-				String title = c.get(ConversationSchema.TEXT);
-				Time time = Time.fromMs(Long.parseLong(c.get(ConversationSchema.TIMESTAMP)));
-				String cid = c.get("_id");
-				ArrayList<MessageData> messages = loadMessages(cid);
-				ConversationData convo = new ConversationData(title, time, Integer.parseInt(cid), messages);
-				conversationData.add(convo);
+			//Queries all conversations that match the given username, oldest first
+			final Map<Integer, ArrayList<MessageData>> messagesById = new HashMap<Integer, ArrayList<MessageData>>();
+			conversationTable.query(
+					ConversationSchema.UNIQUE_ID + " = ? ORDER BY " + ConversationSchema.TIMESTAMP + ", _id",
+					new RowMapper<ConversationData>(){
+						@Override
+						public ConversationData map(ResultSet row) throws SQLException{
+							int cid = row.getInt("_id");
+							ArrayList<MessageData> messages = new ArrayList<MessageData>();
+							messagesById.put(cid, messages);
+							ConversationData convo = new ConversationData(
+									row.getString(ConversationSchema.TEXT),
+									Time.fromMs(row.getLong(ConversationSchema.TIMESTAMP)),
+									cid,
+									messages);
+							conversationData.add(convo);
+							return convo;
+						}
+					},
+					username);
+
+			if (!conversationData.isEmpty()){
+				//Queries the messages of all of those conversations at once, oldest first,
+				//and hands each to its conversation as it is read
+				messageTable.query(
+						MessageSchema.UNIQUE_ID + " IN (SELECT _id FROM " + conversationTable.getName() +
+						" WHERE " + ConversationSchema.UNIQUE_ID + " = ?) ORDER BY " +
+						MessageSchema.UNIQUE_ID + ", " + MessageSchema.TIMESTAMP + ", _id",
+						new RowMapper<MessageData>(){
+							@Override
+							public MessageData map(ResultSet row) throws SQLException{
+								MessageData message = MESSAGE_MAPPER.map(row);
+								ArrayList<MessageData> messages = messagesById.get(row.getInt(MessageSchema.UNIQUE_ID));
+								if (messages != null){
+									messages.add(message);
+								}
+								return message;
+							}
+						},
+						username);
 			}
 		}
 		catch(SQLException e){
 			LOG.error(e, "Failed to load past conversations of user");
 		}
-		
-		//Sort the conversations by Time in ascending order
-		Collections.sort(conversationData);
+
 		return conversationData;
 	}
 
@@ -132,30 +215,21 @@ public final class Storage{
 	* @brief Loads all messages stored in the database that are associated with the conversation
 	* @param cid The conversation whose messages will be returned
 	* @return An ArrayList of message data associated with the given conversation,
-	* sorted in ascending order by time of creation
+	* sorted in ascending order by time of creation, or null if they could not be read
 	*/
-	private ArrayList<MessageData> loadMessages(String cid){
-		ArrayList<MessageData> messageData = new ArrayList<MessageData>();
+	public ArrayList<MessageData> loadMessages(int cid){
+		writer.flush();
 
 		try{
-			//Queries all messages that match the given conversation id
-			List<DBObject<MessageSchema>> messageList =
-			messageTable.find(MessageSchema.UNIQUE_ID, cid);
-
-			//Iterates through message DBObjects and extracts data
-			for (DBObject<MessageSchema> m: messageList){
-				String content = m.get(MessageSchema.TEXT);
-				Time time = Time.fromMs(Long.parseLong(m.get(MessageSchema.TIMESTAMP)));
-				MessageData message = new MessageData(content, time);
-				messageData.add(message);
-			}
+			//Queries all messages that match the given conversation id, oldest first
+			return new ArrayList<MessageData>(messageTable.query(
+					MessageSchema.UNIQUE_ID + " = ? ORDER BY " + MessageSchema.TIMESTAMP + ", _id",
+					MESSAGE_MAPPER,
+					cid));
 		}
 		catch(SQLException e){
 			LOG.error(e, "Failed to lost past message of user");
+			return null;
 		}
-
-		//Sort the messages by Time in ascending order
-		Collections.sort(messageData);
-		return messageData;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,299 @@
+package codeu.chat.server.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import codeu.chat.database.Database;
+import codeu.chat.database.Table;
+import codeu.chat.util.Logger;
+
+/**
+* @description Queues inserts and writes them to the database from one thread in
+* batches, each batch in a single transaction, so that many inserts share one
+* commit (and one sync to disk) instead of paying for one each.
+*
+* In SYNC mode an insert returns once the batch holding it has been committed, so
+* nothing that returned is lost if the server stops. Callers on different threads
+* still share commits: whatever queues up while one batch is being written goes
+* into the next. If any row of a batch fails the whole batch is rolled back and
+* every insert in it fails. In ASYNC mode an insert returns as soon as it is queued and the
+* writer waits up to batchMs for a batch to fill, which writes more rows per
+* commit but loses whatever is queued if the process dies before the next flush.
+*/
+public final class WriteBehind{
+
+	public enum Durability { SYNC, ASYNC }
+
+	private static final Logger.Log LOG = Logger.newLog(WriteBehind.class);
+
+	//A row to insert. Writes with no table are markers that only wait for
+	//everything queued before them to be committed
+	private static final class Write{
+		public final Table<?> table;
+		public final Map<String, String> fields;
+		public final CountDownLatch done = new CountDownLatch(1);
+		//Set before done is counted down if the batch was rolled back
+		public volatile SQLException error = null;
+
+		public Write(Table<?> table, Map<String, String> fields){
+			this.table = table;
+			this.fields = fields;
+		}
+	}
+
+	private final Database database;
+	private final Durability durability;
+	private final int batchRows;
+	private final long batchMs;
+
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	private final Thread writer;
+
+	//Held while checking closed and queueing, so that nothing is queued after close
+	//has taken what is left in the queue
+	private final Object closeLock = new Object();
+	private boolean closed = false;  // guarded by closeLock
+
+	/**
+	* @brief Creates the queue and starts its writer thread
+	* @param database The database to write to
+	* @param durability Whether inserts wait for their batch to be committed
+	* @param batchRows The most rows to put in one transaction
+	* @param batchMs In ASYNC mode, how long to wait for a batch to fill
+	*/
+	public WriteBehind(Database database, Durability durability, int batchRows, long batchMs){
+		this.database = database;
+		this.durability = durability;
+		this.batchRows = Math.max(1, batchRows);
+		this.batchMs = Math.max(0, batchMs);
+
+		this.writer = new Thread("storage-writer"){
+			@Override
+			public void run(){
+				try{
+					writeBatches();
+				}
+				finally{
+					stopped();
+				}
+			}
+		};
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	* @brief Queues a row to be inserted into a table
+	* @param table The table to insert into
+	* @param fields The row's fields
+	* @throws SQLException In SYNC mode (or once closed), if the row was not written.
+	* In ASYNC mode failures are only logged
+	*/
+	public void insert(Table<?> table, Map<String, String> fields) throws SQLException{
+		Write write = new Write(table, fields);
+		synchronized (closeLock){
+			if (closed){
+				//Nothing is draining the queue any more, so write it straight away
+				table.create(fields);
+				return;
+			}
+			queue.add(write);
+		}
+		if (durability == Durability.SYNC){
+			await(write);
+			if (write.error != null){
+				throw write.error;
+			}
+		}
+	}
+
+	/**
+	* @brief Waits for every insert queued before this call to be committed
+	*/
+	public void flush(){
+		Write marker = new Write(null, null);
+		synchronized (closeLock){
+			if (closed){
+				return;
+			}
+			queue.add(marker);
+		}
+		await(marker);
+	}
+
+	/**
+	* @brief Commits everything queued and stops the writer thread. Inserts made
+	* after this are written one at a time
+	*/
+	public void close(){
+		flush();
+		synchronized (closeLock){
+			closed = true;
+		}
+		writer.interrupt();
+		try{
+			writer.join();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		//Anything queued between the flush and the writer stopping
+		List<Write> left = new ArrayList<Write>();
+		queue.drainTo(left);
+		if (!left.isEmpty()){
+			commit(left);
+		}
+	}
+
+	//Runs on the writer thread as it exits. If it stops for any reason other than
+	//close, later inserts are written one at a time instead of queued where
+	//nothing will take them
+	private void stopped(){
+		synchronized (closeLock){
+			if (!closed){
+				LOG.error("The storage writer stopped, writing inserts one at a time");
+				closed = true;
+			}
+		}
+		List<Write> left = new ArrayList<Write>();
+		queue.drainTo(left);
+		if (!left.isEmpty()){
+			commit(left);
+		}
+	}
+
+	private boolean isClosed(){
+		synchronized (closeLock){
+			return closed;
+		}
+	}
+
+	private void writeBatches(){
+		List<Write> batch = new ArrayList<Write>();
+		while (!isClosed()){
+			try{
+				batch.add(queue.take());
+				queue.drainTo(batch, batchRows - batch.size());
+
+				//Only ASYNC callers can afford to wait for more rows
+				if (durability == Durability.ASYNC){
+					long deadline = System.currentTimeMillis() + batchMs;
+					while (batch.size() < batchRows){
+						long wait = deadline - System.currentTimeMillis();
+						Write next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+						if (next == null){
+							break;
+						}
+						batch.add(next);
+						queue.drainTo(batch, batchRows - batch.size());
+					}
+				}
+			}
+			catch(InterruptedException e){
+				//Closing; whatever was taken is still committed below
+			}
+			if (!batch.isEmpty()){
+				commit(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void commit(List<Write> batch){
+		//Stays set unless the batch is written, so no insert is reported as
+		//written when the commit did not finish
+		SQLException error = new SQLException("Queued rows were not written");
+		try{
+			error = write(batch);
+		}
+		catch(Throwable t){
+			//The writer goes on to the next batch
+			LOG.error(t, "Failed to write %d queued rows", batch.size());
+		}
+		finally{
+			//Callers wait until their write is counted down, so this must always run
+			for (Write write: batch){
+				write.error = error;
+				write.done.countDown();
+			}
+		}
+	}
+
+	//Writes a batch in one transaction. Returns why it was rolled back, or null
+	//once it is committed
+	private SQLException write(List<Write> batch){
+		SQLException error = null;
+		Connection connection = database.getConnection();
+		//Hold the connection so no other thread's statements end up in, or split,
+		//the transaction
+		synchronized (connection){
+			try{
+				connection.setAutoCommit(false);
+				try{
+					//Rows for the same table in a row are sent as one JDBC batch
+					int start = 0;
+					while (start < batch.size()){
+						Table<?> table = batch.get(start).table;
+						List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+						int end = start;
+						while (end < batch.size() && batch.get(end).table == table){
+							if (table != null){
+								rows.add(batch.get(end).fields);
+							}
+							end++;
+						}
+						if (!rows.isEmpty()){
+							table.createAll(rows);
+						}
+						start = end;
+					}
+					connection.commit();
+				}
+				catch(SQLException e){
+					LOG.error(e, "Failed to write %d queued rows, rolling them back", batch.size());
+					error = e;
+					connection.rollback();
+				}
+				catch(Throwable t){
+					//Anything else fails the batch like a bad row would
+					LOG.error(t, "Failed to write %d queued rows, rolling them back", batch.size());
+					error = new SQLException("Queued rows were not written", t);
+					connection.rollback();
+				}
+				finally{
+					connection.setAutoCommit(true);
+				}
+			}
+			catch(SQLException e){
+				LOG.error(e, "Failed to write queued rows");
+				if (error == null){
+					error = e;
+				}
+			}
+		}
+		return error;
+	}
+
+	private static void await(Write write){
+		boolean interrupted = false;
+		while (true){
+			try{
+				write.done.await();
+				break;
+			}
+			catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -19,6 +19,30 @@ import java.util.zip.Inflater;
 */
 public final class Compressions{
 
+	// A Deflater or Inflater holds native zlib state that is costly to set up, so
+	// each thread keeps one and resets it between uses instead of making a new one
+	// for every call. They are never shared between threads.
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>(){
+		@Override
+		protected Deflater initialValue(){
+			return new Deflater();
+		}
+	};
+
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>(){
+		@Override
+		protected Inflater initialValue(){
+			return new Inflater();
+		}
+	};
+
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>(){
+		@Override
+		protected byte[] initialValue(){
+			return new byte[1024];
+		}
+	};
+
 	public static final Compression<byte[]> BYTES = new Compression<byte[]>(){
 
 		/**
@@ -28,22 +52,20 @@ public final class Compressions{
 		@Override
 		public byte[] compress (byte[] data){
 
-	        Deflater deflater = new Deflater();
+	        Deflater deflater = DEFLATER.get();
+	        deflater.reset();
 	        deflater.setInput(data);
 
 	        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
 	        deflater.finish();
-	        byte[] buffer = new byte[1024];
+	        byte[] buffer = BUFFER.get();
 
 	        while (!deflater.finished()) {  
 	            int count = deflater.deflate(buffer);
 	            outputStream.write(buffer, 0, count);   
 	        }
-	        byte[] output = outputStream.toByteArray();
 
-	        deflater.end();
-
-	        return output;  
+	        return outputStream.toByteArray();
 
 		}
     	/**
@@ -53,11 +75,12 @@ public final class Compressions{
 		@Override
 		public byte[] decompress(byte[] data){
 
-	        Inflater inflater = new Inflater();
+	        Inflater inflater = INFLATER.get();
+	        inflater.reset();
 	        inflater.setInput(data);
 
 	        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);  
-	        byte[] buffer = new byte[1024];
+	        byte[] buffer = BUFFER.get();
 
 	        while (!inflater.finished()) {
 	            int count = 0;
@@ -66,14 +89,16 @@ public final class Compressions{
 	            }
 	            catch (DataFormatException e){
 	                e.printStackTrace();
+	                break;
 	            } 
+	            // Truncated input would otherwise leave this loop spinning.
+	            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+	                break;
+	            }
 	            outputStream.write(buffer, 0, count);  
 	        }
-	        byte[] output = outputStream.toByteArray();
-
-	        inflater.end();
 
-        	return output;
+        	return outputStream.toByteArray();
         }
     };
-}
\ No newline at end of file
+}
@@ -15,6 +15,8 @@
 package codeu.chat.util;
 
 import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,19 +27,53 @@ import java.util.Collection;
 
 public final class EncryptedSerializers {
 
+  // Every encrypted payload starts with one of these so the reader knows how the
+  // key was shared. A payload either carries its own key (wrapped with the
+  // reader's public key) or names a session that was set up earlier. Wrapping a
+  // key costs an RSA operation on both sides, so sessions are used whenever the
+  // writer has one with the reader. Sessions are looked up in SessionKeys.current(),
+  // so a payload naming a session opened on another connection is rejected.
+  private static final int WRAPPED_KEY = 0x00;
+  private static final int SESSION_KEY = 0x01;
+
   public static final EncryptedSerializer<byte[]> BYTES = new EncryptedSerializer<byte[]>() {
 
     @Override
     public void write(OutputStream out, byte[] value, PublicKey publicKey) throws IOException {
-      SecretKey key = Encryptor.makeSymmetricKey();
-      Serializers.BYTES.write(out, Encryptor.wrap(key, publicKey));
-      Serializers.BYTES.write(out, Encryptor.encrypt(value, key));
+      final SessionKeys.Session session = SessionKeys.current().forRecipient(publicKey);
+      if (session == null) {
+        SecretKey key = Encryptor.makeSymmetricKey();
+        out.write(WRAPPED_KEY);
+        Serializers.BYTES.write(out, Encryptor.wrap(key, publicKey));
+        Serializers.BYTES.write(out, Encryptor.encrypt(value, key));
+      } else {
+        out.write(SESSION_KEY);
+        Serializers.LONG.write(out, session.id);
+        Serializers.BYTES.write(out, Encryptor.encryptForSession(value, session.key));
+      }
     }
 
     @Override
     public byte[] read(InputStream input, PrivateKey privateKey) throws IOException {
-      SecretKey key = Encryptor.unwrap(Serializers.BYTES.read(input), privateKey);
-      return Encryptor.decrypt(Serializers.BYTES.read(input), key);
+      final int mode = input.read();
+      if (mode == WRAPPED_KEY) {
+        SecretKey key = Encryptor.unwrap(Serializers.BYTES.read(input), privateKey);
+        return Encryptor.decrypt(Serializers.BYTES.read(input), key);
+      } else if (mode == SESSION_KEY) {
+        final long id = Serializers.LONG.read(input);
+        final byte[] encrypted = Serializers.BYTES.read(input);
+        final SessionKeys.Session session = SessionKeys.current().forId(id);
+        if (session == null) {
+          throw new IOException(String.format("Unknown session %d", id));
+        }
+        final byte[] value = Encryptor.decryptForSession(encrypted, session.key);
+        if (value == null) {
+          throw new IOException(String.format("Invalid payload for session %d", id));
+        }
+        return value;
+      } else {
+        throw new IOException(String.format("Unknown key mode %d", mode));
+      }
     }
   };
 
@@ -79,6 +115,38 @@ public final class EncryptedSerializers {
     };
   }
 
+  /**
+   * envelope
+   * Serializes the whole value into one buffer, then compresses and encrypts the
+   * buffer once. Meant for list responses: encrypting each element on its own pads
+   * every element and keeps deflate from finding repeats across elements.
+   *
+   * The common classes build their ENCRYPTED_COLLECTION_SERIALIZER with this. The
+   * serializer they pass writes each element's fields as they are, since
+   * compressing or encrypting them again inside the envelope would only add
+   * overhead.
+   * @param serializer writes the value without compressing or encrypting it
+   * @return a serializer that compresses and encrypts the value as a whole
+   */
+  public static <T> EncryptedSerializer<T> envelope(final Serializer<T> serializer) {
+
+    return new EncryptedSerializer<T>() {
+
+      @Override
+      public void write(OutputStream out, T value, PublicKey key) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        serializer.write(buffer, value);
+        BYTES.write(out, Compressions.BYTES.compress(buffer.toByteArray()), key);
+      }
+
+      @Override
+      public T read(InputStream in, PrivateKey key) throws IOException {
+        final byte[] buffer = Compressions.BYTES.decompress(BYTES.read(in, key));
+        return serializer.read(new ByteArrayInputStream(buffer));
+      }
+    };
+  }
+
   public static <T> EncryptedSerializer<T> nullable(final EncryptedSerializer<T> serializer) {
 
     final int NO_VALUE = 0x00;
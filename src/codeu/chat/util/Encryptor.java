@@ -6,11 +6,16 @@
 package codeu.chat.util;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class Encryptor {
   private static final Logger.Log LOG = Logger.newLog(Encryptor.class);
@@ -18,24 +23,85 @@ public class Encryptor {
   private static final String SYMMETRIC_ALGORITHM = "AES";
   private static final String ASYMMETRIC_ALGORITHM = "RSA";
 
+  // Session keys are used for many payloads, so unlike the single-use keys above
+  // they need a fresh IV for every payload. GCM also authenticates the payload,
+  // so one that was changed on the way fails to decrypt instead of decrypting to
+  // something else.
+  private static final String SESSION_TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final int SESSION_IV_LENGTH = 12;
+  private static final int SESSION_TAG_BITS = 128;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  // Looking up a Cipher, KeyGenerator or KeyFactory goes through the provider list
+  // every time, which was a large part of encrypting a single field. None of them
+  // are thread-safe, so every thread keeps its own and re-initializes it per use.
+  private static final ThreadLocal<Cipher> SYMMETRIC_CIPHER = new CipherCache(SYMMETRIC_ALGORITHM);
+  private static final ThreadLocal<Cipher> ASYMMETRIC_CIPHER = new CipherCache(ASYMMETRIC_ALGORITHM);
+  private static final ThreadLocal<Cipher> SESSION_CIPHER = new CipherCache(SESSION_TRANSFORMATION);
+
+  private static final ThreadLocal<KeyGenerator> SYMMETRIC_KEY_MAKER = new ThreadLocal<KeyGenerator>() {
+    @Override
+    protected KeyGenerator initialValue() {
+      try {
+        final KeyGenerator keyMaker = KeyGenerator.getInstance(SYMMETRIC_ALGORITHM);
+        keyMaker.init(128);
+        return keyMaker;
+      } catch (NoSuchAlgorithmException nsae) {
+        System.out.println("Incorrect symmetric algorithm provided.");
+        System.exit(1);
+        return null;
+      }
+    }
+  };
+
+  private static final ThreadLocal<KeyFactory> ASYMMETRIC_KEY_FACTORY = new ThreadLocal<KeyFactory>() {
+    @Override
+    protected KeyFactory initialValue() {
+      try {
+        return KeyFactory.getInstance(ASYMMETRIC_ALGORITHM);
+      } catch (NoSuchAlgorithmException nsae) {
+        System.out.println("Incorrect asymmetric algorithm provided.");
+        System.exit(1);
+        return null;
+      }
+    }
+  };
+
+  // Clients send their public key with every request. Decoded keys are kept by
+  // their encoded bytes (which include the algorithm) so that each key is only
+  // parsed once. The cache is dropped when it gets too big rather than tracking
+  // which keys are still in use.
+  private static final int PUBLIC_KEY_CACHE_SIZE = 1024;
+  private static final ConcurrentMap<ByteBuffer, PublicKey> PUBLIC_KEYS = new ConcurrentHashMap<>();
+
+  private static final class CipherCache extends ThreadLocal<Cipher> {
+
+    private final String transformation;
+
+    CipherCache(String transformation) {
+      this.transformation = transformation;
+    }
+
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance(transformation);
+      } catch (GeneralSecurityException gse) {
+        System.out.println("Incorrect algorithm provided: " + transformation);
+        System.exit(1);
+        return null;
+      }
+    }
+  }
+
   /**
    * makeSymmetricKey
    * Generates a SecretKey to use for encrypting any single exchange of data.
    * @return a valid SecretKey
    */
   public static SecretKey makeSymmetricKey() {
-    KeyGenerator keyMaker;
-
-    try {
-      keyMaker = KeyGenerator.getInstance(SYMMETRIC_ALGORITHM);
-    } catch(NoSuchAlgorithmException nsae) {
-      System.out.println("Incorrect symmetric algorithm provided.");
-      System.exit(1);
-      return null;
-    }
-
-    keyMaker.init(128);
-    return keyMaker.generateKey();
+    return SYMMETRIC_KEY_MAKER.get().generateKey();
   }
 
   /**
@@ -66,7 +132,7 @@ public class Encryptor {
    */
   public static byte[] encrypt(byte[] input, SecretKey key) {
     try {
-      Cipher cipher = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+      Cipher cipher = SYMMETRIC_CIPHER.get();
       cipher.init(Cipher.ENCRYPT_MODE, key);
       return cipher.doFinal(input);
     }
@@ -88,11 +154,6 @@ public class Encryptor {
       LOG.info("BAD PADDING.");
       System.exit(1);
     }
-    catch (GeneralSecurityException gse) {
-      System.out.println("Incorrect symmetric algorithm provided.");
-      System.exit(1);
-      return null;
-    }
 
     System.out.println(" on encryption.");
     return null;
@@ -106,7 +167,7 @@ public class Encryptor {
    */
   public static byte[] decrypt(byte[] input, SecretKey key) {
     try {
-      Cipher cipher = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+      Cipher cipher = SYMMETRIC_CIPHER.get();
       cipher.init(Cipher.DECRYPT_MODE, key);
       return cipher.doFinal(input);
     }
@@ -127,6 +188,64 @@ public class Encryptor {
     return null;
   }
 
+  /**
+   * encryptForSession
+   * Encrypts a byte array with a session key. A random IV is generated for every
+   * call and is placed in front of the ciphertext.
+   * @param input byte array to encrypt
+   * @param key the session key
+   * @return the IV followed by the encrypted byte array
+   */
+  public static byte[] encryptForSession(byte[] input, SecretKey key) {
+    try {
+      final byte[] iv = new byte[SESSION_IV_LENGTH];
+      RANDOM.nextBytes(iv);
+
+      Cipher cipher = SESSION_CIPHER.get();
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(SESSION_TAG_BITS, iv));
+
+      final byte[] output = new byte[SESSION_IV_LENGTH + cipher.getOutputSize(input.length)];
+      System.arraycopy(iv, 0, output, 0, SESSION_IV_LENGTH);
+      final int length = cipher.doFinal(input, 0, input.length, output, SESSION_IV_LENGTH);
+
+      return length + SESSION_IV_LENGTH == output.length ?
+          output :
+          Arrays.copyOf(output, length + SESSION_IV_LENGTH);
+    }
+    catch (GeneralSecurityException gse) {
+      System.out.println("Session encryption failed.");
+      gse.printStackTrace();
+      LOG.info("Session encryption failed.");
+      System.exit(1);
+      return null;
+    }
+  }
+
+  /**
+   * decryptForSession
+   * Decrypts a byte array made by encryptForSession. As the input comes from the
+   * other side of the session, a bad or tampered input is not fatal.
+   * @param input the IV followed by the encrypted byte array
+   * @param key the session key
+   * @return the plaintext, or null if the input could not be decrypted
+   */
+  public static byte[] decryptForSession(byte[] input, SecretKey key) {
+    if (input.length < SESSION_IV_LENGTH) {
+      LOG.warning("Session payload is too short.");
+      return null;
+    }
+
+    try {
+      Cipher cipher = SESSION_CIPHER.get();
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(SESSION_TAG_BITS, input, 0, SESSION_IV_LENGTH));
+      return cipher.doFinal(input, SESSION_IV_LENGTH, input.length - SESSION_IV_LENGTH);
+    }
+    catch (GeneralSecurityException gse) {
+      LOG.warning("Failed to decrypt session payload (%s).", gse.toString());
+      return null;
+    }
+  }
+
   /**
    * wrap
    * "Wraps" a SecretKey with a PublicKey; basically, this encrypts the SecretKey
@@ -136,12 +255,7 @@ public class Encryptor {
    * @return a byte array of the encrypted SecretKey
    */
   public static byte[] wrap(SecretKey keyToWrap, PublicKey publicKey) {
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
-    }
-    catch(GeneralSecurityException gse) {return null;}
-
+    Cipher cipher = ASYMMETRIC_CIPHER.get();
     try {
       cipher.init(Cipher.WRAP_MODE, publicKey);
     }
@@ -182,15 +296,7 @@ public class Encryptor {
    * @return the unwrapped and useable SecretKey
    */
   public static SecretKey unwrap(byte[] keyToUnwrap, PrivateKey privateKey) {
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
-    }
-    catch(GeneralSecurityException gse) {
-      System.out.println("Incorrect asymmetric algorithm provided.");
-      System.exit(1);
-      return null;
-    }
+    Cipher cipher = ASYMMETRIC_CIPHER.get();
     try {
       cipher.init(Cipher.UNWRAP_MODE, privateKey);
     }
@@ -220,6 +326,26 @@ public class Encryptor {
     return null;
   }
 
+  /**
+   * unwrapFromPeer
+   * Unwraps a key the other side of a connection wrapped for us. As the input
+   * comes from the other side, a bad or tampered key is not fatal.
+   * @param keyToUnwrap the byte array representing the encrypted SecretKey
+   * @param privateKey the PrivateKey to unwrap with
+   * @return the unwrapped key, or null if it could not be unwrapped
+   */
+  public static SecretKey unwrapFromPeer(byte[] keyToUnwrap, PrivateKey privateKey) {
+    try {
+      Cipher cipher = ASYMMETRIC_CIPHER.get();
+      cipher.init(Cipher.UNWRAP_MODE, privateKey);
+      return (SecretKey) cipher.unwrap(keyToUnwrap, SYMMETRIC_ALGORITHM, Cipher.SECRET_KEY);
+    }
+    catch (GeneralSecurityException gse) {
+      LOG.warning("Failed to unwrap key (%s).", gse.toString());
+      return null;
+    }
+  }
+
   /**
    * Allows for the PublicKey to be easily exchanged.
    */
@@ -234,9 +360,22 @@ public class Encryptor {
     @Override
     public PublicKey read(InputStream in) throws IOException {
       try {
-        KeyFactory keyFactory = KeyFactory.getInstance(Serializers.STRING.read(in));
-        byte[] keyBytes = Serializers.BYTES.read(in);
-        return keyFactory.generatePublic(new X509EncodedKeySpec(keyBytes));
+        final String algorithm = Serializers.STRING.read(in);
+        final ByteBuffer keyBytes = ByteBuffer.wrap(Serializers.BYTES.read(in));
+
+        PublicKey key = PUBLIC_KEYS.get(keyBytes);
+        if (key == null) {
+          KeyFactory keyFactory = ASYMMETRIC_ALGORITHM.equals(algorithm) ?
+              ASYMMETRIC_KEY_FACTORY.get() :
+              KeyFactory.getInstance(algorithm);
+          key = keyFactory.generatePublic(new X509EncodedKeySpec(keyBytes.array()));
+
+          if (PUBLIC_KEYS.size() >= PUBLIC_KEY_CACHE_SIZE) {
+            PUBLIC_KEYS.clear();
+          }
+          PUBLIC_KEYS.put(keyBytes, key);
+        }
+        return key;
       }
       catch (GeneralSecurityException gse) {
         System.out.println("INVALID key.");
@@ -0,0 +1,50 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+// LATENCY STATS
+//
+// Counts how long something took, summed up over a window: how many times, the
+// average and the worst. Any thread can record; the window is read and reset
+// together so that a report covers exactly the samples since the last one.
+public final class LatencyStats {
+
+  private long count = 0;       // guarded by "this"
+  private long totalNanos = 0;  // guarded by "this"
+  private long maxNanos = 0;    // guarded by "this"
+
+  public synchronized void record(long nanos) {
+    count += 1;
+    totalNanos += nanos;
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  // Returns a summary of the samples recorded since the last call, or null if
+  // there were none, and starts a new window.
+  public synchronized String drain() {
+    if (count == 0) {
+      return null;
+    }
+    final String summary = String.format(
+        "count=%d avg=%.1fms max=%.1fms",
+        count,
+        totalNanos / (double) count / 1e6,
+        maxNanos / 1e6);
+    count = 0;
+    totalNanos = 0;
+    maxNanos = 0;
+    return summary;
+  }
+}
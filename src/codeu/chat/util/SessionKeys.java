@@ -0,0 +1,155 @@
+/**
+ * SessionKeys.java
+ * Keeps track of the symmetric keys agreed on with the other side of a session.
+ */
+
+package codeu.chat.util;
+
+import javax.crypto.SecretKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public final class SessionKeys {
+
+  /**
+   * A symmetric key that both sides of a session know, and the id used to refer
+   * to it on the wire. The id is not secret; knowing it does not reveal the key.
+   */
+  public static final class Session {
+    public final long id;
+    public final SecretKey key;
+
+    public Session(long id, SecretKey key) {
+      this.id = id;
+      this.key = key;
+    }
+  }
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  // Used by threads that have not been bound to a connection's sessions. A client
+  // only talks to one server, so it keeps its sessions here. The server binds
+  // every request to the sessions of the connection it came in on and never
+  // opens sessions here.
+  private static final SessionKeys SHARED = new SessionKeys();
+
+  private static final ThreadLocal<SessionKeys> BOUND = new ThreadLocal<>();
+
+  // Sessions to use when writing to the owner of a public key.
+  private final ConcurrentMap<PublicKey, Session> byRecipient = new ConcurrentHashMap<>();
+
+  // Sessions to use when reading something that names a session id.
+  private final Map<Long, Session> byId = new ConcurrentHashMap<>();
+
+  /**
+   * current
+   * @return the sessions bound to this thread, or the shared sessions if none are
+   */
+  public static SessionKeys current() {
+    final SessionKeys bound = BOUND.get();
+    return bound == null ? SHARED : bound;
+  }
+
+  /**
+   * bind
+   * Makes "keys" the sessions that encrypted serializers use on this thread until
+   * they are bound again. Servers bind the sessions of a connection while handling
+   * one of its requests, so a session can only be used on the connection that
+   * opened it.
+   * @param keys the sessions to use, or null to go back to the shared sessions
+   * @return the sessions that were bound before, to restore when done
+   */
+  public static SessionKeys bind(SessionKeys keys) {
+    final SessionKeys previous = BOUND.get();
+    if (keys == null) {
+      BOUND.remove();
+    } else {
+      BOUND.set(keys);
+    }
+    return previous;
+  }
+
+  /**
+   * open
+   * Gets the session for a recipient, creating one if there is not one yet. This
+   * is used by the side that hands out session keys (the server). An existing
+   * session is never replaced so that someone else sending the recipient's public
+   * key cannot take over their session; they only get back a key wrapped for a
+   * private key they do not have.
+   * @param recipient the public key of the other side
+   * @return the session to use with the recipient
+   */
+  public Session open(PublicKey recipient) {
+    Session session = byRecipient.get(recipient);
+    if (session == null) {
+      final Session created = new Session(RANDOM.nextLong(), Encryptor.makeSymmetricKey());
+      session = byRecipient.putIfAbsent(recipient, created);
+      if (session == null) {
+        session = created;
+        byId.put(session.id, session);
+      }
+    }
+    return session;
+  }
+
+  /**
+   * join
+   * Records a session that was handed out by the other side (the client side of
+   * the handshake).
+   * @param recipient the public key of the side that created the session
+   * @param session the session it created
+   */
+  public void join(PublicKey recipient, Session session) {
+    byId.put(session.id, session);
+    byRecipient.put(recipient, session);
+  }
+
+  /**
+   * resume
+   * Takes up a session that the other side had on a connection that was lost.
+   * Like "open", this never replaces a session the recipient already has, and it
+   * will not reuse an id that names another session.
+   * @param recipient the public key of the side that is resuming
+   * @param session the session it had before
+   * @return whether the session was taken up
+   */
+  public boolean resume(PublicKey recipient, Session session) {
+    synchronized (byId) {
+      if (byId.containsKey(session.id) || byRecipient.putIfAbsent(recipient, session) != null) {
+        return false;
+      }
+      byId.put(session.id, session);
+      return true;
+    }
+  }
+
+  /**
+   * forRecipient
+   * @param recipient the public key of the other side
+   * @return the session to encrypt with, or null if there is none
+   */
+  public Session forRecipient(PublicKey recipient) {
+    return recipient == null ? null : byRecipient.get(recipient);
+  }
+
+  /**
+   * forId
+   * @param id the id of a session
+   * @return the session with that id, or null if it is not known
+   */
+  public Session forId(long id) {
+    return byId.get(id);
+  }
+
+  /**
+   * clear
+   * Forgets every session, e.g. when the connection they belong to is closed.
+   */
+  public void clear() {
+    byRecipient.clear();
+    byId.clear();
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+
+// FRAME
+//
+// A frame is a single request or response sent over a multiplexed connection.
+// As many requests share one connection, each frame carries the id of the request
+// it belongs to so that responses can be matched to their requests no matter
+// what order they come back in. The payload is exactly what would have been sent
+// over a connection of its own.
+public final class Frame {
+
+  public static final Serializer<Frame> SERIALIZER = new Serializer<Frame>() {
+
+    @Override
+    public void write(OutputStream out, Frame value) throws IOException {
+      Serializers.INTEGER.write(out, value.id);
+      Serializers.BYTES.write(out, value.payload);
+    }
+
+    @Override
+    public Frame read(InputStream in) throws IOException {
+
+      // Unlike the other serializers, reading a frame needs to know when the other
+      // side has hung up. DataInputStream throws an EOFException when the stream
+      // ends part way through a read, which is what the readers of a multiplexed
+      // connection use to stop. The encoding is the same as Serializers.INTEGER.
+      final DataInputStream data = new DataInputStream(in);
+
+      final int id = data.readInt();
+      final int length = data.readInt();
+
+      if (length < 0) {
+        throw new IOException(String.format("Invalid frame length %d", length));
+      }
+
+      final byte[] payload = new byte[length];
+      data.readFully(payload);
+
+      return new Frame(id, payload);
+    }
+  };
+
+  public final int id;
+  public final byte[] payload;
+
+  public Frame(int id, byte[] payload) {
+    this.id = id;
+    this.payload = payload;
+  }
+}
@@ -0,0 +1,371 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.SessionKeys;
+
+// MULTIPLEXED CONNECTION SOURCE
+//
+// A connection source that sends every "connection" over a single long-lived
+// connection instead of opening a new one each time. Each call to "connect"
+// creates a request. Everything written to the request's output is sent as one
+// frame the first time its input is read, and the input then holds the payload
+// of the frame the other side sent back with the same id.
+//
+// Many requests can be in flight at once (from any number of threads) and the
+// responses may come back in any order. If the underlying connection is lost,
+// every request waiting on it fails and the next request opens a new one.
+//
+// A request can also be opened as a subscription. Its first response is read
+// like any other, but the other side may keep sending frames with the same id
+// afterwards. Those are handed to the subscription's listener until the
+// subscription is cancelled or the connection is lost.
+public final class MultiplexedConnectionSource implements ConnectionSource {
+
+  // LISTENER
+  //
+  // Receives the frames pushed to a subscription after its first response. Both
+  // methods are called on the connection's reader thread, so they should hand
+  // off any slow work.
+  public interface Listener {
+
+    void onFrame(InputStream in) throws IOException;
+
+    // Called once if the connection is lost. No more frames will arrive and the
+    // subscription has to be made again on a new connection.
+    void onClose();
+
+  }
+
+  // SUBSCRIPTION
+  //
+  // A request whose id stays registered after its first response.
+  public interface Subscription extends Connection {
+
+    // The id of the request's frames. The other side uses this to tell which
+    // subscription to end.
+    int id();
+
+    // Stop handing frames to the listener. This does not tell the other side.
+    void cancel();
+
+  }
+
+  // OPENER
+  //
+  // Runs whenever a new underlying connection is opened, before any other request
+  // is sent on it. Requests made from "onOpen" go out on the new connection while
+  // requests from other threads wait for it to return. This is where state the
+  // other side kept per connection, like session keys, is set up again.
+  public interface Opener {
+
+    void onOpen();
+
+  }
+
+  private final static Logger.Log LOG = Logger.newLog(MultiplexedConnectionSource.class);
+
+  private final ConnectionSource source;
+  private final int openCode;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  private Channel channel;  // guarded by "this"
+  private Opener opener;  // guarded by "this"
+  private boolean opening;  // guarded by "this"
+
+  // MULTIPLEXED CONNECTION SOURCE
+  //
+  // "source" is used to open the long-lived connection and "openCode" is written
+  // as the first integer on it so that the other side knows to expect frames.
+  public MultiplexedConnectionSource(ConnectionSource source, int openCode) {
+    this.source = source;
+    this.openCode = openCode;
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+    return new Request(nextId.incrementAndGet(), null);
+  }
+
+  public Subscription subscribe(Listener listener) throws IOException {
+    return new Request(nextId.incrementAndGet(), listener);
+  }
+
+  // SET OPENER
+  //
+  // Sets what to run on every new underlying connection from now on. It is not
+  // run for the connection that is already open.
+  public synchronized void setOpener(Opener opener) {
+    this.opener = opener;
+  }
+
+  @Override
+  public void close() throws IOException {
+    final Channel closing;
+    synchronized (this) {
+      closing = channel;
+      channel = null;
+    }
+    if (closing != null) {
+      closing.shutdown();
+    }
+  }
+
+  private synchronized Channel channel() throws IOException {
+    if (channel == null || !channel.isOpen()) {
+      channel = new Channel(source.connect());
+      if (opener != null && !opening) {
+        // This thread holds the lock, so the opener's requests find the new
+        // channel while every other request waits until it is done. If the new
+        // channel is lost as well, the opener's own requests reconnect without
+        // running it again.
+        opening = true;
+        try {
+          opener.onOpen();
+        } finally {
+          opening = false;
+        }
+      } else if (opener == null) {
+        // The other side dropped the sessions opened on the old connection and
+        // nothing will set them up again, so stop naming them. Payloads fall
+        // back to wrapped keys.
+        SessionKeys.current().clear();
+      }
+    }
+    return channel;
+  }
+
+  // CHANNEL
+  //
+  // One underlying connection and the requests that are waiting on it. A reader
+  // thread hands each incoming frame to the request with the matching id.
+  private final class Channel {
+
+    private final Connection connection;
+    private final OutputStream out;
+    private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Request> subscriptions = new ConcurrentHashMap<>();
+
+    private volatile boolean open = true;
+
+    public Channel(Connection connection) throws IOException {
+      this.connection = connection;
+      this.out = new BufferedOutputStream(connection.out());
+
+      Serializers.INTEGER.write(out, openCode);
+      out.flush();
+
+      final InputStream in = new BufferedInputStream(connection.in());
+
+      final Thread reader = new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (open) {
+              final Frame frame = Frame.SERIALIZER.read(in);
+              final Request request = pending.remove(frame.id);
+              if (request != null) {
+                request.complete(frame.payload);
+              } else if (subscriptions.containsKey(frame.id)) {
+                subscriptions.get(frame.id).push(frame.payload);
+              } else {
+                LOG.warning("Dropping response for unknown request %d", frame.id);
+              }
+            }
+          } catch (IOException ex) {
+            if (open) {
+              LOG.error(ex, "Multiplexed connection lost.");
+            }
+          } finally {
+            shutdown();
+          }
+        }
+      };
+
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    public void send(Request request, byte[] payload) throws IOException {
+      if (request.listener != null) {
+        subscriptions.put(request.id, request);
+      }
+      pending.put(request.id, request);
+      try {
+        synchronized (out) {
+          Frame.SERIALIZER.write(out, new Frame(request.id, payload));
+          out.flush();
+        }
+      } catch (IOException ex) {
+        pending.remove(request.id);
+        subscriptions.remove(request.id);
+        shutdown();
+        throw ex;
+      }
+
+      // The reader may have shutdown while the frame was being written, in which
+      // case no one is left to complete the request.
+      if (!open && pending.remove(request.id) != null) {
+        request.fail();
+      }
+      if (!open && subscriptions.remove(request.id) != null) {
+        request.listener.onClose();
+      }
+    }
+
+    public void shutdown() {
+      open = false;
+
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Exception while closing multiplexed connection.");
+      }
+
+      for (final Integer id : pending.keySet()) {
+        final Request request = pending.remove(id);
+        if (request != null) {
+          request.fail();
+        }
+      }
+
+      for (final Integer id : subscriptions.keySet()) {
+        final Request request = subscriptions.remove(id);
+        if (request != null) {
+          request.listener.onClose();
+        }
+      }
+    }
+
+    public void cancel(Request request) {
+      subscriptions.remove(request.id);
+    }
+  }
+
+  // REQUEST
+  //
+  // What callers see as a connection. Nothing is sent until the input is needed
+  // (or the request is closed) so that the whole request goes out as one frame.
+  private final class Request implements Subscription {
+
+    public final int id;
+    public final Listener listener;
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile byte[] response;
+    private boolean sent = false;
+    private InputStream responseStream;
+    private Channel channel;
+
+    public Request(int id, Listener listener) {
+      this.id = id;
+      this.listener = listener;
+    }
+
+    @Override
+    public int id() {
+      return id;
+    }
+
+    @Override
+    public synchronized void cancel() {
+      if (channel != null) {
+        channel.cancel(this);
+      }
+    }
+
+    @Override
+    public synchronized InputStream in() throws IOException {
+      if (responseStream == null) {
+        send();
+
+        try {
+          done.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for response");
+        }
+
+        if (response == null) {
+          throw new IOException("Connection lost before response was received");
+        }
+
+        responseStream = new ByteArrayInputStream(response);
+      }
+      return responseStream;
+    }
+
+    @Override
+    public OutputStream out() throws IOException {
+      return body;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      // A request that was written to but never read from still needs to be sent.
+      // Its response will be dropped when it arrives.
+      if (!sent && body.size() > 0) {
+        send();
+      }
+    }
+
+    public void complete(byte[] payload) {
+      response = payload;
+      done.countDown();
+    }
+
+    public void fail() {
+      done.countDown();
+    }
+
+    public void push(byte[] payload) {
+      try {
+        listener.onFrame(new ByteArrayInputStream(payload));
+      } catch (Exception ex) {
+        LOG.error(ex, "Exception while handling frame for subscription %d.", id);
+      }
+    }
+
+    private void send() throws IOException {
+      if (!sent) {
+        sent = true;
+        channel = channel();
+        channel.send(this, body.toByteArray());
+      }
+    }
+  }
+}
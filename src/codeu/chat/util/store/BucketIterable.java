@@ -14,23 +14,19 @@
 
 package codeu.chat.util.store;
 
-import java.util.Comparator;
 import java.util.Iterator;
 
-final class LinkIterable<KEY, VALUE> implements Iterable<VALUE> {
+// Iterates over every value in a series of buckets, one bucket after another.
+final class BucketIterable<VALUE> implements Iterable<VALUE> {
 
-  private final Comparator<KEY> comparator;
-  private final StoreLink<KEY, VALUE> first;
-  private final StoreLink<KEY, VALUE> last;
+  private final Iterable<? extends Iterable<VALUE>> buckets;
 
-  public LinkIterable(Comparator<KEY> comparator, StoreLink<KEY, VALUE> first, StoreLink<KEY, VALUE> last) {
-    this.comparator = comparator;
-    this.first = first;
-    this.last = last;
+  public BucketIterable(Iterable<? extends Iterable<VALUE>> buckets) {
+    this.buckets = buckets;
   }
 
   @Override
   public Iterator<VALUE> iterator() {
-    return new LinkIterator<KEY, VALUE>(comparator, first, last);
+    return new BucketIterator<VALUE>(buckets.iterator());
   }
 }
@@ -14,32 +14,34 @@
 
 package codeu.chat.util.store;
 
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-final class LinkIterator<KEY, VALUE> implements Iterator<VALUE> {
+final class BucketIterator<VALUE> implements Iterator<VALUE> {
 
-  private final Comparator<KEY> comparator;
-  private final StoreLink<KEY, VALUE> last;
+  private final Iterator<? extends Iterable<VALUE>> buckets;
 
-  private StoreLink<KEY, VALUE> current;
+  private Iterator<VALUE> current = Collections.emptyIterator();
 
-  public LinkIterator(Comparator<KEY> comparator, StoreLink<KEY, VALUE> first, StoreLink<KEY, VALUE> last) {
-    this.comparator = comparator;
-    this.last = last;
-    this.current = first;
+  public BucketIterator(Iterator<? extends Iterable<VALUE>> buckets) {
+    this.buckets = buckets;
   }
 
   @Override
   public boolean hasNext() {
-    return current != null && comparator.compare(current.key, last.key) <= 0;
+    while (!current.hasNext() && buckets.hasNext()) {
+      current = buckets.next().iterator();
+    }
+    return current.hasNext();
   }
 
   @Override
   public VALUE next() {
-    final VALUE value = current.value;
-    current = current.next;
-    return value;
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
   }
 
   @Override
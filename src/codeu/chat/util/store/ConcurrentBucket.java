@@ -0,0 +1,133 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// CONCURRENT BUCKET
+//
+// The values stored under one key of a ConcurrentStore, in insertion order.
+// Values are only ever appended. Each node is published through a volatile
+// "next" so readers can walk the bucket without locking while a value is being
+// added; they see every value added before they reached the end.
+//
+// Removing a value retires the bucket and makes a copy without it, which the
+// store puts in its place. Readers already walking the retired bucket still see
+// the old values; adding to a retired bucket fails so the value goes to the copy.
+final class ConcurrentBucket<VALUE> implements Iterable<VALUE> {
+
+  private static final class Node<VALUE> {
+
+    public final VALUE value;
+    public volatile Node<VALUE> next;
+
+    public Node(VALUE value) {
+      this.value = value;
+    }
+  }
+
+  private final Node<VALUE> head;
+  private Node<VALUE> tail;  // guarded by "this"
+  private boolean retired = false;  // guarded by "this"
+
+  public ConcurrentBucket(VALUE first) {
+    this.head = new Node<>(first);
+    this.tail = head;
+  }
+
+  public VALUE first() {
+    return head.value;
+  }
+
+  // Returns false if the bucket has been retired, in which case the value was
+  // not added.
+  public synchronized boolean add(VALUE value) {
+    if (retired) {
+      return false;
+    }
+    final Node<VALUE> node = new Node<>(value);
+    tail.next = node;
+    tail = node;
+    return true;
+  }
+
+  public boolean contains(VALUE value) {
+    for (Node<VALUE> node = head; node != null; node = node.next) {
+      if (equal(node.value, value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // RETIRE
+  //
+  // Stops any more values from being added and returns a copy of the bucket
+  // without the first value equal to "value". The copy is null if no values would
+  // be left. Returns this bucket if it was already retired, meaning another
+  // remove got here first and the caller should look the bucket up again.
+  public synchronized ConcurrentBucket<VALUE> retire(VALUE value) {
+    if (retired) {
+      return this;
+    }
+    retired = true;
+
+    ConcurrentBucket<VALUE> copy = null;
+    boolean removed = false;
+    for (Node<VALUE> node = head; node != null; node = node.next) {
+      if (!removed && equal(node.value, value)) {
+        removed = true;
+      } else if (copy == null) {
+        copy = new ConcurrentBucket<>(node.value);
+      } else {
+        copy.add(node.value);
+      }
+    }
+    return copy;
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  @Override
+  public Iterator<VALUE> iterator() {
+    return new Iterator<VALUE>() {
+
+      private Node<VALUE> current = head;
+
+      @Override
+      public boolean hasNext() {
+        return current != null;
+      }
+
+      @Override
+      public VALUE next() {
+        if (current == null) {
+          throw new NoSuchElementException();
+        }
+        final VALUE value = current.value;
+        current = current.next;
+        return value;
+      }
+
+      @Override
+      public void remove() {
+        // do nothing
+      }
+    };
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// CONCURRENT STORE
+//
+// A Store that can be read from any number of threads while values are being
+// inserted, without locking. Keys are kept in a skip list and the values for a
+// key in an append-only bucket. Iterating never blocks and never throws because
+// of a concurrent insert; it may or may not see values inserted after it started.
+//
+// Inserts may come from more than one thread, but callers that add one value to
+// several stores and want readers to see all or none of them still need to
+// serialize their writes. Removing swaps in a copy of the key's bucket, so it is
+// much slower than inserting and is meant for dropping values in bulk now and
+// then, not for every write.
+public final class ConcurrentStore<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
+
+  private final ConcurrentNavigableMap<KEY, ConcurrentBucket<VALUE>> index;
+
+  private final Comparator<KEY> comparator;
+
+  public ConcurrentStore(Comparator<KEY> comparator) {
+    this.index = new ConcurrentSkipListMap<>(comparator);
+    this.comparator = comparator;
+  }
+
+  public void insert(KEY key, VALUE value) {
+
+    // Only loops if the bucket is retired by a remove part way through.
+    while (true) {
+      final ConcurrentBucket<VALUE> bucket = index.get(key);
+
+      if (bucket == null) {
+        if (index.putIfAbsent(key, new ConcurrentBucket<>(value)) == null) {
+          return;
+        }
+      } else if (bucket.add(value)) {
+        return;
+      }
+    }
+  }
+
+  // REMOVE
+  //
+  // Removes the first value equal to "value" from under "key". Returns false if
+  // it was not there.
+  public boolean remove(KEY key, VALUE value) {
+
+    if (key == null) {
+      return false;
+    }
+
+    while (true) {
+      final ConcurrentBucket<VALUE> bucket = index.get(key);
+
+      if (bucket == null || !bucket.contains(value)) {
+        return false;
+      }
+
+      final ConcurrentBucket<VALUE> copy = bucket.retire(value);
+
+      if (copy == bucket) {
+        continue;
+      }
+
+      // Only the remove that retired the bucket replaces it, so this cannot fail.
+      if (copy == null) {
+        index.remove(key, bucket);
+      } else {
+        index.replace(key, bucket, copy);
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+    // The skip list does not allow null keys, but a TreeMap based Store would
+    // hand a null key to the comparator, so lookups with one are not an error.
+    if (key == null) {
+      return null;
+    }
+    final ConcurrentBucket<VALUE> bucket = index.get(key);
+    return bucket == null ? null : bucket.first();
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return new BucketIterable<VALUE>(index.values());
+  }
+
+  @Override
+  public Iterable<VALUE> at(KEY key) {
+    final ConcurrentBucket<VALUE> bucket = index.get(key);
+    return bucket == null ? Collections.<VALUE>emptyList() : bucket;
+  }
+
+  @Override
+  public Iterable<VALUE> after(KEY start) {
+    return new BucketIterable<VALUE>(index.tailMap(start, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> before(KEY end) {
+    return new BucketIterable<VALUE>(index.headMap(end, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> range(KEY start, KEY end) {
+    if (comparator.compare(start, end) > 0) {
+      return Collections.<VALUE>emptyList();
+    }
+    return new BucketIterable<VALUE>(index.subMap(start, true, end, true).values());
+  }
+}
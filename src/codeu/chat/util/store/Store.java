@@ -14,19 +14,22 @@
 
 package codeu.chat.util.store;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Map;
+import java.util.List;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
+// STORE
+//
+// Values ordered by key. Any number of values can share a key; they are kept in
+// a bucket under that key in the order they were inserted. Finding the bucket is
+// O(log n) no matter how many values share its key, so inserts stay O(log n) for
+// stores full of duplicates (like messages that share a time or text).
 public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
-  // To make the code simpler - use a dummy link for the first link in this
-  // list. The root link is never read from. To avoid reading from this link
-  // the "next" value is used more than the "this" or "current" reference.
-  private final StoreLink<KEY, VALUE> rootLink = new StoreLink<>(null, null, null);
-
-  private final NavigableMap<KEY, StoreLink<KEY, VALUE>> index;
+  private final NavigableMap<KEY, List<VALUE>> index;
 
   private final Comparator<KEY> comparator;
 
@@ -37,84 +40,49 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   public void insert(KEY key, VALUE value) {
 
-    final StoreLink<KEY, VALUE> closestLink = floor(key);
+    List<VALUE> bucket = index.get(key);
 
-    // Assume that the new value can only come after the current position. Move
-    // through the chain of links until the next link is either the end (null)
-    // or will logically come after the new value.
-    StoreLink<KEY, VALUE> current = (closestLink == null) ? (rootLink) : (closestLink);
-    while(current.next != null && comparator.compare(current.next.key, key) <= 0) {
-      current = current.next;
+    if (bucket == null) {
+      // Most keys only ever have one value, so start buckets small.
+      bucket = new ArrayList<>(1);
+      index.put(key, bucket);
     }
 
-    // "current.next" may be null, but "current" can never be null. So it
-    // should always be safe to call to current.
-    final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, value, current.next);
-    current.next = newLink;
-
-    // Before adding the link to the index, first check if the hint has an
-    // equal key. If it does - do not add the index.
-    //
-    // There are two reasons for this:
-    //  1. The index class does not handle duplicate keys well (as stated in
-    //     the code for the index).
-    //  2. There is no advantage to having multiple equal keys in the index as
-    //     it would not help with the interators. As long as the key will map
-    //     to the first link, the other links will always be found. This is
-    //     why the insert is always put at the end of the series.
-    if (closestLink == null || comparator.compare(newLink.key, closestLink.key) != 0) {
-      index.put(key, newLink);
-    }
+    bucket.add(value);
   }
 
   @Override
   public VALUE first(KEY key) {
-    final StoreLink<KEY, VALUE> link = index.get(key);
-    return link == null ? null : link.value;
+    final List<VALUE> bucket = index.get(key);
+    return bucket == null ? null : bucket.get(0);
   }
 
   @Override
   public Iterable<VALUE> all() {
-    return new LinkIterable<KEY, VALUE>(comparator, first(), last());
+    return new BucketIterable<VALUE>(index.values());
   }
 
   @Override
-  public Iterable<VALUE> at(final KEY key) {
-    return new LinkIterable<KEY, VALUE>(comparator, ceiling(key), floor(key));
+  public Iterable<VALUE> at(KEY key) {
+    final List<VALUE> bucket = index.get(key);
+    return bucket == null ? Collections.<VALUE>emptyList() : Collections.unmodifiableList(bucket);
   }
 
   @Override
   public Iterable<VALUE> after(KEY start) {
-    return new LinkIterable<KEY, VALUE>(comparator, ceiling(start), last());
+    return new BucketIterable<VALUE>(index.tailMap(start, true).values());
   }
 
   @Override
   public Iterable<VALUE> before(KEY end) {
-    return new LinkIterable<KEY, VALUE>(comparator, first(), floor(end));
+    return new BucketIterable<VALUE>(index.headMap(end, true).values());
   }
 
   @Override
   public Iterable<VALUE> range(KEY start, KEY end) {
-    return new LinkIterable<KEY, VALUE>(comparator, ceiling(start), floor(end));
-  }
-
-  private StoreLink<KEY, VALUE> first() {
-    return extract(index.firstEntry());
-  }
-
-  private StoreLink<KEY, VALUE> last() {
-    return extract(index.lastEntry());
-  }
-
-  private StoreLink<KEY, VALUE> ceiling(KEY key) {
-    return extract(index.ceilingEntry(key));
-  }
-
-  private StoreLink<KEY, VALUE> floor(KEY key) {
-    return extract(index.floorEntry(key));
-  }
-
-  private StoreLink<KEY, VALUE> extract(Map.Entry<KEY, StoreLink<KEY, VALUE>> entry) {
-    return entry == null ? null : entry.getValue();
+    if (comparator.compare(start, end) > 0) {
+      return Collections.<VALUE>emptyList();
+    }
+    return new BucketIterable<VALUE>(index.subMap(start, true, end, true).values());
   }
 }
@@ -0,0 +1,228 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import codeu.chat.util.Uuid;
+
+// UUID STORE
+//
+// A ConcurrentStore for Uuid keys with a faster "first". Server generated ids
+// are always one random int under the server's id, so when the server id is a
+// single int the whole Uuid fits in a long. Those are kept in an open-addressing
+// hash table of longs, which finds a value without walking Uuid chains or
+// boxing. Uuids of any other shape go to a regular hash map instead.
+//
+// The ordered store is still kept for the iterating methods. As with
+// ConcurrentStore, readers never lock. Inserts and removes are serialized on the
+// store. A removed slot is left holding a marker so that probes for other keys
+// carry on past it; markers are cleared out when the table is next rebuilt.
+public final class UuidStore<VALUE> implements StoreAccessor<Uuid, VALUE> {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final Object REMOVED = new Object();
+
+  // TABLE
+  //
+  // Keys and values at matching slots. A slot is used once its value is set, and
+  // its key is always written before its value, so a reader that sees a value
+  // also sees the key that goes with it. A full table is replaced rather than
+  // grown in place so that readers always see a complete table.
+  private static final class Table<VALUE> {
+
+    public final long[] keys;
+    public final AtomicReferenceArray<VALUE> values;
+    public final int mask;
+
+    public Table(int capacity) {
+      this.keys = new long[capacity];
+      this.values = new AtomicReferenceArray<>(capacity);
+      this.mask = capacity - 1;
+    }
+  }
+
+  private final ConcurrentStore<Uuid, VALUE> ordered;
+  private final Map<Uuid, VALUE> other = new ConcurrentHashMap<>();
+
+  private volatile Table<VALUE> table = new Table<>(INITIAL_CAPACITY);
+  private int size = 0;  // guarded by "this"
+  private int used = 0;  // slots holding a value or a removed marker, guarded by "this"
+
+  public UuidStore(Comparator<Uuid> comparator) {
+    this.ordered = new ConcurrentStore<>(comparator);
+  }
+
+  public synchronized void insert(Uuid key, VALUE value) {
+
+    if (isPackable(key)) {
+      final long packed = pack(key);
+      if (find(table, packed) == null) {
+        if ((used + 1) * 2 > table.keys.length) {
+          table = rebuild(table, size + 1);
+          used = size;
+        }
+        put(table, packed, value);
+        size += 1;
+        used += 1;
+      }
+    } else if (!other.containsKey(key)) {
+      other.put(key, value);
+    }
+
+    ordered.insert(key, value);
+  }
+
+  // REMOVE
+  //
+  // Removes "value" from under "key". If other values were inserted under the
+  // same key, the oldest of those is what "first" returns afterwards.
+  public synchronized boolean remove(Uuid key, VALUE value) {
+
+    if (key == null || !ordered.remove(key, value)) {
+      return false;
+    }
+
+    final VALUE next = ordered.first(key);
+
+    if (isPackable(key)) {
+      final long packed = pack(key);
+      final int slot = slotOf(table, packed);
+      if (slot >= 0 && equal(table.values.get(slot), value)) {
+        if (next == null) {
+          table.values.set(slot, UuidStore.<VALUE>removed());
+          size -= 1;
+        } else {
+          table.values.set(slot, next);
+        }
+      }
+    } else if (equal(other.get(key), value)) {
+      if (next == null) {
+        other.remove(key);
+      } else {
+        other.put(key, next);
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public VALUE first(Uuid key) {
+    if (key == null) {
+      return null;
+    }
+    return isPackable(key) ? find(table, pack(key)) : other.get(key);
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return ordered.all();
+  }
+
+  @Override
+  public Iterable<VALUE> at(Uuid key) {
+    return ordered.at(key);
+  }
+
+  @Override
+  public Iterable<VALUE> after(Uuid start) {
+    return ordered.after(start);
+  }
+
+  @Override
+  public Iterable<VALUE> before(Uuid end) {
+    return ordered.before(end);
+  }
+
+  @Override
+  public Iterable<VALUE> range(Uuid start, Uuid end) {
+    return ordered.range(start, end);
+  }
+
+  // A Uuid with exactly two links: a root with no root of its own, and an id.
+  private static boolean isPackable(Uuid key) {
+    return key.root() != null && key.root().root() == null;
+  }
+
+  private static long pack(Uuid key) {
+    return ((long) key.root().id() << 32) | (key.id() & 0xFFFFFFFFL);
+  }
+
+  private static int slot(long key, int mask) {
+    // Spread the bits so that ids sharing a root do not crowd together.
+    long hash = key * 0x9E3779B97F4A7C15L;
+    hash ^= hash >>> 32;
+    return (int) hash & mask;
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <VALUE> VALUE removed() {
+    return (VALUE) REMOVED;
+  }
+
+  private static <VALUE> VALUE find(Table<VALUE> table, long key) {
+    final int slot = slotOf(table, key);
+    return slot < 0 ? null : table.values.get(slot);
+  }
+
+  // The slot holding a value for "key", or -1 if there is none.
+  private static <VALUE> int slotOf(Table<VALUE> table, long key) {
+    for (int i = slot(key, table.mask); ; i = (i + 1) & table.mask) {
+      final VALUE value = table.values.get(i);
+      if (value == null) {
+        return -1;
+      }
+      if (value != REMOVED && table.keys[i] == key) {
+        return i;
+      }
+    }
+  }
+
+  private static <VALUE> void put(Table<VALUE> table, long key, VALUE value) {
+    int i = slot(key, table.mask);
+    while (table.values.get(i) != null) {
+      i = (i + 1) & table.mask;
+    }
+    table.keys[i] = key;
+    table.values.set(i, value);
+  }
+
+  // A new table with room for "size" values, holding every value of the old one
+  // but none of its removed markers. It may be no bigger than the old table if
+  // enough values have been removed.
+  private static <VALUE> Table<VALUE> rebuild(Table<VALUE> old, int size) {
+    int capacity = INITIAL_CAPACITY;
+    while (size * 2 > capacity) {
+      capacity *= 2;
+    }
+    final Table<VALUE> rebuilt = new Table<>(capacity);
+    for (int i = 0; i < old.keys.length; i++) {
+      final VALUE value = old.values.get(i);
+      if (value != null && value != REMOVED) {
+        put(rebuilt, old.keys[i], value);
+      }
+    }
+    return rebuilt;
+  }
+}
@@ -24,14 +24,25 @@ public final class TestRunner {
          JUnitCore.runClasses(
              codeu.chat.common.SecretTest.class,
              codeu.chat.relay.ServerTest.class,
+             codeu.chat.relay.SegmentLogTest.class,
              codeu.chat.server.BasicControllerTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.ViewTest.class,
+             codeu.chat.server.MessageIndexTest.class,
+             codeu.chat.server.ModelTest.class,
+             codeu.chat.server.RelayCursorTest.class,
+             codeu.chat.server.RelayPacerTest.class,
+             codeu.chat.server.RemoteRelayTest.class,
              codeu.chat.util.store.StoreTest.class,
+             codeu.chat.util.store.ConcurrentStoreTest.class,
+             codeu.chat.util.store.UuidStoreTest.class,
              codeu.chat.compression.CompressionTest.class,
              codeu.chat.database.DatabaseTest.class,
              codeu.chat.util.EncryptorTest.class,
+             codeu.chat.util.EncryptedSerializersTest.class,
              codeu.chat.util.TimeTest.class,
              codeu.chat.util.UuidTest.class,
+             codeu.chat.util.connections.MultiplexedConnectionSourceTest.class,
              codeu.chat.server.authentication.AuthenticationTest.class,
              codeu.chat.server.storage.StorageTest.class
          );
@@ -6,11 +6,15 @@ import java.util.List;
 import java.util.Map;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
@@ -27,6 +31,32 @@ public final class DatabaseTest {
     }
   }
 
+  private class IndexedSchema extends TestSchema {
+    public IndexedSchema() {
+      addIndex("foo_lower", "LOWER(foo)");
+      addIndex("foo_bar", "foo", "bar");
+    }
+  }
+
+  private class UniqueSchema extends TestSchema {
+    public UniqueSchema() {
+      addUniqueIndex("foo_unique", "LOWER(foo)");
+    }
+  }
+
+  private class NumberSchema extends Schema {
+    public NumberSchema() {
+      addField("name", "TEXT");
+      addField("number", "INTEGER");
+    }
+  }
+
+  private class NumberTable extends Table<NumberSchema> {
+    public NumberTable(Database database) throws SQLException {
+      super(new NumberSchema(), database, "numbers");
+    }
+  }
+
   private class TestTable extends Table<TestSchema> {
     public TestTable(Database database) throws SQLException {
       super(new TestSchema(), database, "test");
@@ -155,4 +185,153 @@ public final class DatabaseTest {
     assertNull(table.find(id));
   }
 
+  @Test
+  public void testCreateAll() throws SQLException {
+    TestTable table = new TestTable(database);
+    List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+    for (int i = 0; i < 100; i++) {
+      Map<String, String> fields = new HashMap<String, String>();
+      fields.put("foo", "batch");
+      fields.put("bar", Integer.toString(i));
+      rows.add(fields);
+    }
+    // A row with different fields goes in a batch of its own.
+    Map<String, String> other = new HashMap<String, String>();
+    other.put("foo", "batch");
+    rows.add(other);
+
+    table.createAll(rows);
+    assertTrue(table.find("foo", "batch").size() == 101);
+  }
+
+  @Test
+  public void testFindRepeated() throws SQLException {
+    TestTable table = new TestTable(database);
+    Map<String, String> fields = new HashMap<String, String>();
+    fields.put("foo", "hello");
+    fields.put("bar", "world");
+    table.create(fields);
+    // Later lookups reuse the first one's statement with new values.
+    for (int i = 0; i < 10; i++) {
+      assertTrue(table.find("foo", "hello").size() == 1);
+      assertTrue(table.find("foo", "other").size() == 0);
+    }
+  }
+
+  @Test
+  public void testCreateIndexes() throws SQLException {
+    IndexedSchema indexed = new IndexedSchema();
+    indexed.createTable("test", database);
+    // Creating the table again leaves the indexes as they are.
+    indexed.createTable("test", database);
+
+    Connection connection = database.getConnection();
+    try (PreparedStatement stmt = connection.prepareStatement(
+             "SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'test' ORDER BY name");
+         ResultSet results = stmt.executeQuery()) {
+      assertTrue(results.next());
+      assertTrue(results.getString(1).equals("test_foo_bar"));
+      assertTrue(results.next());
+      assertTrue(results.getString(1).equals("test_foo_lower"));
+    }
+
+    // A lookup on the same expression uses the expression index.
+    try (PreparedStatement stmt = connection.prepareStatement(
+             "EXPLAIN QUERY PLAN SELECT * FROM test WHERE LOWER(foo) = LOWER(?)")) {
+      stmt.setString(1, "Hello");
+      try (ResultSet results = stmt.executeQuery()) {
+        assertTrue(results.next());
+        assertTrue(results.getString("detail").contains("test_foo_lower"));
+      }
+    }
+  }
+
+  @Test
+  public void testUniqueIndex() throws SQLException {
+    UniqueSchema unique = new UniqueSchema();
+    unique.dropTable("test", database);
+    unique.createTable("test", database);
+    TestTable table = new TestTable(database);
+
+    Map<String, String> fields = new HashMap<String, String>();
+    fields.put("foo", "Hello");
+    fields.put("bar", "World");
+    table.create(fields);
+
+    fields.put("foo", "HELLO");
+    try {
+      table.create(fields);
+      fail("A second row with the same lowercase foo was stored.");
+    } catch (SQLException ex) {
+      assertTrue(Database.isConstraintViolation(ex));
+    }
+  }
+
+  @Test
+  public void testQuery() throws SQLException {
+    new NumberSchema().dropTable("numbers", database);
+    NumberTable table = new NumberTable(database);
+    // Text values given for an INTEGER column are stored as numbers, so 9 comes
+    // before 10 rather than after it.
+    for (long number : new long[] { 10, 9, 100 }) {
+      Map<String, String> fields = new HashMap<String, String>();
+      fields.put("name", "n" + number);
+      fields.put("number", Long.toString(number));
+      table.create(fields);
+    }
+
+    List<Long> numbers = table.query(
+        "number >= ? ORDER BY number",
+        new RowMapper<Long>() {
+          @Override
+          public Long map(ResultSet row) throws SQLException {
+            return row.getLong("number");
+          }
+        },
+        9L);
+
+    assertTrue(numbers.size() == 3);
+    assertTrue(numbers.get(0) == 9);
+    assertTrue(numbers.get(1) == 10);
+    assertTrue(numbers.get(2) == 100);
+    table.destroy();
+  }
+
+  @Test
+  public void testReadConnections() throws SQLException {
+    TestTable table = new TestTable(database);
+
+    Connection first = database.getReadConnection();
+    Connection second = database.getReadConnection();
+    try {
+      // Two borrowed connections are never the same one, or the writer.
+      assertFalse(first == second);
+      assertFalse(first == database.getConnection());
+
+      // Readers see what the writer has committed.
+      Map<String, String> fields = new HashMap<String, String>();
+      fields.put("foo", "shared");
+      table.create(fields);
+      try (PreparedStatement stmt = second.prepareStatement("SELECT COUNT(*) FROM test WHERE foo = 'shared'");
+           ResultSet results = stmt.executeQuery()) {
+        assertTrue(results.getInt(1) == 1);
+      }
+
+      // Readers cannot write.
+      try (PreparedStatement stmt = first.prepareStatement("DELETE FROM test")) {
+        stmt.executeUpdate();
+        assertTrue("Read connection allowed a write", false);
+      } catch (SQLException ex) {
+        // expected
+      }
+    } finally {
+      database.releaseReadConnection(first);
+      database.releaseReadConnection(second);
+    }
+
+    // A released connection is lent out again.
+    Connection again = database.getReadConnection();
+    assertTrue(again == first || again == second);
+    database.releaseReadConnection(again);
+  }
 }
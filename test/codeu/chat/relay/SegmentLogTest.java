@@ -0,0 +1,169 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SegmentLogTest {
+
+  private static final File DIRECTORY = new File("test_relay_log");
+
+  @Before
+  public void doBefore() {
+    delete(DIRECTORY);
+  }
+
+  @After
+  public void doAfter() {
+    delete(DIRECTORY);
+  }
+
+  @Test
+  public void testAppendAndRead() throws IOException {
+
+    final SegmentLog log = SegmentLog.inMemory(1024, 0);
+
+    assertEquals(1, log.append(10, bytes(1)));
+    assertEquals(2, log.append(20, bytes(2)));
+    assertEquals(3, log.append(30, bytes(3)));
+
+    final List<SegmentLog.Entry> all = log.read(0, 10);
+    assertEquals(3, all.size());
+    assertEquals(1, all.get(0).id);
+    assertEquals(10, all.get(0).time);
+    assertArrayEquals(bytes(1), all.get(0).payload);
+
+    final List<SegmentLog.Entry> after = log.read(1, 1);
+    assertEquals(1, after.size());
+    assertEquals(2, after.get(0).id);
+
+    assertTrue(log.read(3, 10).isEmpty());
+  }
+
+  @Test
+  public void testReadAcrossSegments() throws IOException {
+
+    // Each entry is 16 bytes of header and 8 of payload so a segment holds two.
+    final SegmentLog log = SegmentLog.inMemory(48, 0);
+
+    for (int i = 1; i <= 9; i++) {
+      assertEquals(i, log.append(i, bytes(i)));
+    }
+
+    final List<SegmentLog.Entry> read = log.read(2, 5);
+    assertEquals(5, read.size());
+    for (int i = 0; i < read.size(); i++) {
+      assertEquals(3 + i, read.get(i).id);
+      assertArrayEquals(bytes(3 + i), read.get(i).payload);
+    }
+  }
+
+  @Test
+  public void testMaxEntries() throws IOException {
+
+    final SegmentLog log = SegmentLog.inMemory(48, 3);
+
+    for (int i = 1; i <= 10; i++) {
+      log.append(i, bytes(i));
+    }
+
+    assertEquals(8, log.first());
+    assertEquals(10, log.last());
+
+    // A cursor that has been dropped reads from the oldest entry.
+    final List<SegmentLog.Entry> read = log.read(2, 10);
+    assertEquals(3, read.size());
+    assertEquals(8, read.get(0).id);
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+
+    final SegmentLog log = SegmentLog.open(DIRECTORY, 48, 0, 0, 0);
+    for (int i = 1; i <= 5; i++) {
+      log.append(i, bytes(i));
+    }
+    log.close();
+
+    final SegmentLog reopened = SegmentLog.open(DIRECTORY, 48, 0, 0, 0);
+    assertEquals(1, reopened.first());
+    assertEquals(5, reopened.last());
+
+    final List<SegmentLog.Entry> read = reopened.read(3, 10);
+    assertEquals(2, read.size());
+    assertEquals(4, read.get(0).id);
+    assertArrayEquals(bytes(4), read.get(0).payload);
+
+    // Ids carry on from where the log stopped.
+    assertEquals(6, reopened.append(6, bytes(6)));
+    reopened.close();
+  }
+
+  @Test
+  public void testRetainBytes() throws IOException {
+
+    final SegmentLog log = SegmentLog.open(DIRECTORY, 48, 0, 96, 0);
+    for (int i = 1; i <= 10; i++) {
+      log.append(i, bytes(i));
+    }
+
+    // Two segments of two entries each fit in 96 bytes.
+    assertEquals(7, log.first());
+    assertEquals(10, log.last());
+    assertEquals(2, DIRECTORY.list().length);
+    log.close();
+  }
+
+  @Test
+  public void testRetainAge() throws IOException {
+
+    final SegmentLog log = SegmentLog.open(DIRECTORY, 48, 0, 0, 100);
+    for (int i = 1; i <= 4; i++) {
+      log.append(i, bytes(i));
+    }
+    log.append(1000, bytes(5));
+
+    // Everything in the first two segments is more than 100ms older than the
+    // newest entry. The segment being written to is kept.
+    assertEquals(5, log.first());
+    assertEquals(5, log.last());
+    log.close();
+  }
+
+  private static byte[] bytes(long value) {
+    final byte[] bytes = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      bytes[i] = (byte) (value >>> (i * 8));
+    }
+    return bytes;
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -286,4 +286,129 @@ public final class ServerTest {
       assertTrue(Uuid.equals(bundle.id(), new Uuid(3)));
     }
   }
+
+  @Test
+  public void testReadTeam() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid teamA = new Uuid(3);
+    final Uuid teamB = new Uuid(13);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(teamA, secret));
+    assertTrue(relay.addTeam(teamB, secret));
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(relay.write(teamA,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(100 + i), "Hello from A", Time.now())));
+      assertTrue(relay.write(teamB,
+                             secret,
+                             relay.pack(new Uuid(14), "User", Time.now()),
+                             relay.pack(new Uuid(15), "Conversation", Time.now()),
+                             relay.pack(new Uuid(200 + i), "Hello from B", Time.now())));
+    }
+
+    // Everyone still sees every team's bundles.
+    assertEquals(6, relay.read(teamA, secret, Uuid.NULL, 8).size());
+
+    final Collection<Relay.Bundle> read = relay.readTeam(teamA, secret, teamB, Uuid.NULL, 8);
+    assertEquals(3, read.size());
+
+    Relay.Bundle last = null;
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.team(), teamB));
+      last = bundle;
+    }
+    assertTrue(Uuid.equals(last.message().id(), new Uuid(202)));
+
+    // Bundle 3 is team A's second bundle. Reading team B on from there skips the
+    // first of team B's bundles.
+    final Collection<Relay.Bundle> after = relay.readTeam(teamA, secret, teamB, new Uuid(3), 8);
+    assertEquals(2, after.size());
+
+    assertTrue(relay.readTeam(teamA, secret, new Uuid(99), Uuid.NULL, 8).isEmpty());
+  }
+
+  @Test
+  public void testReadTeamFailWrongSecret() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+    final byte[] wrongSecret = { 0x00, 0x01, 0x00 };
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertTrue(relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(6), "Hello World", Time.now())));
+
+    assertTrue(relay.readTeam(team, wrongSecret, team, Uuid.NULL, 8).isEmpty());
+  }
+
+  @Test
+  public void testReadWaitsForWrite() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ex) {
+          return;
+        }
+        relay.write(team,
+                    secret,
+                    relay.pack(new Uuid(4), "User", Time.now()),
+                    relay.pack(new Uuid(5), "Conversation", Time.now()),
+                    relay.pack(new Uuid(6), "Hello World", Time.now()));
+      }
+    };
+    writer.start();
+
+    final long start = System.currentTimeMillis();
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 8, 10000);
+
+    assertEquals(1, read.size());
+    assertTrue(System.currentTimeMillis() - start < 10000);
+
+    writer.join();
+  }
+
+  @Test
+  public void testReadWaitTimesOut() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertTrue(relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(6), "Hello World", Time.now())));
+
+    // Nothing comes after the only bundle, so the read waits and comes back empty.
+    assertTrue(relay.read(team, secret, new Uuid(1), 8, 50).isEmpty());
+
+    // A read that has something to return does not wait.
+    assertEquals(1, relay.read(team, secret, Uuid.NULL, 8, 10000).size());
+  }
 }
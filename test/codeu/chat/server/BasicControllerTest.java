@@ -121,4 +121,41 @@ public final class BasicControllerTest {
         "Check that the message has a valid reference",
         message == null);
   }
+
+  @Test
+  public void testLoginAgain() {
+
+    testAddMessage();
+
+    final int conversations = count(model.conversationById().all());
+    final int messages = count(model.messageById().all());
+
+    // Logging in again gives back the same user without loading the user's
+    // history a second time.
+    assertTrue(controller.login("username", "password") == user);
+    assertEquals(conversations, count(model.conversationById().all()));
+    assertEquals(messages, count(model.messageById().all()));
+
+    assertNull(controller.login("username", "not the password"));
+  }
+
+  @Test
+  public void testLoginAgainDifferentCase() {
+
+    testAddMessage();
+
+    final int conversations = count(model.conversationById().all());
+
+    // Authentication does not care about case, so neither does the controller.
+    assertTrue(controller.login("  UserName ", "password") == user);
+    assertEquals(conversations, count(model.conversationById().all()));
+  }
+
+  private static int count(Iterable<?> values) {
+    int count = 0;
+    for (final Object value : values) {
+      count += 1;
+    }
+    return count;
+  }
 }
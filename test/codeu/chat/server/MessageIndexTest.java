@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class MessageIndexTest {
+
+  private MessageIndex index;
+  private int nextId;
+
+  @Before
+  public void doBefore() {
+    index = new MessageIndex();
+    nextId = 1;
+  }
+
+  private Message add(long time) {
+    final Message message = new Message(new Uuid(nextId++), Uuid.NULL, Uuid.NULL, Time.fromMs(time), Uuid.NULL, "");
+    index.add(message);
+    return message;
+  }
+
+  @Test
+  public void testOutOfOrderAdds() {
+    final Message a = add(10);
+    final Message c = add(30);
+    final Message b = add(20);
+    final Message d = add(40);
+    final Message e = add(5);
+
+    assertOrder(index.first(10), e, a, b, c, d);
+  }
+
+  @Test
+  public void testRange() {
+    final Message a = add(10);
+    final Message b = add(20);
+    final Message c = add(20);
+    final Message d = add(30);
+
+    assertOrder(index.range(Time.fromMs(20), Time.fromMs(20)), b, c);
+    assertOrder(index.range(Time.fromMs(11), Time.fromMs(29)), b, c);
+    assertOrder(index.range(Time.fromMs(0), Time.fromMs(100)), a, b, c, d);
+    assertOrder(index.range(Time.fromMs(31), Time.fromMs(100)));
+  }
+
+  @Test
+  public void testFirstAndLast() {
+    final Message a = add(10);
+    final Message b = add(20);
+    final Message c = add(30);
+
+    assertOrder(index.first(2), a, b);
+    assertOrder(index.last(2), b, c);
+    assertOrder(index.last(10), a, b, c);
+    assertOrder(index.last(0));
+  }
+
+  @Test
+  public void testAfter() {
+    final Message a = add(10);
+    final Message b = add(20);
+    final Message c = add(20);
+    final Message d = add(20);
+    final Message e = add(30);
+
+    assertOrder(index.after(b, 2), c, d);
+    assertOrder(index.after(c, 10), d, e);
+    assertOrder(index.after(e, 10));
+
+    final Message other = new Message(new Uuid(99), Uuid.NULL, Uuid.NULL, Time.fromMs(20), Uuid.NULL, "");
+    assertNull(index.after(other, 10));
+  }
+
+  @Test
+  public void testManyAdds() {
+    for (int i = 0; i < 1000; i++) {
+      add(i);
+    }
+    assertEquals(1000, index.size());
+    assertEquals(100, index.range(Time.fromMs(100), Time.fromMs(199)).size());
+  }
+
+  private static void assertOrder(List<Message> actual, Message... expected) {
+    assertEquals(expected.length, actual.size());
+    for (int i = 0; i < expected.length; i++) {
+      assertSame(expected[i], actual.get(i));
+    }
+  }
+}
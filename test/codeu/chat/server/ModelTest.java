@@ -0,0 +1,322 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.server.storage.MessageData;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class ModelTest {
+
+  private static final Uuid USER = new Uuid(1);
+
+  private Model model;
+
+  // Stands in for storage: what each conversation's messages would be read back as.
+  private final Map<Uuid, List<MessageData>> stored = new HashMap<>();
+  private int loads;
+  private boolean loadedUnderLock;
+  private boolean failLoads;
+  private int lastRow;
+
+  private final Model.MessageLoader loader = new Model.MessageLoader() {
+
+    @Override
+    public boolean canLoad(Uuid conversation) {
+      return stored.containsKey(conversation);
+    }
+
+    @Override
+    public List<MessageData> load(Uuid conversation) {
+      loads += 1;
+      loadedUnderLock |= ((ReentrantLock) model.writeLock()).isHeldByCurrentThread();
+      return failLoads ? null : new ArrayList<>(stored.get(conversation));
+    }
+  };
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+    stored.clear();
+    loads = 0;
+    loadedUnderLock = false;
+    failLoads = false;
+    lastRow = 0;
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+
+    model.setMessageBudget(8, loader);
+
+    final Uuid cold = addConversation(2, true);
+    final Uuid warm = addConversation(3, true);
+    final List<Uuid> coldMessages = addMessages(cold, 4, 100);
+    addMessages(warm, 4, 200);
+
+    // The cold conversation is over the budget's worth once the next one starts.
+    final Uuid hot = addConversation(4, true);
+    addMessages(hot, 1, 300);
+
+    assertEquals(0, loads);
+    assertNull(findRaw(coldMessages.get(0)));
+    assertNotNull(findRaw(firstOf(warm)));
+
+    // Asking for the conversation brings the same messages back, without
+    // holding the lock while they are read.
+    final MessageIndex messages = model.messagesInConversation(cold);
+    assertEquals(1, loads);
+    assertFalse(loadedUnderLock);
+    assertEquals(4, messages.size());
+
+    final List<Message> loaded = messages.first(4);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(coldMessages.get(i), loaded.get(i).id);
+      assertEquals(USER, loaded.get(i).author);
+      assertEquals("message " + (100 + i), loaded.get(i).content);
+      assertEquals(i + 1 < 4 ? coldMessages.get(i + 1) : Uuid.NULL, loaded.get(i).next);
+    }
+  }
+
+  @Test
+  public void testLoadById() {
+
+    model.setMessageBudget(4, loader);
+
+    final Uuid cold = addConversation(2, true);
+    final List<Uuid> coldMessages = addMessages(cold, 4, 100);
+    final Uuid hot = addConversation(3, true);
+    addMessages(hot, 2, 200);
+
+    assertNull(findRaw(coldMessages.get(2)));
+
+    final Message message = model.messageById().first(coldMessages.get(2));
+    assertNotNull(message);
+    assertEquals("message 102", message.content);
+    assertEquals(1, loads);
+  }
+
+  @Test
+  public void testAddToEvicted() {
+
+    model.setMessageBudget(4, loader);
+
+    final Uuid cold = addConversation(2, true);
+    addMessages(cold, 4, 100);
+    final Uuid hot = addConversation(3, true);
+    addMessages(hot, 2, 200);
+
+    // Adding to an evicted conversation loads the old messages first so that
+    // none of them go missing from its index.
+    addMessages(cold, 1, 104);
+    assertEquals(1, loads);
+    assertEquals(5, model.messagesInConversation(cold).size());
+  }
+
+  @Test
+  public void testKeepsWhatCannotBeLoaded() {
+
+    model.setMessageBudget(4, loader);
+
+    final Uuid relayed = addConversation(2, false);
+    addMessages(relayed, 4, 100);
+    final Uuid other = addConversation(3, false);
+    addMessages(other, 4, 200);
+
+    assertEquals(4, model.messagesInConversation(relayed).size());
+    assertEquals(4, model.messagesInConversation(other).size());
+    assertEquals(0, loads);
+  }
+
+  @Test
+  public void testKeepsUnstoredMessages() {
+
+    model.setMessageBudget(4, loader);
+
+    // A conversation in storage that was sent a message that is not.
+    final Uuid mixed = addConversation(2, true);
+    addMessages(mixed, 3, 100);
+    addUnstoredMessage(mixed, 103);
+
+    final Uuid other = addConversation(3, true);
+    addMessages(other, 4, 200);
+
+    assertEquals(0, loads);
+    assertNotNull(findRaw(new Uuid(1103)));
+  }
+
+  @Test
+  public void testLoadKeepsMissingRows() {
+
+    model.setMessageBudget(4, loader);
+
+    final Uuid cold = addConversation(2, true);
+    final List<Uuid> coldMessages = addMessages(cold, 4, 100);
+    final Uuid hot = addConversation(3, true);
+    addMessages(hot, 2, 200);
+
+    // A row that never made it to storage.
+    stored.get(cold).remove(3);
+
+    final List<Message> loaded = model.messagesInConversation(cold).first(4);
+    assertEquals(4, loaded.size());
+    assertEquals(coldMessages.get(3), loaded.get(3).id);
+    assertEquals(coldMessages.get(3), loaded.get(2).next);
+
+    // The conversation's last message can still be found, so adding works.
+    final Conversation conversation = model.conversationById().first(cold);
+    assertNotNull(model.messageById().first(conversation.lastMessage));
+    addMessages(cold, 1, 104);
+    assertEquals(5, model.messagesInConversation(cold).size());
+  }
+
+  @Test
+  public void testAddWhenLoadFails() {
+
+    model.setMessageBudget(4, loader);
+
+    final Uuid cold = addConversation(2, true);
+    addMessages(cold, 4, 100);
+    final Uuid hot = addConversation(3, true);
+    addMessages(hot, 2, 200);
+
+    failLoads = true;
+    final Message message = new Message(new Uuid(2000), Uuid.NULL, Uuid.NULL, Time.fromMs(104), USER, "late");
+    model.writeLock().lock();
+    try {
+      assertFalse(model.add(cold, message, ++lastRow));
+    } finally {
+      model.writeLock().unlock();
+    }
+    assertNull(findRaw(message.id));
+
+    failLoads = false;
+    assertEquals(4, model.messagesInConversation(cold).size());
+  }
+
+  @Test
+  public void testLoadMatchesRows() {
+
+    model.setMessageBudget(4, loader);
+
+    // Two messages with the same time, which storage happens to hold the other
+    // way around.
+    final Uuid cold = addConversation(2, true);
+    final List<Uuid> coldMessages = addMessages(cold, 2, 100);
+    final List<MessageData> rows = stored.get(cold);
+    rows.set(0, new MessageData(rows.get(0).getId(), "message 100", Time.fromMs(100)));
+    rows.set(1, new MessageData(rows.get(1).getId(), "message 101", Time.fromMs(100)));
+    rows.add(0, rows.remove(1));
+
+    final Uuid hot = addConversation(3, true);
+    addMessages(hot, 4, 200);
+    assertNull(findRaw(coldMessages.get(0)));
+
+    assertEquals("message 100", model.messageById().first(coldMessages.get(0)).content);
+    assertEquals("message 101", model.messageById().first(coldMessages.get(1)).content);
+  }
+
+  @Test
+  public void testNoBudget() {
+
+    final Uuid conversation = addConversation(2, true);
+    final List<Uuid> ids = addMessages(conversation, 100, 100);
+
+    for (final Uuid id : ids) {
+      assertNotNull(findRaw(id));
+    }
+    assertEquals(0, loads);
+  }
+
+  private Uuid addConversation(int id, boolean inStorage) {
+    final Uuid conversation = new Uuid(id);
+    model.add(new Conversation(conversation, USER, Time.now(), "conversation " + id));
+    if (inStorage) {
+      stored.put(conversation, new ArrayList<MessageData>());
+    }
+    return conversation;
+  }
+
+  // Adds messages with distinct times, building the chain and storage the way
+  // the controller does.
+  private List<Uuid> addMessages(Uuid conversation, int count, int first) {
+    final List<Uuid> ids = new ArrayList<>();
+    final Conversation found = model.conversationById().first(conversation);
+
+    for (int i = first; i < first + count; i++) {
+      final Time time = Time.fromMs(i);
+      final Message message = new Message(new Uuid(1000 + i), Uuid.NULL, Uuid.NULL, time, USER, "message " + i);
+
+      model.writeLock().lock();
+      try {
+        int row = -1;
+        if (stored.containsKey(conversation)) {
+          row = ++lastRow;
+          stored.get(conversation).add(new MessageData(row, message.content, time));
+        }
+        model.add(conversation, message, row);
+        if (!Uuid.equals(found.lastMessage, Uuid.NULL)) {
+          model.messageById().first(found.lastMessage).next = message.id;
+        }
+        found.lastMessage = message.id;
+      } finally {
+        model.writeLock().unlock();
+      }
+
+      ids.add(message.id);
+    }
+    return ids;
+  }
+
+  // Adds a message that is not written to storage, like one from the relay.
+  private void addUnstoredMessage(Uuid conversation, int number) {
+    final Conversation found = model.conversationById().first(conversation);
+    final Message message =
+        new Message(new Uuid(1000 + number), Uuid.NULL, Uuid.NULL, Time.fromMs(number), USER, "message " + number);
+
+    model.writeLock().lock();
+    try {
+      model.add(conversation, message, -1);
+      model.messageById().first(found.lastMessage).next = message.id;
+      found.lastMessage = message.id;
+    } finally {
+      model.writeLock().unlock();
+    }
+  }
+
+  private Uuid firstOf(Uuid conversation) {
+    return model.messagesInConversation(conversation).first(1).get(0).id;
+  }
+
+  // Finds a message without loading anything back.
+  private Message findRaw(Uuid id) {
+    for (final Message message : model.messageById().at(id)) {
+      return message;
+    }
+    return null;
+  }
+}
@@ -83,6 +83,39 @@ public final class RawControllerTest {
 
   }
 
+  @Test
+  public void testConcurrentFirstLogins() throws InterruptedException {
+
+    testRegister();
+
+    final User[] users = new User[2];
+    final Thread[] logins = new Thread[users.length];
+    for (int i = 0; i < logins.length; i++) {
+      final int index = i;
+      logins[i] = new Thread() {
+        @Override
+        public void run() {
+          users[index] = controller.login(new Uuid(10 + index), "username", "password", Time.now());
+        }
+      };
+      logins[i].start();
+    }
+    for (final Thread login : logins) {
+      login.join();
+    }
+
+    assertNotNull(users[0]);
+    assertSame(
+        "Check that both logins got the same user",
+        users[0],
+        users[1]);
+    assertSame(users[0], model.userById().first(users[0].id));
+
+    // Only the user that won is in the model.
+    final Uuid lost = Uuid.equals(users[0].id, new Uuid(10)) ? new Uuid(11) : new Uuid(10);
+    assertNull(model.userById().first(lost));
+  }
+
   @Test
   public void testAddConversation() {
 
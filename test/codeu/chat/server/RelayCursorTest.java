@@ -0,0 +1,117 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayCursorTest {
+
+  private File file;
+
+  @Before
+  public void doBefore() throws IOException {
+    file = File.createTempFile("relay_cursor", null);
+    file.delete();
+  }
+
+  @After
+  public void doAfter() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  @Test
+  public void testNoCursor() {
+    assertEquals(Uuid.NULL, new RelayCursor(file).load());
+  }
+
+  @Test
+  public void testSaveAndLoad() {
+    final RelayCursor cursor = new RelayCursor(file);
+    cursor.advance(new Uuid(42), true);
+    cursor.save();
+    assertEquals(new Uuid(42), new RelayCursor(file).load());
+
+    // Saving again replaces the old cursor.
+    cursor.advance(new Uuid(43), true);
+    cursor.save();
+    assertEquals(new Uuid(43), new RelayCursor(file).load());
+  }
+
+  @Test
+  public void testStopsAtUnkeptBundle() {
+    final RelayCursor cursor = new RelayCursor(file);
+    cursor.load();
+    cursor.advance(new Uuid(1), true);
+    cursor.advance(new Uuid(2), false);
+    cursor.advance(new Uuid(3), true);
+    cursor.save();
+    assertEquals(new Uuid(1), new RelayCursor(file).load());
+  }
+
+  @Test
+  public void testRestartRereadsRelayedMessage() {
+
+    final Uuid team = new Uuid(1);
+    final byte[] secret = { 0x0A };
+    final codeu.chat.relay.Server relay = new codeu.chat.relay.Server(16, 16);
+    relay.addTeam(team, secret);
+
+    final Time now = Time.now();
+    for (int i = 0; i < 3; i++) {
+      relay.write(team,
+                  secret,
+                  relay.pack(new Uuid(100), "user", now),
+                  relay.pack(new Uuid(200), "conversation", now),
+                  relay.pack(new Uuid(300 + i), "message " + i, now));
+    }
+
+    // The first run applies everything. Message 1 came from another server, so
+    // it is only in memory.
+    RelayCursor cursor = new RelayCursor(file);
+    for (final Relay.Bundle bundle : relay.read(team, secret, cursor.load(), 16)) {
+      cursor.advance(bundle.id(), !"message 1".equals(bundle.message().text()));
+    }
+    cursor.save();
+
+    // After a restart, reading from the saved cursor gets message 1 back.
+    cursor = new RelayCursor(file);
+    final List<Relay.Bundle> reread = new ArrayList<>(relay.read(team, secret, cursor.load(), 16));
+    assertEquals(2, reread.size());
+    assertEquals("message 1", reread.get(0).message().text());
+    assertEquals("message 2", reread.get(1).message().text());
+  }
+
+  @Test
+  public void testUnreadableCursor() throws IOException {
+    try (final FileOutputStream out = new FileOutputStream(file)) {
+      out.write(3);
+    }
+    assertEquals(Uuid.NULL, new RelayCursor(file).load());
+  }
+}
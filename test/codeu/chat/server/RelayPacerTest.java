@@ -0,0 +1,145 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class RelayPacerTest {
+
+  @Test
+  public void testGrowsOnFullReads() {
+
+    final RelayPacer pacer = new RelayPacer(0, 32, 256);
+    assertEquals(32, pacer.batch());
+    assertFalse(pacer.behind());
+
+    for (final int expected : new int[] { 64, 128, 256, 256 }) {
+      pacer.finishRead(pacer.batch());
+      assertTrue(pacer.behind());
+      assertEquals(expected, pacer.batch());
+    }
+  }
+
+  @Test
+  public void testShrinksWhenCaughtUp() {
+
+    final RelayPacer pacer = new RelayPacer(0, 32, 256);
+    pacer.finishRead(32);
+    pacer.finishRead(64);
+    assertEquals(128, pacer.batch());
+
+    // The first short read might only be the relay's cap.
+    pacer.finishRead(10);
+    assertTrue(pacer.behind());
+    assertEquals(32, pacer.batch());
+
+    pacer.finishRead(3);
+    assertFalse(pacer.behind());
+    assertEquals(32, pacer.batch());
+  }
+
+  @Test
+  public void testIdleStaysCaughtUp() {
+
+    final RelayPacer pacer = new RelayPacer(0, 32, 256);
+    for (int i = 0; i < 4; i++) {
+      pacer.finishRead(i % 2);
+      assertFalse(pacer.behind());
+      assertEquals(32, pacer.batch());
+    }
+  }
+
+  @Test
+  public void testLearnsRelayCap() {
+
+    final int cap = 100;
+    final RelayPacer pacer = new RelayPacer(0, 32, 1024);
+
+    // A relay that never hands out more than "cap" at once, with a long backlog.
+    for (int i = 0; i < 10; i++) {
+      pacer.finishRead(Math.min(cap, pacer.batch()));
+    }
+
+    assertTrue(pacer.behind());
+    assertEquals(cap, pacer.batch());
+
+    // Reads at the cap stay full.
+    pacer.finishRead(Math.min(cap, pacer.batch()));
+    assertTrue(pacer.behind());
+    assertEquals(cap, pacer.batch());
+
+    // The end of the backlog.
+    pacer.finishRead(40);
+    pacer.finishRead(0);
+    assertFalse(pacer.behind());
+  }
+
+  @Test
+  public void testPacesToRate() {
+
+    final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 100 bundles a second is one every 10ms.
+    final RelayPacer pacer = new RelayPacer(100);
+    pacer.startApplying(0);
+
+    assertEquals(10, pacer.pause(0));
+    // Applying took longer than the interval, so there is nothing to make up.
+    assertEquals(0, pacer.pause(30 * ms));
+    // Sleeps under 5ms are skipped.
+    assertEquals(0, pacer.pause(28 * ms));
+    assertEquals(12, pacer.pause(28 * ms));
+  }
+
+  @Test
+  public void testWaitingDoesNotCountTowardsRate() {
+
+    final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+    final RelayPacer pacer = new RelayPacer(100);
+    pacer.startApplying(0);
+    assertEquals(10, pacer.pause(0));
+
+    // A long wait on the relay does not build up bundles to apply at once.
+    pacer.startApplying(20000 * ms);
+    assertEquals(10, pacer.pause(20000 * ms));
+  }
+
+  @Test
+  public void testNoRateLimit() {
+
+    final RelayPacer pacer = new RelayPacer(0);
+    pacer.startApplying(0);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(0, pacer.pause(0));
+    }
+  }
+
+  @Test
+  public void testBackOff() {
+
+    final RelayPacer pacer = new RelayPacer(0);
+
+    // Empty and early: the relay could not wait.
+    assertEquals(RelayPacer.REFRESH_MS, pacer.backOff(0, 10));
+    // Empty after waiting: nothing was written.
+    assertEquals(0, pacer.backOff(0, RelayPacer.WAIT_MS));
+    // Anything read goes straight on to the next read.
+    assertEquals(0, pacer.backOff(1, 10));
+  }
+}
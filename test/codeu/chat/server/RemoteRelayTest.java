@@ -0,0 +1,433 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.relay.ServerFrontEnd;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+public final class RemoteRelayTest {
+
+  private static final byte[] SECRET = { 0x0A, 0x0B, 0x0C };
+
+  // Connects to a relay front end running in this process. Every connection is
+  // handled on its own thread, like the relay does.
+  private static final class LocalSource implements ConnectionSource {
+
+    private final ServerFrontEnd frontEnd;
+
+    public LocalSource(ServerFrontEnd frontEnd) {
+      this.frontEnd = frontEnd;
+    }
+
+    @Override
+    public Connection connect() throws IOException {
+
+      final PipedInputStream relayIn = new PipedInputStream(1 << 16);
+      final PipedOutputStream remoteOut = new PipedOutputStream(relayIn);
+      final PipedInputStream remoteIn = new PipedInputStream(1 << 16);
+      final PipedOutputStream relayOut = new PipedOutputStream(remoteIn);
+
+      final Connection relaySide = new Connection() {
+        @Override
+        public InputStream in() { return relayIn; }
+        @Override
+        public OutputStream out() { return relayOut; }
+        @Override
+        public void close() throws IOException {
+          relayIn.close();
+          relayOut.close();
+        }
+      };
+
+      final Thread handler = new Thread() {
+        @Override
+        public void run() {
+          try {
+            frontEnd.handleConnection(relaySide);
+          } catch (IOException ex) {
+            // The remote side sees the connection end.
+          }
+        }
+      };
+      handler.setDaemon(true);
+      handler.start();
+
+      return new Connection() {
+        @Override
+        public InputStream in() { return remoteIn; }
+        @Override
+        public OutputStream out() { return remoteOut; }
+        @Override
+        public void close() throws IOException {
+          remoteIn.close();
+          remoteOut.close();
+        }
+      };
+    }
+
+    @Override
+    public void close() { }
+  }
+
+  private codeu.chat.relay.Server relay;
+  private LocalSource source;
+
+  @Before
+  public void doBefore() {
+    relay = new codeu.chat.relay.Server(1024, 1024);
+    source = new LocalSource(new ServerFrontEnd(relay));
+  }
+
+  @Test
+  public void testReadTeam() {
+
+    final Uuid teamA = new Uuid(1);
+    final Uuid teamB = new Uuid(2);
+    relay.addTeam(teamA, SECRET);
+    relay.addTeam(teamB, SECRET);
+
+    final RemoteRelay remote = new RemoteRelay(source, false, 0, 0);
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(write(remote, i % 2 == 0 ? teamA : teamB, i));
+    }
+
+    final List<Relay.Bundle> read = new ArrayList<>(remote.readTeam(teamA, SECRET, teamB, Uuid.NULL, 8));
+
+    assertEquals(2, read.size());
+    for (final Relay.Bundle bundle : read) {
+      assertEquals(teamB, bundle.team());
+    }
+    assertEquals("message 1", read.get(0).message().text());
+    assertEquals("message 3", read.get(1).message().text());
+
+    // Reading on from the last one finds nothing more.
+    assertTrue(remote.readTeam(teamA, SECRET, teamB, read.get(1).id(), 8).isEmpty());
+  }
+
+  @Test
+  public void testReadTeamWrongSecret() {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final RemoteRelay remote = new RemoteRelay(source, false, 0, 0);
+    assertTrue(write(remote, team, 0));
+
+    final Collection<Relay.Bundle> read = remote.readTeam(team, new byte[] { 0x01 }, team, Uuid.NULL, 8);
+    assertTrue(read.isEmpty());
+  }
+
+  @Test
+  public void testSubscribe() {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final RemoteRelay remote = new RemoteRelay(source, true, 0, 0);
+    assertTrue(write(remote, team, 0));
+
+    final List<Relay.Bundle> read = new ArrayList<>(remote.read(team, SECRET, Uuid.NULL, 8, 5000));
+    assertEquals(1, read.size());
+    assertEquals("message 0", read.get(0).message().text());
+  }
+
+  @Test
+  public void testSubscribeWrongSecret() throws IOException {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    try (final Connection connection = source.connect()) {
+      subscribe(connection, team, new byte[] { 0x01 });
+      assertEquals(NetworkCode.RELAY_UNAUTHORIZED_RESPONSE,
+                   (int) Serializers.INTEGER.read(connection.in()));
+    }
+  }
+
+  @Test
+  public void testSubscribeWhenFull() throws IOException {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final LocalSource limited = new LocalSource(new ServerFrontEnd(relay, 1, 1));
+
+    try (final Connection first = limited.connect();
+         final Connection second = limited.connect()) {
+
+      subscribe(first, team, SECRET);
+
+      // Wait for the first subscription to take the only thread.
+      assertTrue(write(new RemoteRelay(limited, false, 0, 0), team, 0));
+      assertEquals(NetworkCode.RELAY_BUNDLES_EVENT, (int) Serializers.INTEGER.read(first.in()));
+
+      subscribe(second, team, SECRET);
+      assertEquals(NetworkCode.RELAY_BUSY_RESPONSE, (int) Serializers.INTEGER.read(second.in()));
+    }
+  }
+
+  @Test
+  public void testReadWait() throws Exception {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final RemoteRelay remote = new RemoteRelay(source, false, 0, 0);
+    final List<Relay.Bundle> read = new ArrayList<>();
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        read.addAll(remote.read(team, SECRET, Uuid.NULL, 8, 5000));
+      }
+    };
+    reader.start();
+
+    // The write gets through while the read waits, and ends the wait.
+    Thread.sleep(100);
+    assertTrue(write(remote, team, 0));
+    reader.join(5000);
+
+    assertFalse(reader.isAlive());
+    assertMessages(read, 0);
+  }
+
+  @Test
+  public void testReadWaitWhenFull() throws Exception {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final LocalSource limited = new LocalSource(new ServerFrontEnd(relay, 1, 1));
+
+    try (final Connection waiter = limited.connect()) {
+
+      Serializers.INTEGER.write(waiter.out(), NetworkCode.RELAY_READ_WAIT_REQUEST);
+      Uuid.SERIALIZER.write(waiter.out(), team);
+      Serializers.BYTES.write(waiter.out(), SECRET);
+      Uuid.SERIALIZER.write(waiter.out(), Uuid.NULL);
+      Serializers.INTEGER.write(waiter.out(), 8);
+      Serializers.LONG.write(waiter.out(), 5000L);
+      waiter.out().flush();
+      Thread.sleep(500);
+
+      // The only waiting thread is taken, so this is answered without waiting.
+      final long start = System.currentTimeMillis();
+      assertTrue(new RemoteRelay(limited, false, 0, 0).read(team, SECRET, Uuid.NULL, 8, 5000).isEmpty());
+      assertTrue(System.currentTimeMillis() - start < 2500);
+    }
+  }
+
+  @Test
+  public void testWriteBatchRequest() throws IOException {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    try (final Connection connection = source.connect()) {
+      writeBatch(connection, team, SECRET, 3);
+      assertEquals(NetworkCode.RELAY_WRITE_BATCH_RESPONSE,
+                   (int) Serializers.INTEGER.read(connection.in()));
+      assertEquals(3, (int) Serializers.INTEGER.read(connection.in()));
+    }
+
+    assertMessages(read(team), 0, 1, 2);
+  }
+
+  @Test
+  public void testWriteBatchWrongSecret() throws IOException {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    try (final Connection connection = source.connect()) {
+      writeBatch(connection, team, new byte[] { 0x01 }, 3);
+      assertEquals(NetworkCode.RELAY_UNAUTHORIZED_RESPONSE,
+                   (int) Serializers.INTEGER.read(connection.in()));
+    }
+
+    assertTrue(read(team).isEmpty());
+  }
+
+  @Test
+  public void testBatchedWritesInOrder() {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final RemoteRelay remote = new RemoteRelay(source, false, 4, 50);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(write(remote, team, i));
+    }
+
+    assertMessages(await(team, 10), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+  }
+
+  @Test
+  public void testBatchSentWhenFull() throws InterruptedException {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    // The delay is long enough that only a full batch is sent during the test.
+    final RemoteRelay remote = new RemoteRelay(source, false, 4, 60000);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(write(remote, team, i));
+    }
+
+    assertMessages(await(team, 4), 0, 1, 2, 3);
+
+    Thread.sleep(200);
+    assertEquals(4, read(team).size());
+  }
+
+  @Test
+  public void testBatchSentAfterDelay() {
+
+    final Uuid team = new Uuid(1);
+    relay.addTeam(team, SECRET);
+
+    final RemoteRelay remote = new RemoteRelay(source, false, 100, 50);
+    assertTrue(write(remote, team, 0));
+
+    assertMessages(await(team, 1), 0);
+  }
+
+  @Test
+  public void testRetriedBeforeNewerWrites() throws InterruptedException {
+
+    final Uuid team = new Uuid(1);
+
+    // The relay does not know the team yet, as when it has just started.
+    final RemoteRelay remote = new RemoteRelay(source, false, 2, 10);
+    assertTrue(write(remote, team, 0));
+    assertTrue(write(remote, team, 1));
+
+    Thread.sleep(200);
+    relay.addTeam(team, SECRET);
+
+    assertTrue(write(remote, team, 2));
+    assertTrue(write(remote, team, 3));
+
+    assertMessages(await(team, 4), 0, 1, 2, 3);
+  }
+
+  @Test
+  public void testPendingLimit() {
+
+    final Uuid team = new Uuid(1);
+
+    final ConnectionSource down = new ConnectionSource() {
+      @Override
+      public Connection connect() throws IOException {
+        throw new IOException("Relay is down");
+      }
+      @Override
+      public void close() { }
+    };
+
+    final RemoteRelay remote = new RemoteRelay(down, false, 2, 0);
+    for (int i = 0; i < RemoteRelay.MAX_PENDING; i++) {
+      assertTrue(write(remote, team, i));
+    }
+    assertFalse(write(remote, team, RemoteRelay.MAX_PENDING));
+  }
+
+  private List<Relay.Bundle> read(Uuid team) {
+    return new ArrayList<>(relay.read(team, SECRET, Uuid.NULL, 1024));
+  }
+
+  // Waits for the relay to have "count" bundles, or gives up after 5 seconds.
+  private List<Relay.Bundle> await(Uuid team, int count) {
+    final long deadline = System.currentTimeMillis() + 5000;
+    List<Relay.Bundle> found = read(team);
+    while (found.size() < count && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException ex) {
+        break;
+      }
+      found = read(team);
+    }
+    return found;
+  }
+
+  private static void assertMessages(List<Relay.Bundle> bundles, int... numbers) {
+    assertEquals(numbers.length, bundles.size());
+    for (int i = 0; i < numbers.length; i++) {
+      assertEquals("message " + numbers[i], bundles.get(i).message().text());
+    }
+  }
+
+  private static void writeBatch(Connection connection, Uuid team, byte[] secret, int count)
+      throws IOException {
+    final Time now = Time.now();
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_REQUEST);
+    Uuid.SERIALIZER.write(connection.out(), team);
+    Serializers.BYTES.write(connection.out(), secret);
+    Serializers.INTEGER.write(connection.out(), count);
+    for (int i = 0; i < count; i++) {
+      writeComponent(connection, new Uuid(100), "user", now);
+      writeComponent(connection, new Uuid(200), "conversation", now);
+      writeComponent(connection, new Uuid(300 + i), "message " + i, now);
+    }
+    connection.out().flush();
+  }
+
+  private static void writeComponent(Connection connection, Uuid id, String text, Time time)
+      throws IOException {
+    Uuid.SERIALIZER.write(connection.out(), id);
+    Serializers.STRING.write(connection.out(), text);
+    Time.SERIALIZER.write(connection.out(), time);
+  }
+
+  private static void subscribe(Connection connection, Uuid team, byte[] secret) throws IOException {
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_REQUEST);
+    Uuid.SERIALIZER.write(connection.out(), team);
+    Serializers.BYTES.write(connection.out(), secret);
+    Uuid.SERIALIZER.write(connection.out(), Uuid.NULL);
+    Serializers.INTEGER.write(connection.out(), 8);
+    connection.out().flush();
+  }
+
+  private static boolean write(Relay remote, Uuid team, int number) {
+    final Time now = Time.now();
+    return remote.write(team,
+                        SECRET,
+                        remote.pack(new Uuid(100), "user", now),
+                        remote.pack(new Uuid(200), "conversation", now),
+                        remote.pack(new Uuid(300 + number), "message " + number, now));
+  }
+}
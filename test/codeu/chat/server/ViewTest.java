@@ -0,0 +1,160 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.MessageBatch;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class ViewTest {
+
+  private static final int MESSAGES = 5;
+
+  private Model model;
+  private View view;
+
+  private Uuid conversationId;
+  private final List<Uuid> messageIds = new ArrayList<>();
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+    view = new View(model);
+
+    final Uuid userId = new Uuid(1);
+    conversationId = new Uuid(2);
+
+    final Conversation conversation = new Conversation(conversationId, userId, Time.now(), "conversation");
+    model.add(conversation);
+
+    // Build the message chain the same way the controller does.
+    Message last = null;
+    for (int i = 0; i < MESSAGES; i++) {
+      final Message message = new Message(new Uuid(10 + i), Uuid.NULL, Uuid.NULL, Time.now(), userId, "message " + i);
+      model.add(conversationId, message, -1);
+      messageIds.add(message.id);
+
+      if (last == null) {
+        conversation.firstMessage = message.id;
+      } else {
+        last.next = message.id;
+      }
+      conversation.lastMessage = message.id;
+      last = message;
+    }
+  }
+
+  @Test
+  public void testMessagesSinceInBatches() {
+
+    final List<Uuid> found = new ArrayList<>();
+
+    Uuid cursor = Uuid.NULL;
+    boolean more = true;
+    int batches = 0;
+
+    while (more) {
+      final MessageBatch batch = view.getMessagesSince(conversationId, cursor, 2);
+      assertNotNull(batch);
+      assertTrue(batch.messages.size() <= 2);
+
+      for (final Message message : batch.messages) {
+        found.add(message.id);
+      }
+      cursor = batch.cursor;
+      more = batch.more;
+      batches += 1;
+    }
+
+    assertEquals(messageIds, found);
+    assertEquals(3, batches);
+  }
+
+  @Test
+  public void testMessagesSinceLast() {
+
+    final MessageBatch batch = view.getMessagesSince(conversationId, messageIds.get(MESSAGES - 1), 10);
+
+    assertNotNull(batch);
+    assertTrue(batch.messages.isEmpty());
+    assertFalse(batch.more);
+    assertEquals(messageIds.get(MESSAGES - 1), batch.cursor);
+  }
+
+  @Test
+  public void testMessagesSinceUnknown() {
+
+    assertNull(view.getMessagesSince(new Uuid(99), Uuid.NULL, 10));
+    assertNull(view.getMessagesSince(conversationId, new Uuid(99), 10));
+  }
+
+  @Test
+  public void testFollowLinksWhileAdding() throws Exception {
+
+    final Conversation conversation = model.conversationById().first(conversationId);
+    final AtomicReference<String> failure = new AtomicReference<>();
+
+    // Walks the chain without a lock while messages are appended to it. Every
+    // link that has been set must name a message that can be found.
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        while (!isInterrupted() && failure.get() == null) {
+          Message current = view.findMessage(conversation.firstMessage);
+          while (current != null && !Uuid.equals(current.next, Uuid.NULL)) {
+            final Message next = view.findMessage(current.next);
+            if (next == null) {
+              failure.set("missing message " + current.next);
+            }
+            current = next;
+          }
+          if (view.findMessage(conversation.lastMessage) == null) {
+            failure.set("missing last message " + conversation.lastMessage);
+          }
+        }
+      }
+    };
+    reader.start();
+
+    Message last = model.messageById().first(conversation.lastMessage);
+    for (int i = 0; i < 2000 && failure.get() == null; i++) {
+      final Message message = new Message(new Uuid(100 + i), Uuid.NULL, last.id, Time.now(), new Uuid(1), "more " + i);
+      model.writeLock().lock();
+      try {
+        model.add(conversationId, message, -1);
+        last.next = message.id;
+        conversation.lastMessage = message.id;
+      } finally {
+        model.writeLock().unlock();
+      }
+      last = message;
+    }
+
+    reader.interrupt();
+    reader.join();
+
+    assertNull(failure.get());
+  }
+}
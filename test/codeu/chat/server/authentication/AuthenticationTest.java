@@ -72,4 +72,32 @@ public final class AuthenticationTest {
     assertEquals(result, AuthenticationCode.LOGIN_FAILED);
   }
 
+  @Test
+  public void testConcurrentRegister() throws InterruptedException {
+    final int[] results = new int[8];
+    final Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          // Differing case is still the same name.
+          results[index] = authentication.register(index % 2 == 0 ? "username" : "UserName", "password");
+        }
+      };
+      threads[i].start();
+    }
+
+    int successes = 0;
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+      if (results[i] == AuthenticationCode.SUCCESS) {
+        successes++;
+      } else {
+        assertEquals(AuthenticationCode.REGISTER_USER_EXISTS, results[i]);
+      }
+    }
+    assertEquals(1, successes);
+  }
+
 }
@@ -2,7 +2,9 @@ package codeu.chat.server.storage;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -114,4 +116,99 @@ public final class StorageTest{
 			}
 		}
 	}
+
+	@Test
+	public void testAsyncWrites(){
+		storage.close();
+		storage = new Storage(database, WriteBehind.Durability.ASYNC, 8, 1000);
+		ArrayList<ConversationData> expected = addToStorage(USERNAME);
+		//Loading waits for anything still queued to be written first
+		ArrayList<ConversationData> actual = storage.loadConversations(USERNAME);
+		assertEquals(10, actual.size());
+		for (int i = 0; i < 10; i++){
+			assertTrue(actual.get(i).isEqual(expected.get(i)));
+		}
+		storage.close();
+	}
+
+	//Returns the fields of a message row
+	private static Map<String, String> messageRow(int cid, String content){
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put(MessageSchema.UNIQUE_ID, Integer.toString(cid));
+		fields.put(MessageSchema.TIMESTAMP, Long.toString(Time.now().inMs()));
+		fields.put(MessageSchema.TEXT, content);
+		return fields;
+	}
+
+	@Test
+	public void testFailedBatchRollsBack() throws SQLException{
+		WriteBehind writer = new WriteBehind(database, WriteBehind.Durability.SYNC, 8, 0);
+		Map<String, String> row = messageRow(1, "Written once");
+		row.put("_id", "1");
+		writer.insert(storage.messageTable, row);
+
+		//The same _id again must fail, and must not leave anything behind
+		Map<String, String> again = messageRow(1, "Written twice");
+		again.put("_id", "1");
+		try{
+			writer.insert(storage.messageTable, again);
+			fail("Inserting a duplicate row did not fail.");
+		}
+		catch(SQLException expected){
+			//Expected
+		}
+		writer.close();
+
+		assertEquals(1, storage.loadMessages(1).size());
+		assertEquals("Written once", storage.loadMessages(1).get(0).getContent());
+	}
+
+	@Test
+	public void testWriterSurvivesUncheckedFailure() throws SQLException{
+		WriteBehind writer = new WriteBehind(database, WriteBehind.Durability.SYNC, 8, 0);
+
+		//A row with no fields fails inside the table with an unchecked exception
+		try{
+			writer.insert(storage.messageTable, null);
+			fail("Inserting a row with no fields did not fail.");
+		}
+		catch(SQLException expected){
+			//Expected
+		}
+
+		//The writer is still there to take the next insert
+		writer.insert(storage.messageTable, messageRow(3, "After a failure"));
+		writer.flush();
+		writer.close();
+
+		assertEquals(1, storage.loadMessages(3).size());
+	}
+
+	@Test
+	public void testInsertAfterClose() throws SQLException{
+		WriteBehind writer = new WriteBehind(database, WriteBehind.Durability.SYNC, 8, 0);
+		writer.close();
+
+		//Written straight away now that nothing drains the queue
+		writer.insert(storage.messageTable, messageRow(2, "After close"));
+		writer.flush();
+
+		assertEquals(1, storage.loadMessages(2).size());
+	}
+
+	@Test
+	public void testMessageIds(){
+		int cid = storage.addConversation(USERNAME, 1, "Same time");
+		//Two messages with the same time are told apart by the ids they were given
+		int first = storage.addMessage(cid, 5, "First");
+		int second = storage.addMessage(cid, 5, "Second");
+		assertTrue(first > 0);
+		assertEquals(first + 1, second);
+
+		ArrayList<MessageData> loaded = storage.loadMessages(cid);
+		assertEquals(2, loaded.size());
+		for (MessageData message : loaded){
+			assertEquals(message.getId() == first ? "First" : "Second", message.getContent());
+		}
+	}
 }
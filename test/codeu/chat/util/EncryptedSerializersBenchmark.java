@@ -0,0 +1,57 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+
+// Not part of TestRunner. Compares the cost of writing and reading one encrypted
+// field when every field wraps its own key against when a session key is used.
+//
+//   java -cp bin:$CLASSPATH codeu.chat.util.EncryptedSerializersBenchmark [iterations]
+public final class EncryptedSerializersBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final byte[] value = new byte[256];
+
+    final KeyPair wrapped = Encryptor.makeAsymmetricKeyPair();
+    final KeyPair session = Encryptor.makeAsymmetricKeyPair();
+    SessionKeys.current().open(session.getPublic());
+
+    // Warm up both paths before timing either.
+    run(value, wrapped, iterations / 4);
+    run(value, session, iterations / 4);
+
+    report("wrapped key", run(value, wrapped, iterations), iterations);
+    report("session key", run(value, session, iterations), iterations);
+  }
+
+  private static long run(byte[] value, KeyPair reader, int iterations) throws IOException {
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      EncryptedSerializers.BYTES.write(out, value, reader.getPublic());
+      EncryptedSerializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()), reader.getPrivate());
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long nanos, int iterations) {
+    System.out.format("%-12s %10.1f us/field%n", name, nanos / 1000.0 / iterations);
+  }
+}
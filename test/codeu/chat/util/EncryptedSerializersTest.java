@@ -0,0 +1,175 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public final class EncryptedSerializersTest {
+
+  @After
+  public void doAfter() {
+    SessionKeys.bind(null);
+    SessionKeys.current().clear();
+  }
+
+  private static byte[] roundTrip(byte[] value, KeyPair reader) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EncryptedSerializers.BYTES.write(out, value, reader.getPublic());
+    return EncryptedSerializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()), reader.getPrivate());
+  }
+
+  @Test
+  public void testWrappedKeyRoundTrip() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+    final byte[] value = "no session yet".getBytes("ISO-8859-1");
+
+    assertNull(SessionKeys.current().forRecipient(reader.getPublic()));
+    assertTrue(Arrays.equals(value, roundTrip(value, reader)));
+  }
+
+  @Test
+  public void testSessionKeyRoundTrip() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+    final SessionKeys.Session session = SessionKeys.current().open(reader.getPublic());
+
+    // Opening again must hand back the same session.
+    assertSame(session, SessionKeys.current().open(reader.getPublic()));
+
+    final byte[] value = "with a session".getBytes("ISO-8859-1");
+    assertTrue(Arrays.equals(value, roundTrip(value, reader)));
+
+    // The same value must not encrypt to the same bytes twice.
+    final ByteArrayOutputStream first = new ByteArrayOutputStream();
+    final ByteArrayOutputStream second = new ByteArrayOutputStream();
+    EncryptedSerializers.BYTES.write(first, value, reader.getPublic());
+    EncryptedSerializers.BYTES.write(second, value, reader.getPublic());
+    assertFalse(Arrays.equals(first.toByteArray(), second.toByteArray()));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownSession() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0x01);
+    Serializers.LONG.write(out, 0x5e55104L);
+    Serializers.BYTES.write(out, new byte[32]);
+
+    EncryptedSerializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()), reader.getPrivate());
+  }
+
+  @Test
+  public void testSessionBoundToConnection() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+    final SessionKeys opened = new SessionKeys();
+    final SessionKeys other = new SessionKeys();
+
+    SessionKeys.bind(opened);
+    opened.open(reader.getPublic());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EncryptedSerializers.BYTES.write(out, "on one connection".getBytes("ISO-8859-1"), reader.getPublic());
+
+    // Another connection must not be able to name the session.
+    SessionKeys.bind(other);
+    try {
+      EncryptedSerializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()), reader.getPrivate());
+      fail("Read a payload for a session opened on another connection.");
+    } catch (IOException expected) {
+      // Expected.
+    }
+
+    // Nor can the connection that opened it once it has closed.
+    SessionKeys.bind(opened);
+    opened.clear();
+    try {
+      EncryptedSerializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()), reader.getPrivate());
+      fail("Read a payload for a session that was closed.");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testSessionResumedOnNewConnection() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+    final KeyPair writer = Encryptor.makeAsymmetricKeyPair();
+    final SessionKeys lost = new SessionKeys();
+    final SessionKeys resumed = new SessionKeys();
+
+    final SessionKeys.Session session = lost.open(writer.getPublic());
+    SessionKeys.current().join(reader.getPublic(), session);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EncryptedSerializers.BYTES.write(out, "before reconnecting".getBytes("ISO-8859-1"), reader.getPublic());
+
+    // The payload was written under the old connection's session and is read on
+    // the new one once the writer hands the session back.
+    assertTrue(resumed.resume(writer.getPublic(), session));
+    SessionKeys.bind(resumed);
+    assertArrayEquals(
+        "before reconnecting".getBytes("ISO-8859-1"),
+        EncryptedSerializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()), reader.getPrivate()));
+
+    // A session the connection already has is not replaced.
+    final SessionKeys.Session other = new SessionKeys.Session(session.id + 1, Encryptor.makeSymmetricKey());
+    assertFalse(resumed.resume(writer.getPublic(), other));
+    assertSame(session, resumed.forRecipient(writer.getPublic()));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTamperedSessionPayload() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+    SessionKeys.current().open(reader.getPublic());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EncryptedSerializers.BYTES.write(out, "do not change".getBytes("ISO-8859-1"), reader.getPublic());
+
+    final byte[] bytes = out.toByteArray();
+    bytes[bytes.length - 1] ^= 0x01;
+
+    EncryptedSerializers.BYTES.read(new ByteArrayInputStream(bytes), reader.getPrivate());
+  }
+
+  @Test
+  public void testEnvelopeRoundTrip() throws IOException {
+    final KeyPair reader = Encryptor.makeAsymmetricKeyPair();
+    final Serializer<Collection<String>> strings = Serializers.collection(Serializers.STRING);
+
+    final Collection<String> value = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      value.add("message number " + i);
+    }
+
+    final ByteArrayOutputStream enveloped = new ByteArrayOutputStream();
+    EncryptedSerializers.envelope(strings).write(enveloped, value, reader.getPublic());
+
+    final ByteArrayOutputStream separate = new ByteArrayOutputStream();
+    EncryptedSerializers.collection(EncryptedSerializers.STRING).write(separate, value, reader.getPublic());
+
+    assertEquals(value, EncryptedSerializers.envelope(strings).read(
+        new ByteArrayInputStream(enveloped.toByteArray()), reader.getPrivate()));
+    assertTrue(enveloped.size() < separate.size());
+  }
+}
@@ -25,9 +25,13 @@ import codeu.chat.util.Encryptor;
 import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PublicKey;
 
 public final class EncryptorTest {
   private static final String _ENCODING = "ISO-8859-1";
@@ -91,4 +95,20 @@ public final class EncryptorTest {
 
     assertTrue(key1.equals(key2));
   }
+
+  @Test
+  public void testPublicKeySerializer() throws IOException {
+    KeyPair keyPair = Encryptor.makeAsymmetricKeyPair();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Encryptor.SERIALIZER.write(out, keyPair.getPublic());
+    byte[] bytes = out.toByteArray();
+
+    PublicKey key1 = Encryptor.SERIALIZER.read(new ByteArrayInputStream(bytes));
+    PublicKey key2 = Encryptor.SERIALIZER.read(new ByteArrayInputStream(bytes));
+
+    assertTrue(key1.equals(keyPair.getPublic()));
+    // The second read must come from the cache rather than being decoded again.
+    assertSame(key1, key2);
+  }
 }
@@ -0,0 +1,334 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.util.Serializers;
+
+public final class MultiplexedConnectionSourceTest {
+
+  private static final int OPEN_CODE = 42;
+  private static final int REQUESTS = 8;
+
+  // A fake server on the other end of a pipe. It waits until it has seen
+  // "REQUESTS" frames and then answers them in reverse order, replying to each
+  // integer with that integer times ten.
+  private final class ReversingSource implements ConnectionSource {
+
+    public int opened = 0;
+
+    @Override
+    public Connection connect() throws IOException {
+
+      opened += 1;
+
+      final PipedInputStream serverIn = new PipedInputStream(1 << 16);
+      final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+      final PipedInputStream clientIn = new PipedInputStream(1 << 16);
+      final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+
+      final Thread server = new Thread() {
+        @Override
+        public void run() {
+          try {
+            assertEquals(OPEN_CODE, (int) Serializers.INTEGER.read(serverIn));
+
+            final List<Frame> frames = new ArrayList<>();
+            while (frames.size() < REQUESTS) {
+              frames.add(Frame.SERIALIZER.read(serverIn));
+            }
+
+            for (int i = frames.size() - 1; i >= 0; i--) {
+              final Frame frame = frames.get(i);
+              final int value = Serializers.INTEGER.read(new ByteArrayInputStream(frame.payload));
+              final ByteArrayOutputStream response = new ByteArrayOutputStream();
+              Serializers.INTEGER.write(response, value * 10);
+              Frame.SERIALIZER.write(serverOut, new Frame(frame.id, response.toByteArray()));
+            }
+            serverOut.flush();
+          } catch (IOException ex) {
+            // The test will fail when the client does not get its responses.
+          }
+        }
+      };
+      server.setDaemon(true);
+      server.start();
+
+      return new Connection() {
+        @Override
+        public InputStream in() { return clientIn; }
+        @Override
+        public OutputStream out() { return clientOut; }
+        @Override
+        public void close() throws IOException {
+          clientIn.close();
+          clientOut.close();
+        }
+      };
+    }
+
+    @Override
+    public void close() { }
+  }
+
+  private ReversingSource remote;
+  private MultiplexedConnectionSource source;
+  private ExecutorService callers;
+
+  @Before
+  public void doBefore() {
+    remote = new ReversingSource();
+    source = new MultiplexedConnectionSource(remote, OPEN_CODE);
+    callers = Executors.newFixedThreadPool(REQUESTS);
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    callers.shutdownNow();
+    source.close();
+  }
+
+  @Test
+  public void testOutOfOrderResponses() throws Exception {
+
+    final List<Future<Integer>> results = new ArrayList<>();
+
+    for (int i = 0; i < REQUESTS; i++) {
+      final int value = i;
+      results.add(callers.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          try (final Connection connection = source.connect()) {
+            Serializers.INTEGER.write(connection.out(), value);
+            return Serializers.INTEGER.read(connection.in());
+          }
+        }
+      }));
+    }
+
+    for (int i = 0; i < REQUESTS; i++) {
+      assertEquals(i * 10, (int) results.get(i).get());
+    }
+
+    // All of the requests must have shared one connection.
+    assertEquals(1, remote.opened);
+  }
+
+  @Test
+  public void testSubscription() throws Exception {
+
+    final int PUSHES = 3;
+
+    // A fake server that answers the first frame it gets, pushes "PUSHES" more
+    // frames with the same id and then hangs up.
+    final ConnectionSource pushing = new ConnectionSource() {
+
+      @Override
+      public Connection connect() throws IOException {
+
+        final PipedInputStream serverIn = new PipedInputStream(1 << 16);
+        final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+        final PipedInputStream clientIn = new PipedInputStream(1 << 16);
+        final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+
+        final Thread server = new Thread() {
+          @Override
+          public void run() {
+            try {
+              assertEquals(OPEN_CODE, (int) Serializers.INTEGER.read(serverIn));
+              final Frame frame = Frame.SERIALIZER.read(serverIn);
+              for (int i = 0; i <= PUSHES; i++) {
+                final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                Serializers.INTEGER.write(payload, i);
+                Frame.SERIALIZER.write(serverOut, new Frame(frame.id, payload.toByteArray()));
+              }
+              serverOut.close();
+            } catch (IOException ex) {
+              // The test will fail when the client does not get its frames.
+            }
+          }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        return new Connection() {
+          @Override
+          public InputStream in() { return clientIn; }
+          @Override
+          public OutputStream out() { return clientOut; }
+          @Override
+          public void close() throws IOException {
+            clientIn.close();
+            clientOut.close();
+          }
+        };
+      }
+
+      @Override
+      public void close() { }
+    };
+
+    final List<Integer> pushed = new ArrayList<>();
+    final CountDownLatch closed = new CountDownLatch(1);
+
+    final MultiplexedConnectionSource subscriptions = new MultiplexedConnectionSource(pushing, OPEN_CODE);
+    final MultiplexedConnectionSource.Subscription subscription = subscriptions.subscribe(
+        new MultiplexedConnectionSource.Listener() {
+          @Override
+          public void onFrame(InputStream in) throws IOException {
+            synchronized (pushed) {
+              pushed.add(Serializers.INTEGER.read(in));
+            }
+          }
+
+          @Override
+          public void onClose() {
+            closed.countDown();
+          }
+        });
+
+    Serializers.INTEGER.write(subscription.out(), 0);
+    assertEquals(0, (int) Serializers.INTEGER.read(subscription.in()));
+
+    assertTrue(closed.await(10, TimeUnit.SECONDS));
+    synchronized (pushed) {
+      assertEquals(Arrays.asList(1, 2, 3), pushed);
+    }
+
+    subscriptions.close();
+  }
+
+  @Test
+  public void testOpenerRunsFirstOnNewConnection() throws Exception {
+
+    final int OPENED = -1;
+    final int HANG_UP = 0;
+
+    // A fake server that records every value it gets and answers each one at
+    // once. It hangs up when it gets "HANG_UP".
+    final List<Integer> seen = new ArrayList<>();
+    final ConnectionSource echoing = new ConnectionSource() {
+
+      @Override
+      public Connection connect() throws IOException {
+
+        final PipedInputStream serverIn = new PipedInputStream(1 << 16);
+        final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+        final PipedInputStream clientIn = new PipedInputStream(1 << 16);
+        final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+
+        final Thread server = new Thread() {
+          @Override
+          public void run() {
+            try {
+              assertEquals(OPEN_CODE, (int) Serializers.INTEGER.read(serverIn));
+              while (true) {
+                final Frame frame = Frame.SERIALIZER.read(serverIn);
+                final int value = Serializers.INTEGER.read(new ByteArrayInputStream(frame.payload));
+                synchronized (seen) {
+                  seen.add(value);
+                }
+                if (value == HANG_UP) {
+                  serverOut.close();
+                  return;
+                }
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                Serializers.INTEGER.write(response, value);
+                Frame.SERIALIZER.write(serverOut, new Frame(frame.id, response.toByteArray()));
+                serverOut.flush();
+              }
+            } catch (IOException ex) {
+              // The test will fail when the client does not get its responses.
+            }
+          }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        return new Connection() {
+          @Override
+          public InputStream in() { return clientIn; }
+          @Override
+          public OutputStream out() { return clientOut; }
+          @Override
+          public void close() throws IOException {
+            clientIn.close();
+            clientOut.close();
+          }
+        };
+      }
+
+      @Override
+      public void close() { }
+    };
+
+    final MultiplexedConnectionSource reconnecting = new MultiplexedConnectionSource(echoing, OPEN_CODE);
+    assertEquals(1, call(reconnecting, 1));
+
+    reconnecting.setOpener(new MultiplexedConnectionSource.Opener() {
+      @Override
+      public void onOpen() {
+        try {
+          assertEquals(OPENED, call(reconnecting, OPENED));
+        } catch (IOException ex) {
+          fail("Opener could not make its request.");
+        }
+      }
+    });
+
+    // Lose the connection. The next request has to wait for the opener's.
+    try {
+      call(reconnecting, HANG_UP);
+      fail("Got an answer from a server that hung up.");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    assertEquals(2, call(reconnecting, 2));
+
+    synchronized (seen) {
+      assertEquals(Arrays.asList(1, HANG_UP, OPENED, 2), seen);
+    }
+
+    reconnecting.close();
+  }
+
+  private static int call(ConnectionSource source, int value) throws IOException {
+    try (final Connection connection = source.connect()) {
+      Serializers.INTEGER.write(connection.out(), value);
+      return Serializers.INTEGER.read(connection.in());
+    }
+  }
+}
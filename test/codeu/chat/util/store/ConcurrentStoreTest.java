@@ -0,0 +1,147 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class ConcurrentStoreTest {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  private ConcurrentStore<Integer, Integer> store;
+
+  @Before
+  public void doBefore() {
+    store = new ConcurrentStore<>(COMPARATOR);
+  }
+
+  @Test
+  public void testOrder() {
+    store.insert(2, 20);
+    store.insert(0, 0);
+    store.insert(2, 21);
+    store.insert(1, 10);
+    store.insert(2, 22);
+
+    assertOrder(store.all(), new int[] { 0, 10, 20, 21, 22 });
+    assertOrder(store.at(2), new int[] { 20, 21, 22 });
+    assertOrder(store.after(1), new int[] { 10, 20, 21, 22 });
+    assertOrder(store.before(1), new int[] { 0, 10 });
+    assertOrder(store.range(1, 1), new int[] { 10 });
+    assertOrder(store.range(2, 1), new int[] { });
+
+    assertTrue(store.first(2) == 20);
+    assertNull(store.first(3));
+  }
+
+  @Test
+  public void testRemove() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+
+    final Iterable<Integer> before = store.at(2);
+
+    assertTrue(store.remove(2, 21));
+    assertFalse(store.remove(2, 21));
+    assertFalse(store.remove(3, 30));
+
+    assertOrder(store.all(), new int[] { 10, 20, 22 });
+
+    // Values can still be added to a key after a remove.
+    store.insert(2, 23);
+    assertOrder(store.at(2), new int[] { 20, 22, 23 });
+
+    // Removing the last value under a key removes the key.
+    assertTrue(store.remove(1, 10));
+    assertNull(store.first(1));
+    assertOrder(store.all(), new int[] { 20, 22, 23 });
+
+    // Iterables taken before the remove still see the old values.
+    assertOrder(before, new int[] { 20, 21, 22 });
+  }
+
+  @Test
+  public void testReadWhileInserting() throws Exception {
+
+    final int INSERTS = 50000;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < INSERTS; i++) {
+          // Few keys, so most inserts go into an existing bucket.
+          store.insert(i % 16, i);
+        }
+      }
+    };
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (writer.isAlive()) {
+            // Values under one key must come out in the order they went in.
+            int last = -1;
+            for (final Integer value : store.at(7)) {
+              assertTrue(value > last);
+              last = value;
+            }
+            for (final Integer value : store.range(3, 9)) {
+              assertNotNull(value);
+            }
+          }
+        } catch (Throwable ex) {
+          failure.set(ex);
+        }
+      }
+    };
+
+    writer.start();
+    reader.start();
+    writer.join();
+    reader.join();
+
+    assertNull(failure.get());
+
+    int count = 0;
+    for (final Integer value : store.all()) {
+      count += 1;
+    }
+    assertEquals(INSERTS, count);
+  }
+
+  private static void assertOrder(Iterable<Integer> actual, int[] expected) {
+
+    int at = 0;
+
+    for (final Integer i : actual) {
+      assertTrue(i == expected[at]);
+      at += 1;
+    }
+
+    assertTrue(at == expected.length);
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+
+// Not part of TestRunner. Times inserting values into a store where many values
+// share a key, the way messages share a time or text, and then reading ranges
+// back out.
+//
+//   java -cp bin codeu.chat.util.store.StoreBenchmark [inserts] [distinct keys]
+public final class StoreBenchmark {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  public static void main(String[] args) {
+
+    final int inserts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+    final Store<Integer, Integer> store = new Store<>(COMPARATOR);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < inserts; i++) {
+      // Spread the inserts over the keys out of order.
+      store.insert((int) ((i * 7919L) % keys), i);
+    }
+    final long insertNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    long read = 0;
+    for (int key = 0; key < keys; key += keys / 10 + 1) {
+      for (final Integer value : store.range(key, key + keys / 10)) {
+        read += 1;
+      }
+    }
+    final long rangeNanos = System.nanoTime() - start;
+
+    System.out.format("%d inserts over %d keys: %.1f ms (%.0f ns/insert)%n",
+        inserts, keys, insertNanos / 1e6, (double) insertNanos / inserts);
+    System.out.format("read %d values by range: %.1f ms%n", read, rangeNanos / 1e6);
+  }
+}
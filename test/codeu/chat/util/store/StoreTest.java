@@ -147,6 +147,31 @@ public final class StoreTest {
     assertTrue(store.first(4) == 40);
   }
 
+  @Test
+  public void testDuplicatesKeepInsertOrder() {
+    store.insert(2, 20);
+    store.insert(1, 10);
+    store.insert(2, 21);
+    store.insert(1, 11);
+    store.insert(2, 22);
+
+    final int[] order = { 10, 11, 20, 21, 22 };
+    assertOrder(store.all(), order);
+  }
+
+  @Test
+  public void testOutOfBounds() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+
+    final int[] none = { };
+    assertOrder(store.before(0), none);
+    assertOrder(store.after(3), none);
+    assertOrder(store.at(5), none);
+    assertOrder(store.range(2, 1), none);
+    assertNull(store.first(5));
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;
@@ -0,0 +1,88 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Random;
+
+import codeu.chat.util.Uuid;
+
+// Not part of TestRunner. Compares "first" on a UuidStore against a
+// ConcurrentStore holding the same server-style ids (one random int under a
+// single-int root), for ids that are present and ids that are not.
+//
+//   java -cp bin codeu.chat.util.store.UuidStoreBenchmark [entries] [lookups]
+public final class UuidStoreBenchmark {
+
+  // The same ordering the server's Model uses.
+  private static final Comparator<Uuid> COMPARATOR = new Comparator<Uuid>() {
+    @Override
+    public int compare(Uuid a, Uuid b) {
+      if (a == b) { return 0; }
+      if (a == null) { return -1; }
+      if (b == null) { return 1; }
+      final int order = Integer.compare(a.id(), b.id());
+      return order == 0 ? compare(a.root(), b.root()) : order;
+    }
+  };
+
+  public static void main(String[] args) {
+
+    final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+
+    final Uuid root = new Uuid(100);
+    final Random random = new Random(1);
+
+    final Uuid[] present = new Uuid[entries];
+    final Uuid[] absent = new Uuid[entries];
+    for (int i = 0; i < entries; i++) {
+      present[i] = new Uuid(root, random.nextInt());
+      absent[i] = new Uuid(root, random.nextInt());
+    }
+
+    final ConcurrentStore<Uuid, Uuid> ordered = new ConcurrentStore<>(COMPARATOR);
+    final UuidStore<Uuid> hashed = new UuidStore<>(COMPARATOR);
+    for (final Uuid id : present) {
+      ordered.insert(id, id);
+      hashed.insert(id, id);
+    }
+
+    // Run twice and report the second run so both have been compiled.
+    for (int run = 0; run < 2; run++) {
+      final boolean report = run == 1;
+      time("ConcurrentStore hit ", ordered, present, lookups, report);
+      time("UuidStore hit       ", hashed, present, lookups, report);
+      time("ConcurrentStore miss", ordered, absent, lookups, report);
+      time("UuidStore miss      ", hashed, absent, lookups, report);
+    }
+  }
+
+  private static void time(String name, StoreAccessor<Uuid, Uuid> store, Uuid[] ids, int lookups, boolean report) {
+    int found = 0;
+    final long start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      // Look up fresh (but equal) Uuids the way ids read off the wire would be.
+      final Uuid id = ids[(int) ((i * 7919L) % ids.length)];
+      if (store.first(new Uuid(new Uuid(id.root().id()), id.id())) != null) {
+        found += 1;
+      }
+    }
+    final long nanos = System.nanoTime() - start;
+    if (report) {
+      System.out.format("%s %7.1f ns/lookup (%d found)%n", name, (double) nanos / lookups, found);
+    }
+  }
+}
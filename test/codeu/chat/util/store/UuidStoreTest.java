@@ -0,0 +1,144 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.util.Uuid;
+
+public final class UuidStoreTest {
+
+  private static final Comparator<Uuid> COMPARATOR = new Comparator<Uuid>() {
+    @Override
+    public int compare(Uuid a, Uuid b) { return a.toString().compareTo(b.toString()); }
+  };
+
+  private static final Uuid ROOT = new Uuid(7);
+
+  private UuidStore<String> store;
+
+  @Before
+  public void doBefore() {
+    store = new UuidStore<>(COMPARATOR);
+  }
+
+  @Test
+  public void testFirst() {
+    final Uuid packed = new Uuid(ROOT, -5);
+    final Uuid single = new Uuid(-5);
+    final Uuid deep = new Uuid(new Uuid(ROOT, 1), -5);
+
+    store.insert(packed, "packed");
+    store.insert(single, "single");
+    store.insert(deep, "deep");
+
+    // Equal Uuids that are different instances must find the same value.
+    assertEquals("packed", store.first(new Uuid(new Uuid(7), -5)));
+    assertEquals("single", store.first(new Uuid(-5)));
+    assertEquals("deep", store.first(new Uuid(new Uuid(ROOT, 1), -5)));
+
+    assertNull(store.first(new Uuid(ROOT, 5)));
+    assertNull(store.first(new Uuid(new Uuid(8), -5)));
+    assertNull(store.first(null));
+  }
+
+  @Test
+  public void testFirstKeepsFirstValue() {
+    final Uuid id = new Uuid(ROOT, 1);
+
+    store.insert(id, "first");
+    store.insert(id, "second");
+
+    assertEquals("first", store.first(id));
+
+    int count = 0;
+    for (final String value : store.at(id)) {
+      count += 1;
+    }
+    assertEquals(2, count);
+  }
+
+  @Test
+  public void testManyInserts() {
+    final int INSERTS = 10000;
+
+    for (int i = 0; i < INSERTS; i++) {
+      store.insert(new Uuid(ROOT, i * 31), Integer.toString(i));
+    }
+
+    for (int i = 0; i < INSERTS; i++) {
+      assertEquals(Integer.toString(i), store.first(new Uuid(ROOT, i * 31)));
+    }
+
+    int count = 0;
+    for (final String value : store.all()) {
+      count += 1;
+    }
+    assertEquals(INSERTS, count);
+  }
+
+  @Test
+  public void testRemove() {
+    final Uuid packed = new Uuid(ROOT, 1);
+    final Uuid single = new Uuid(1);
+
+    store.insert(packed, "first");
+    store.insert(packed, "second");
+    store.insert(single, "single");
+
+    assertFalse(store.remove(packed, "other"));
+
+    // The next value under the key takes the removed one's place.
+    assertTrue(store.remove(packed, "first"));
+    assertEquals("second", store.first(packed));
+
+    assertTrue(store.remove(packed, "second"));
+    assertNull(store.first(packed));
+    assertFalse(store.at(packed).iterator().hasNext());
+
+    assertTrue(store.remove(single, "single"));
+    assertNull(store.first(single));
+
+    store.insert(packed, "again");
+    assertEquals("again", store.first(packed));
+  }
+
+  @Test
+  public void testRemoveMany() {
+    final int INSERTS = 10000;
+
+    // Keep removing most of what was inserted so the table has to clear out the
+    // removed slots instead of only growing.
+    for (int i = 0; i < INSERTS; i++) {
+      store.insert(new Uuid(ROOT, i), Integer.toString(i));
+      if (i % 4 != 0) {
+        assertTrue(store.remove(new Uuid(ROOT, i), Integer.toString(i)));
+      }
+    }
+
+    for (int i = 0; i < INSERTS; i++) {
+      final String found = store.first(new Uuid(ROOT, i));
+      if (i % 4 == 0) {
+        assertEquals(Integer.toString(i), found);
+      } else {
+        assertNull(found);
+      }
+    }
+  }
+}